@@ -1,12 +1,14 @@
 // License: GPL. See LICENSE file for details.
 package org.openstreetmap.josm.plugins.continuosDownload;
 
-import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Collections;
-import java.util.Locale;
 import java.util.Optional;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.LongSupplier;
 
 import org.openstreetmap.josm.actions.downloadtasks.AbstractDownloadTask;
 import org.openstreetmap.josm.actions.downloadtasks.DownloadGpsTask;
@@ -24,27 +26,52 @@ import org.openstreetmap.josm.gui.layer.NoteLayer;
 import org.openstreetmap.josm.gui.layer.OsmDataLayer;
 import org.openstreetmap.josm.gui.progress.NullProgressMonitor;
 import org.openstreetmap.josm.gui.progress.ProgressMonitor;
-import org.openstreetmap.josm.spi.preferences.Config;
-import org.openstreetmap.josm.tools.Logging;
 
 /**
  * The base download strategy class
  */
 public abstract class AbstractDownloadStrategy {
+    /** The time in milliseconds, a replay of a recorded session uses its own */
+    private LongSupplier clock = () -> TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+
+    /**
+     * Set the clock of the strategy
+     * @param clock The time in milliseconds
+     */
+    void setClock(LongSupplier clock) {
+        this.clock = clock;
+    }
+
+    /**
+     * Get the time, for strategies that look at how the view moves
+     * @return The time in milliseconds
+     */
+    protected long now() {
+        return clock.getAsLong();
+    }
 
     /**
      * Fetch data
      * @param bbox The bounds to fetch
      */
     public void fetch(Bounds bbox) {
-        if (Config.getPref().getBoolean("download.osm.data", true)) {
-            this.fetch(bbox, OsmDataLayer.class);
+        fetch(bbox, DownloadSettings.get());
+    }
+
+    /**
+     * Fetch data
+     * @param bbox The bounds to fetch
+     * @param settings The settings to fetch with
+     */
+    public void fetch(Bounds bbox, DownloadSettings settings) {
+        if (settings.isDownloadData()) {
+            this.fetch(bbox, OsmDataLayer.class, settings);
         }
-        if (Config.getPref().getBoolean("download.osm.gps", false)) {
-            this.fetch(bbox, GpxLayer.class);
+        if (settings.isDownloadGps()) {
+            this.fetch(bbox, GpxLayer.class, settings);
         }
-        if (Config.getPref().getBoolean("download.osm.notes", false)) {
-            this.fetch(bbox, NoteLayer.class);
+        if (settings.isDownloadNotes()) {
+            this.fetch(bbox, NoteLayer.class, settings);
         }
     }
 
@@ -54,73 +81,61 @@ public abstract class AbstractDownloadStrategy {
      * @param klass The specific type to download. See {@link #getDownloadTask(Class)} for more information.
      */
     public void fetch(Bounds bbox, Class<?> klass) {
-        Collection<Bounds> existing = getExisting(klass);
-        if (existing.isEmpty())
-            return;
-        Bounds extendedBox = extend(bbox, Config.getPref().getDouble("plugin.continuos_download.extra_download", 0.1));
-        Collection<Bounds> toFetch = getBoxes(extendedBox, existing,
-                Config.getPref().getInt("plugin.continuos_download.max_areas", 4));
-
-        printDebug(extendedBox, toFetch);
-
-        // Try to avoid downloading areas outside the view area unnecessary
-        Collection<Bounds> t = toFetch;
-        toFetch = new ArrayList<>(t.size());
-        for (Bounds box : t) {
-            if (box.intersects(bbox)) {
-                toFetch.add(box);
-            }
-        }
-
-        download(toFetch, klass);
+        fetch(bbox, klass, DownloadSettings.get());
     }
 
-    private static void printDebug(Bounds bbox, Collection<Bounds> toFetch) {
-        double areaToDownload = 0;
-        for (Bounds box : toFetch) {
-            areaToDownload += box.getArea();
-        }
-
-        double areaDownloaded = 0;
-        for (Bounds box : getExisting(OsmDataLayer.class)) {
-            if (box.intersects(bbox))
-                areaDownloaded += intersection(box, bbox).getArea();
-        }
-
-        double downloadP = (areaToDownload * 100) / bbox.getArea();
-        double downloadedP = (areaDownloaded * 100) / bbox.getArea();
-
-        Logging.info(String.format(Locale.ENGLISH,
-                "Getting %.1f%% of area, already have %.1f%%, overlap %.1f%%%n", downloadP,
-                downloadedP,
-                downloadP + downloadedP - 100));
+    /**
+     * Fetch data
+     * @param bbox The bounds to fetch
+     * @param klass The specific type to download. See {@link #getDownloadTask(Class)} for more information.
+     * @param settings The settings to fetch with
+     */
+    public void fetch(Bounds bbox, Class<?> klass, DownloadSettings settings) {
+        Layer layer = getLayer(klass, settings);
+        if (layer == null)
+            return;
+        CoverageIndex coverage = LayerCoverage.get(layer);
+        if (coverage.isEmpty())
+            return;
+        fetch(bbox, klass, settings, coverage, box -> PendingDownloads.get(klass, box), DownloadScheduler.get());
     }
 
-    private static Bounds intersection(Bounds box1, Bounds box2) {
-        double minX1 = box1.getMin().getX();
-        double maxX1 = box1.getMax().getX();
-        double minY1 = box1.getMin().getY();
-        double maxY1 = box1.getMax().getY();
-
-        double minX2 = box2.getMin().getX();
-        double maxX2 = box2.getMax().getX();
-        double minY2 = box2.getMin().getY();
-        double maxY2 = box2.getMax().getY();
-
-        double minX = Math.max(minX1, minX2);
-        double maxX = Math.min(maxX1, maxX2);
-        double minY = Math.max(minY1, minY2);
-        double maxY = Math.min(maxY1, maxY2);
+    /**
+     * Plan the download of the bounds and submit the boxes to a scheduler
+     * @param bbox The bounds to fetch
+     * @param klass The type of layer
+     * @param settings The settings to fetch with
+     * @param coverage The boxes that have already been downloaded to the layer
+     * @param running Gets the parts of the running downloads inside a box
+     * @param scheduler The scheduler to submit the boxes to
+     */
+    void fetch(Bounds bbox, Class<?> klass, DownloadSettings settings, CoverageIndex coverage,
+            Function<Box, BoxSet> running, DownloadScheduler scheduler) {
+        Bounds extendedBox = getFetchBounds(bbox, settings);
+        Box extended = BoxSet.toBox(extendedBox);
+        // Areas that are being downloaded will be there soon, do not ask for them again
+        BoxSet pending = running.apply(extended);
+        pending.addAll(scheduler.queued(klass, extended));
+        Present present = new Present(coverage, pending);
+        BoxSet near = present.near(extended);
+        // Nothing to do if all of the view has been downloaded, the parts cannot cover it if their area is smaller
+        if (near.area() >= extended.size() && BoxSet.of(extended).subtractAll(near).isEmpty())
+            return;
+        long planning = System.nanoTime();
+        BoxSet toFetch = getBoxes(extended, present, settings.getMaxAreas());
+        DownloadMetrics.get().planned(klass, System.nanoTime() - planning, extended, near, toFetch);
 
-        return new Bounds(minY, minX, maxY, maxX);
+        // Try to avoid downloading areas outside the view area unnecessary
+        scheduler.submit(klass, toFetch.touching(BoxSet.toBox(bbox)));
     }
 
     /**
-     * Get existing bounds
+     * Get the layer that data is downloaded to
      * @param klass The class to get. See {@link #getDownloadTask(Class)} for supported types.
-     * @return The collection of bounds that have already been downloaded.
+     * @param settings The settings, which tell if GPS traces may go to a local layer
+     * @return The layer, or {@code null} if there is no layer to download to
      */
-    private static Collection<Bounds> getExisting(Class<?> klass) {
+    private static Layer getLayer(Class<?> klass, DownloadSettings settings) {
         // The code used to use MainApplication.getMap().mapView.getLayerManager()
         // That layer manager is almost always the same as MainApplication.getLayerManager()
         // Regardless, keep the original code just in case.
@@ -128,38 +143,38 @@ public abstract class AbstractDownloadStrategy {
                 .map(MapView::getLayerManager).orElseGet(MainApplication::getLayerManager);
         if (klass.isAssignableFrom(OsmDataLayer.class)) {
             if (!MainApplication.isDisplayingMapView())
-                return Collections.emptyList();
+                return null;
             OsmDataLayer layer = layerManager.getEditLayer();
             if (layer == null) {
                 Collection<Layer> layers = layerManager.getLayers();
                 for (Layer layer1 : layers) {
                     if (layer1 instanceof OsmDataLayer)
-                        return ((OsmDataLayer) layer1).data.getDataSourceBounds();
+                        return layer1;
                 }
-                return Collections.emptyList();
+                return null;
             } else {
-                return layer.data.getDataSourceBounds();
+                return layer;
             }
         } else if (klass.isAssignableFrom(GpxLayer.class)) {
             if (!MainApplication.isDisplayingMapView())
-                return Collections.emptyList();
-            boolean merge = Config.getPref().getBoolean("download.gps.mergeWithLocal", false);
+                return null;
+            boolean merge = settings.isMergeGpsWithLocal();
             Layer active = layerManager.getActiveLayer();
             if (active instanceof GpxLayer && (merge || ((GpxLayer) active).data.fromServer))
-                return ((GpxLayer) active).data.getDataSourceBounds();
+                return active;
             for (GpxLayer l : layerManager.getLayersOfType(GpxLayer.class)) {
                 if (merge || l.data.fromServer)
-                    return l.data.getDataSourceBounds();
+                    return l;
             }
-            return Collections.emptyList();
+            return null;
         } else if (klass.isAssignableFrom(NoteLayer.class)) {
             if (MainApplication.isDisplayingMapView()) {
                 // JOSM only allows one note layer by default (so no need to have a merge check)
                 for (NoteLayer noteLayer : MainApplication.getLayerManager().getLayersOfType(NoteLayer.class)) {
-                    return noteLayer.getNoteData().getDataSourceBounds();
+                    return noteLayer;
                 }
             }
-            return Collections.emptyList();
+            return null;
         } else {
             throw new IllegalArgumentException();
         }
@@ -168,27 +183,65 @@ public abstract class AbstractDownloadStrategy {
     public abstract Collection<Bounds> getBoxes(Bounds bbox, Collection<Bounds> present, int maxAreas);
 
     /**
-     * Download a collection of bounds
-     * @param bboxes The bounds to download
+     * Get the boxes to download, in fixed point coordinates. Strategies that work on boxes should override this,
+     * the default converts to and from bounds and calls {@link #getBoxes(Bounds, Collection, int)} with the boxes of
+     * {@code present} near {@code bbox}.
+     * @param bbox The box to fetch
+     * @param present The boxes that have already been downloaded or are being downloaded
+     * @param maxAreas The maximum number of boxes to return
+     * @return The boxes to download
+     */
+    public BoxSet getBoxes(Box bbox, Present present, int maxAreas) {
+        return BoxSet.fromBounds(getBoxes(BoxSet.of(bbox).toBounds(0), present.near(bbox).toBounds(), maxAreas));
+    }
+
+    /**
+     * Start the download of a box, this is called by the {@link DownloadScheduler} when there is a free thread
      * @param klass The type to download. See {@link #getDownloadTask(Class)} for more information.
+     * @param bbox The bounds to download
+     * @return The future of the download
      */
-    private static void download(Collection<Bounds> bboxes, Class<?> klass) {
-        for (Bounds bbox : bboxes) {
-            // This returns a task that has been started on a worker thread.
-            // if DownloadOsmTask2, it is on DownloadPlugin.worker
-            // Otherwise, it is on MainApplication.worker
-            AbstractDownloadTask<?> task = getDownloadTask(klass);
-            
-            ProgressMonitor monitor = null;
-            if (Config.getPref().getBoolean("plugin.continuos_download.quiet_download", false)) {
-                monitor = NullProgressMonitor.INSTANCE;
-            }
+    static Future<?> start(Class<?> klass, Bounds bbox) {
+        // This returns a task that has been started on a worker thread.
+        // if DownloadOsmTask2, it is on DownloadPlugin.worker or a virtual thread
+        // Otherwise, it is on MainApplication.worker
+        AbstractDownloadTask<?> task = getDownloadTask(klass);
 
-            Future<?> future = task.download(new DownloadParams(), bbox, monitor);
-            // Run the PostDownloadHandler on the main worker thread.
-            // This should tend to be the bit where we may run into concurrent modification exceptions.
-            MainApplication.worker.execute(new PostDownloadHandler(task, future));
+        ProgressMonitor monitor = null;
+        if (DownloadSettings.get().isQuietDownload()) {
+            monitor = NullProgressMonitor.INSTANCE;
         }
+
+        long started = System.nanoTime();
+        Future<?> future = task.download(new DownloadParams(), bbox, monitor);
+        Box pending = BoxSet.toBox(bbox);
+        PendingDownloads.add(klass, pending, task, future);
+        // Run the PostDownloadHandler on the main worker thread.
+        // This should tend to be the bit where we may run into concurrent modification exceptions.
+        // The box is pending until the data is in the layer, or the download has failed.
+        PostDownloadHandler handler = new PostDownloadHandler(task, future);
+        DownloadPlugin.afterDownload(future, () -> {
+            try {
+                handler.run();
+            } finally {
+                // A box from the cache says nothing about the server. The requests of the data are counted when
+                // they are done, the others can only be timed from here.
+                if (!(task instanceof DownloadOsmTask2))
+                    DownloadMetrics.get().requested(klass, System.nanoTime() - started, task.getErrorObjects());
+                else if (((DownloadOsmTask2) task).isCached())
+                    DownloadMetrics.get().cached(klass);
+                Runnable done = () -> {
+                    PendingDownloads.remove(klass, pending);
+                    DownloadScheduler.get().dispatch();
+                };
+                // The data may still wait to be merged with the data of other boxes, or have been dropped
+                if (task instanceof DownloadOsmTask2)
+                    ((DownloadOsmTask2) task).merged().whenComplete((r, e) -> done.run());
+                else
+                    done.run();
+            }
+        });
+        return future;
     }
 
     /**
@@ -207,6 +260,51 @@ public abstract class AbstractDownloadStrategy {
         throw new IllegalArgumentException();
     }
 
+    /**
+     * Cancel the downloads that are far from the view, so the downloads for the view do not wait for them.
+     * A download is kept if it has some part in {@link #getFetchBounds(Bounds)} of the view.
+     * @param bbox The bounds of the view
+     */
+    public void cancelStale(Bounds bbox) {
+        Box keep = BoxSet.toBox(getFetchBounds(bbox, DownloadSettings.get()));
+        DownloadScheduler.get().cancelOutside(keep);
+        ExecutorService worker = DownloadPlugin.getWorker();
+        if (PendingDownloads.cancelOutside(keep) > 0 && worker instanceof ThreadPoolExecutor) {
+            // Do not leave the cancelled downloads in the queue
+            ((ThreadPoolExecutor) worker).purge();
+        }
+    }
+
+    /**
+     * Called for every change of the view, before the download waits for the view to stop changing.
+     * @param bbox The bounds of the view
+     * @return Bounds to fetch right away, or {@code null} to only fetch when the view stops changing
+     */
+    public Bounds viewChanged(Bounds bbox) {
+        return null;
+    }
+
+    /**
+     * Get the bounds to plan the download for when fetching the view. The default adds
+     * {@code plugin.continuos_download.extra_download} on every side.
+     * @param bbox The bounds of the view
+     * @return The bounds to fetch
+     */
+    protected Bounds getFetchBounds(Bounds bbox) {
+        return getFetchBounds(bbox, DownloadSettings.get());
+    }
+
+    /**
+     * Get the bounds to plan the download for when fetching the view. The default adds
+     * {@link DownloadSettings#getExtraDownload()} on every side.
+     * @param bbox The bounds of the view
+     * @param settings The settings to fetch with
+     * @return The bounds to fetch
+     */
+    protected Bounds getFetchBounds(Bounds bbox, DownloadSettings settings) {
+        return extend(bbox, settings.getExtraDownload());
+    }
+
     protected static Bounds extend(Bounds bbox, double amount) {
         LatLon min = bbox.getMin();
         LatLon max = bbox.getMax();
@@ -216,4 +314,76 @@ public abstract class AbstractDownloadStrategy {
 
         return new Bounds(min.lat() - dLat, min.lon() - dLon, max.lat() + dLat, max.lon() + dLon);
     }
+
+    /**
+     * The boxes that have already been downloaded to a layer, and the ones that are being downloaded, for planning a
+     * fetch
+     */
+    public static final class Present {
+        private CoverageIndex coverage;
+        private final BoxSet pending;
+        private BoxSet boxes;
+        private Box near;
+        private BoxSet nearBoxes;
+
+        /**
+         * Constructs a new {@code Present}.
+         * @param coverage The boxes that have already been downloaded to the layer
+         * @param pending The boxes that are being downloaded to the layer
+         */
+        public Present(CoverageIndex coverage, BoxSet pending) {
+            this.coverage = coverage;
+            this.pending = pending;
+        }
+
+        /**
+         * Make one from the boxes alone, for a strategy that is called with bounds
+         * @param boxes The boxes that have already been downloaded
+         * @return The boxes, the index is only made if it is asked for
+         */
+        static Present of(BoxSet boxes) {
+            Present r = new Present(null, new BoxSet());
+            r.boxes = boxes;
+            return r;
+        }
+
+        /**
+         * Get the index of the boxes that have already been downloaded to the layer
+         * @return The index
+         */
+        public CoverageIndex getCoverage() {
+            if (coverage == null) {
+                coverage = new CoverageIndex();
+                for (int i = 0; i < boxes.size(); i++) {
+                    coverage.add(boxes.get(i));
+                }
+            }
+            return coverage;
+        }
+
+        /**
+         * Get the boxes that are being downloaded to the layer
+         * @return The boxes, in fixed point coordinates
+         */
+        public BoxSet getPending() {
+            return pending;
+        }
+
+        /**
+         * Get the boxes that have been downloaded or are being downloaded near a box. The index is asked once for
+         * the same box.
+         * @param bbox The box
+         * @return The boxes, the downloaded ones are cut to the box
+         */
+        public BoxSet near(Box bbox) {
+            if (boxes != null)
+                return boxes;
+            if (!bbox.equals(near)) {
+                nearBoxes = coverage.query(bbox);
+                nearBoxes.addAll(pending);
+                near = bbox;
+            }
+            return nearBoxes;
+        }
+    }
 }
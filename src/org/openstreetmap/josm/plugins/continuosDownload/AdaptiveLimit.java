@@ -0,0 +1,114 @@
+// License: GPL. See LICENSE file for details.
+package org.openstreetmap.josm.plugins.continuosDownload;
+
+import java.net.SocketTimeoutException;
+import java.util.Collection;
+
+import org.openstreetmap.josm.io.OsmApiException;
+
+/**
+ * Finds how many downloads may run at the same time, from one up to {@code plugin.continuos_download.max_threads}.
+ * <p>
+ * The limit grows by one for every limit downloads that are answered about as fast as usual, and it is halved when
+ * the server answers slowly, asks the client to slow down or times out (additive increase, multiplicative decrease).
+ * The usual latency is the lowest latency seen lately. It drifts up a little for every download, so a server that
+ * stays slower is not taken as overloaded for ever.
+ */
+final class AdaptiveLimit {
+
+    /** A download is slow if it takes this many times the usual latency */
+    private static final double SLOW = 2;
+    /** How much the usual latency may grow for each download */
+    private static final double DRIFT = 1.05;
+
+    private double limit;
+    private double usual;
+    /** When the limit was halved the last time, in nanoseconds */
+    private long decreased = Long.MIN_VALUE;
+
+    /**
+     * Constructs a new {@code AdaptiveLimit}.
+     * @param initial The number of downloads to start with
+     */
+    AdaptiveLimit(double initial) {
+        this.limit = initial;
+    }
+
+    /**
+     * Get the number of downloads that may run now
+     * @return The limit, at least one and at most the configured number of threads
+     */
+    int get() {
+        int ceiling = ceiling();
+        synchronized (this) {
+            return (int) Math.max(1, Math.min(ceiling, limit));
+        }
+    }
+
+    /**
+     * Get the usual latency of the server
+     * @return The latency in nanoseconds, 0 if nothing has been downloaded yet
+     */
+    synchronized long getLatency() {
+        return (long) usual;
+    }
+
+    /**
+     * Tell how a download went
+     * @param start When the download started, in nanoseconds
+     * @param end When the download ended, in nanoseconds
+     * @param errors The errors of the download
+     */
+    void done(long start, long end, Collection<?> errors) {
+        done(start, end, errors.stream().anyMatch(AdaptiveLimit::isOverload));
+    }
+
+    /**
+     * Tell how a download went
+     * @param start When the download started, in nanoseconds
+     * @param end When the download ended, in nanoseconds
+     * @param overload {@code true} if the server refused the download because it is busy
+     */
+    void done(long start, long end, boolean overload) {
+        int ceiling = ceiling();
+        long latency = end - start;
+        synchronized (this) {
+            if (overload || (usual > 0 && latency > usual * SLOW)) {
+                // The downloads that were running at the same time are slow for the same reason, only back off once
+                if (start >= decreased) {
+                    limit = Math.max(1, limit / 2);
+                    decreased = end;
+                }
+                if (overload)
+                    return;
+            } else {
+                limit = Math.min(ceiling, limit + 1 / limit);
+            }
+            usual = usual > 0 ? Math.min(latency, usual * DRIFT) : latency;
+        }
+    }
+
+    /**
+     * Get the configured number of threads, read before the lock is taken
+     */
+    private static int ceiling() {
+        return DownloadSettings.get().getMaxThreads();
+    }
+
+    /**
+     * Check if an error means that the server is overloaded: too many requests (429), bandwidth limit exceeded
+     * (509) or a timeout.
+     */
+    static boolean isOverload(Object error) {
+        if (error instanceof OsmApiException) {
+            int code = ((OsmApiException) error).getResponseCode();
+            if (code == 429 || code == 509)
+                return true;
+        }
+        for (Object e = error; e instanceof Throwable; e = ((Throwable) e).getCause()) {
+            if (e instanceof SocketTimeoutException)
+                return true;
+        }
+        return false;
+    }
+}
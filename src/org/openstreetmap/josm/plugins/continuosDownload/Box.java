@@ -122,19 +122,10 @@ public class Box {
      * 
      * @param others other Boxes
      * @return set of boxes
+     * @see BoxSet#subtractAll(BoxSet)
      */
     public Collection<Box> subtract_all(Collection<Box> others) {
-        Collection<Box> memo = new ArrayList<>();
-        memo.add(this);
-        for (Box other : others) {
-            Collection<Box> subtracted = new ArrayList<>();
-            for (Box b : memo) {
-                subtracted.addAll(b.substract(other));
-            }
-            memo = subtracted;
-        }
-        // do we need to flatten memo here?
-        return memo;
+        return BoxSet.of(this).subtractAll(BoxSet.of(others)).toBoxes();
     }
 
     /**
@@ -143,35 +134,10 @@ public class Box {
      * 
      * @param boxes boxes
      * @return boxes
+     * @see BoxSet#merge()
      */
     public static Collection<Box> merge(Collection<Box> boxes) {
-        /*
-         * this is an O(n^2) algorithm, so it's going to be very slow on large
-         * numbers of boxes. there's almost certainly a better algorithm out
-         * there to do the same thing in better time. but it's nice and simple.
-         */
-        if (boxes.isEmpty())
-            return new ArrayList<>();
-
-        Box first = null;
-        ArrayList<Box> kept = new ArrayList<>();
-        for (Box box : boxes) {
-            if (first == null) {
-                first = box;
-            } else {
-                Box union = first.union(box);
-                if (union.size() <= first.size() + box.size()) {
-                    first = union;
-                } else {
-                    kept.add(box);
-                }
-            }
-        }
-
-        Collection<Box> r = Box.merge(kept);
-        r.add(first);
-
-        return r;
+        return BoxSet.of(boxes).merge().toBoxes();
     }
 
     /**
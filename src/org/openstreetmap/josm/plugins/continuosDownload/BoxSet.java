@@ -0,0 +1,554 @@
+// License: GPL. See LICENSE file for details.
+package org.openstreetmap.josm.plugins.continuosDownload;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+
+import org.openstreetmap.josm.data.Bounds;
+import org.openstreetmap.josm.data.coor.LatLon;
+
+/**
+ * A set of half-closed boxes packed into one array, (minx, miny, maxx, maxy)
+ * for each box. This is what the planning works on, {@link Box} is only used
+ * to look at a single box.
+ */
+public class BoxSet {
+    private static final int ORDER_MIN_X = 0;
+    private static final int ORDER_SIZE = 1;
+    private static final int ORDER_MAX_X = 2;
+
+    private long[] data;
+    private int size;
+
+    /**
+     * Constructs a new, empty {@code BoxSet}.
+     */
+    public BoxSet() {
+        this(8);
+    }
+
+    /**
+     * Constructs a new, empty {@code BoxSet}.
+     *
+     * @param capacity the number of boxes there is room for before the set has to grow
+     */
+    public BoxSet(int capacity) {
+        data = new long[Math.max(1, capacity) * 4];
+    }
+
+    private BoxSet(long[] data, int size) {
+        this.data = data;
+        this.size = size;
+    }
+
+    /**
+     * Wrap a packed array of boxes, the array is not copied.
+     *
+     * @param data the boxes, (minx, miny, maxx, maxy) for each box
+     * @return the set
+     */
+    static BoxSet wrap(long[] data) {
+        return new BoxSet(data, data.length / 4);
+    }
+
+    /**
+     * Create a set from boxes.
+     *
+     * @param boxes the boxes
+     * @return the set
+     */
+    public static BoxSet of(Collection<Box> boxes) {
+        BoxSet r = new BoxSet(boxes.size());
+        for (Box b : boxes) {
+            r.add(b);
+        }
+        return r;
+    }
+
+    /**
+     * Create a set with one box.
+     *
+     * @param box the box
+     * @return the set
+     */
+    public static BoxSet of(Box box) {
+        BoxSet r = new BoxSet(1);
+        r.add(box);
+        return r;
+    }
+
+    /**
+     * Add a box to the set
+     *
+     * @param minx min X
+     * @param miny min Y
+     * @param maxx max X
+     * @param maxy max Y
+     */
+    public void add(long minx, long miny, long maxx, long maxy) {
+        if (size * 4 == data.length) {
+            data = Arrays.copyOf(data, data.length * 2);
+        }
+        int o = size * 4;
+        data[o] = minx;
+        data[o + 1] = miny;
+        data[o + 2] = maxx;
+        data[o + 3] = maxy;
+        size++;
+    }
+
+    /**
+     * Add a box to the set
+     *
+     * @param box the box
+     */
+    public void add(Box box) {
+        add(box.x.min, box.y.min, box.x.max, box.y.max);
+    }
+
+    /**
+     * Add all the boxes in another set to this set. The boxes are not merged.
+     *
+     * @param other the other set
+     */
+    public void addAll(BoxSet other) {
+        if ((size + other.size) * 4 > data.length) {
+            data = Arrays.copyOf(data, Math.max(data.length * 2, (size + other.size) * 4));
+        }
+        System.arraycopy(other.data, 0, data, size * 4, other.size * 4);
+        size += other.size;
+    }
+
+    /**
+     * Remove all boxes
+     */
+    public void clear() {
+        size = 0;
+    }
+
+    /**
+     * Get the number of boxes
+     *
+     * @return the number of boxes
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Check if there are no boxes
+     *
+     * @return {@code true} if there are no boxes
+     */
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Get the min X of a box
+     *
+     * @param i the index of the box
+     * @return min X
+     */
+    public long minX(int i) {
+        return data[i * 4];
+    }
+
+    /**
+     * Get the min Y of a box
+     *
+     * @param i the index of the box
+     * @return min Y
+     */
+    public long minY(int i) {
+        return data[i * 4 + 1];
+    }
+
+    /**
+     * Get the max X of a box
+     *
+     * @param i the index of the box
+     * @return max X
+     */
+    public long maxX(int i) {
+        return data[i * 4 + 2];
+    }
+
+    /**
+     * Get the max Y of a box
+     *
+     * @param i the index of the box
+     * @return max Y
+     */
+    public long maxY(int i) {
+        return data[i * 4 + 3];
+    }
+
+    /**
+     * Get the area of a box
+     *
+     * @param i the index of the box
+     * @return the area
+     */
+    public long size(int i) {
+        int o = i * 4;
+        return (data[o + 2] - data[o]) * (data[o + 3] - data[o + 1]);
+    }
+
+    /**
+     * Get a box
+     *
+     * @param i the index of the box
+     * @return a new box
+     */
+    public Box get(int i) {
+        int o = i * 4;
+        return new Box(data[o], data[o + 1], data[o + 2], data[o + 3]);
+    }
+
+    /**
+     * Get all the boxes
+     *
+     * @return new boxes
+     */
+    public Collection<Box> toBoxes() {
+        ArrayList<Box> r = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            r.add(get(i));
+        }
+        return r;
+    }
+
+    /**
+     * The total area of the boxes. Overlapping areas are counted once for each box.
+     *
+     * @return the sum of the areas
+     */
+    public long area() {
+        long r = 0;
+        for (int i = 0; i < size; i++) {
+            r += size(i);
+        }
+        return r;
+    }
+
+    /**
+     * Check if any box in this set intersects a box
+     *
+     * @param minx min X
+     * @param miny min Y
+     * @param maxx max X
+     * @param maxy max Y
+     * @return {@code true} if a box in this set shares some area with the box
+     */
+    public boolean intersectsAny(long minx, long miny, long maxx, long maxy) {
+        for (int o = 0; o < size * 4; o += 4) {
+            if (data[o] < maxx && data[o + 2] > minx && data[o + 1] < maxy && data[o + 3] > miny) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * The total area of the intersections of each box in this set with a box
+     *
+     * @param box the box
+     * @return the sum of the areas of the intersections
+     */
+    public long intersectionArea(Box box) {
+        long r = 0;
+        for (int o = 0; o < size * 4; o += 4) {
+            long w = Math.min(data[o + 2], box.x.max) - Math.max(data[o], box.x.min);
+            long h = Math.min(data[o + 3], box.y.max) - Math.max(data[o + 1], box.y.min);
+            if (w > 0 && h > 0) {
+                r += w * h;
+            }
+        }
+        return r;
+    }
+
+    /**
+     * Get the boxes that intersect or touch a box
+     *
+     * @param box the box
+     * @return the boxes sharing some area or an edge with the box
+     */
+    public BoxSet touching(Box box) {
+        BoxSet r = new BoxSet(size);
+        for (int o = 0; o < size * 4; o += 4) {
+            if (data[o] <= box.x.max && data[o + 2] >= box.x.min && data[o + 1] <= box.y.max && data[o + 3] >= box.y.min) {
+                r.add(data[o], data[o + 1], data[o + 2], data[o + 3]);
+            }
+        }
+        return r;
+    }
+
+    /**
+     * Subtract all the boxes in another set from the boxes in this set. The
+     * resulting boxes are disjoint, also where the boxes in this set overlap.
+     *
+     * @param others the boxes to subtract
+     * @return the remaining boxes
+     */
+    public BoxSet subtractAll(BoxSet others) {
+        return Scanline.subtract(this, others);
+    }
+
+    /**
+     * Merge as many boxes as possible without increasing the total area of the set.
+     *
+     * @return a new set with the merged boxes
+     */
+    public BoxSet merge() {
+        /*
+         * Two boxes can only be merged without increasing the area if they
+         * touch or overlap. Sweeping a vertical line over the boxes sorted by
+         * their left edge means each box only has to be compared with the
+         * boxes still crossing the line, which is O(n log n) for the kind of
+         * sets we get from the data sources. A merge can make a box mergeable
+         * with one the line has already passed, so sweep again until nothing
+         * changes.
+         */
+        BoxSet r = new BoxSet(Arrays.copyOf(data, Math.max(4, size * 4)), size);
+        BoxSet done = new BoxSet(size);
+        BoxSet active = new BoxSet();
+        int count;
+        do {
+            count = r.size;
+            r.sweep(done, active);
+            BoxSet t = r;
+            r = done;
+            done = t;
+        } while (r.size < count);
+        return r;
+    }
+
+    /**
+     * One pass of {@link #merge()}, sorts this set.
+     *
+     * @param done where the merged boxes go, cleared first
+     * @param active room for the boxes crossing the line, cleared first
+     */
+    private void sweep(BoxSet done, BoxSet active) {
+        sort(ORDER_MIN_X);
+        done.clear();
+        active.clear();
+        for (int o = 0; o < size * 4; o += 4) {
+            long minx = data[o];
+            long miny = data[o + 1];
+            long maxx = data[o + 2];
+            long maxy = data[o + 3];
+            long boxSize = (maxx - minx) * (maxy - miny);
+            boolean merged = false;
+            int a = 0;
+            while (a < active.size * 4) {
+                long[] d = active.data;
+                if (d[a + 2] < minx) {
+                    // The line has passed this box, none of the remaining boxes can touch it
+                    done.add(d[a], d[a + 1], d[a + 2], d[a + 3]);
+                    active.size--;
+                    System.arraycopy(d, active.size * 4, d, a, 4);
+                    continue;
+                }
+                if (!merged) {
+                    long uminx = Math.min(d[a], minx);
+                    long uminy = Math.min(d[a + 1], miny);
+                    long umaxx = Math.max(d[a + 2], maxx);
+                    long umaxy = Math.max(d[a + 3], maxy);
+                    if ((umaxx - uminx) * (umaxy - uminy) <= (d[a + 2] - d[a]) * (d[a + 3] - d[a + 1]) + boxSize) {
+                        d[a] = uminx;
+                        d[a + 1] = uminy;
+                        d[a + 2] = umaxx;
+                        d[a + 3] = umaxy;
+                        merged = true;
+                    }
+                }
+                a += 4;
+            }
+            if (!merged) {
+                active.add(minx, miny, maxx, maxy);
+            }
+        }
+        done.addAll(active);
+    }
+
+    /**
+     * Sort the boxes by area, largest first
+     */
+    void sortBySize() {
+        sort(ORDER_SIZE);
+    }
+
+    /**
+     * Sort the boxes by their left edge
+     */
+    void sortByMinX() {
+        sort(ORDER_MIN_X);
+    }
+
+    /**
+     * Sort the boxes by their right edge
+     */
+    void sortByMaxX() {
+        sort(ORDER_MAX_X);
+    }
+
+    private void sort(int order) {
+        sort(order, 0, size - 1);
+    }
+
+    private void sort(int order, int lo, int hi) {
+        while (hi - lo > 16) {
+            int p = partition(order, lo, hi);
+            // Recurse into the smaller half to keep the stack small
+            if (p - lo < hi - p) {
+                sort(order, lo, p - 1);
+                lo = p + 1;
+            } else {
+                sort(order, p + 1, hi);
+                hi = p - 1;
+            }
+        }
+        for (int i = lo + 1; i <= hi; i++) {
+            for (int j = i; j > lo && compare(order, j, j - 1) < 0; j--) {
+                swap(j, j - 1);
+            }
+        }
+    }
+
+    private int partition(int order, int lo, int hi) {
+        int mid = (lo + hi) >>> 1;
+        if (compare(order, mid, lo) < 0)
+            swap(mid, lo);
+        if (compare(order, hi, lo) < 0)
+            swap(hi, lo);
+        if (compare(order, hi, mid) < 0)
+            swap(hi, mid);
+        // The median is at mid, use hi - 1 as the pivot slot
+        swap(mid, hi - 1);
+        int pivot = hi - 1;
+        int i = lo;
+        int j = hi - 1;
+        while (true) {
+            while (compare(order, ++i, pivot) < 0) {
+                // Find a box that belongs after the pivot
+            }
+            while (compare(order, pivot, --j) < 0) {
+                // Find a box that belongs before the pivot
+            }
+            if (i >= j)
+                break;
+            swap(i, j);
+        }
+        swap(i, hi - 1);
+        return i;
+    }
+
+    private int compare(int order, int i, int j) {
+        if (order == ORDER_SIZE) {
+            return Long.compare(size(j), size(i));
+        }
+        if (order == ORDER_MAX_X) {
+            return Long.compare(data[i * 4 + 2], data[j * 4 + 2]);
+        }
+        int c = Long.compare(data[i * 4], data[j * 4]);
+        return c != 0 ? c : Long.compare(data[i * 4 + 1], data[j * 4 + 1]);
+    }
+
+    private void swap(int i, int j) {
+        int a = i * 4;
+        int b = j * 4;
+        for (int k = 0; k < 4; k++) {
+            long t = data[a + k];
+            data[a + k] = data[b + k];
+            data[b + k] = t;
+        }
+    }
+
+    /*
+     * The next part is conversion between double bboxes and fpi bboxes. Sending
+     * doubles to the server and back through multiple conversions and parsers
+     * is less accurate. This makes it hard to detect if two areas are adjacent.
+     * Converting to fpi makes computation faster and more accurate.
+     */
+
+    /**
+     * Converts a double to a fixed precision integer with 7 digits
+     */
+    static long toFpi(double n) {
+        return (long) (n * 10000000);
+    }
+
+    /**
+     * Converts a fixed precision integer to a double
+     */
+    static double fromFpi(long n) {
+        return (n / 10000000.0);
+    }
+
+    /**
+     * Converts from bounds used in josm to a box
+     *
+     * @param bbox the bounds
+     * @return the box
+     */
+    public static Box toBox(Bounds bbox) {
+        LatLon min = bbox.getMin();
+        LatLon max = bbox.getMax();
+        return new Box(toFpi(min.getX()), toFpi(min.getY()), toFpi(max.getX()), toFpi(max.getY()));
+    }
+
+    /**
+     * Converts from bounds used in josm to boxes
+     *
+     * @param bounds the bounds
+     * @return the boxes
+     */
+    public static BoxSet fromBounds(Collection<Bounds> bounds) {
+        BoxSet r = new BoxSet(bounds.size());
+        for (Bounds b : bounds) {
+            LatLon min = b.getMin();
+            LatLon max = b.getMax();
+            r.add(toFpi(min.getX()), toFpi(min.getY()), toFpi(max.getX()), toFpi(max.getY()));
+        }
+        return r;
+    }
+
+    /**
+     * Converts a box to bounds used in josm
+     *
+     * @param i the index of the box
+     * @return the bounds
+     */
+    public Bounds toBounds(int i) {
+        int o = i * 4;
+        return new Bounds(fromFpi(data[o + 1]), fromFpi(data[o]), fromFpi(data[o + 3]), fromFpi(data[o + 2]));
+    }
+
+    /**
+     * Converts all boxes to bounds used in josm
+     *
+     * @return the bounds
+     */
+    public Collection<Bounds> toBounds() {
+        ArrayList<Bounds> r = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            r.add(toBounds(i));
+        }
+        return r;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("BoxSet[");
+        for (int i = 0; i < size; i++) {
+            if (i > 0) {
+                sb.append(", ");
+            }
+            sb.append(get(i));
+        }
+        return sb.append(']').toString();
+    }
+}
@@ -2,22 +2,46 @@
 package org.openstreetmap.josm.plugins.continuosDownload;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
-import java.util.Collections;
-import java.util.Comparator;
-import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
 
 import org.openstreetmap.josm.data.Bounds;
-import org.openstreetmap.josm.data.coor.LatLon;
+import org.openstreetmap.josm.tools.Logging;
 
 public class BoxStrategy extends AbstractDownloadStrategy {
 
+    /** The default time in milliseconds {@link #optimalPart} may spend looking for a partition */
+    public static final long DEFAULT_SEARCH_TIME = 200;
+    /** The default number of partitions {@link #optimalPart} may expand */
+    public static final int DEFAULT_SEARCH_NODES = 100000;
+
+    private volatile SearchStats lastStats;
+
     @Override
     public Collection<Bounds> getBoxes(Bounds bbox, Collection<Bounds> present, int maxBoxes) {
-        Collection<Box> existing = Box.merge(fromBounds(present));
-        Collection<Box> bits = Box.merge(fromBounds(bbox).subtract_all(existing));
-        Collection<Box> toFetch = optimalPart(maxBoxes, bits);
-        return toBounds(Box.merge(toFetch));
+        return getBoxes(BoxSet.toBox(bbox), Present.of(BoxSet.fromBounds(present)), maxBoxes).toBounds();
+    }
+
+    @Override
+    public BoxSet getBoxes(Box bbox, Present present, int maxBoxes) {
+        BoxSet existing = present.near(bbox).merge();
+        BoxSet bits = BoxSet.of(bbox).subtractAll(existing).merge();
+        SearchStats stats = new SearchStats();
+        DownloadSettings settings = DownloadSettings.get();
+        BoxSet toFetch = PartitionSearch.search(maxBoxes, bits, settings.getSearchTime(), settings.getSearchNodes(),
+                stats);
+        lastStats = stats;
+        Logging.debug("BoxStrategy: {0}", stats);
+        return toFetch.merge();
+    }
+
+    /**
+     * Get the counters of the last search done by {@link #getBoxes}
+     * @return the search counters, or {@code null} if nothing has been planned yet
+     */
+    public SearchStats getLastSearchStats() {
+        return lastStats;
     }
 
     /**
@@ -25,80 +49,169 @@ public class BoxStrategy extends AbstractDownloadStrategy {
      * of extra space - given the set p of partitions
      */
     public static Collection<Box> optimalPart(int maxParts, Collection<Box> set) {
-        /*
-         * BUG: This code have no safeguards against timing out or running out
-         * of memory. It did not happen during testing, but that is no guaranty
-         * it will not happen.
+        return optimalPart(maxParts, set, DEFAULT_SEARCH_TIME, DEFAULT_SEARCH_NODES, new SearchStats());
+    }
+
+    /**
+     * find the optimal partition - the one which requests the smallest amount
+     * of extra space - given the set p of partitions. If the budget runs out
+     * before the search is done the best complete partition found so far is
+     * returned.
+     *
+     * @param maxParts the maximum number of parts in the partition
+     * @param set the boxes to partition
+     * @param timeBudget the time in milliseconds the search may take
+     * @param nodeBudget the number of partitions the search may expand
+     * @param stats counters for the search, filled in by this method
+     * @return the boxes of the best partition found
+     */
+    public static Collection<Box> optimalPart(int maxParts, Collection<Box> set, long timeBudget, int nodeBudget,
+            SearchStats stats) {
+        return PartitionSearch.search(maxParts, BoxSet.of(set), timeBudget, nodeBudget, stats).toBoxes();
+    }
+
+    /**
+     * Counters for a search done by {@link BoxStrategy#optimalPart}
+     */
+    public static class SearchStats {
+        long expanded;
+        long pruned;
+        long queued;
+        long elapsed;
+        boolean exhausted;
+
+        /**
+         * Get the number of partitions that have been expanded
+         * @return the number of expanded partitions
          */
-        ArrayList<Box> list = new ArrayList<>(set);
-        // Sort the set from largest to smalest, there is a better chance of
-        // getting good pactitions if you start with the biggest boxes because
-        // the smaller boxes have little impact on the overall score.
-		Collections.sort(list, Comparator.comparingDouble(Box::size).reversed());
-
-        PriorityQueue<Partition> q = new PriorityQueue<>();
-        q.add(new Partition());
-
-        // Find the best partition this far and add another box to it until the
-        // best partition is a partition of the complete set.
-        while (!q.isEmpty()) {
-            Partition a = q.remove();
-            if (a.size == list.size()) {
-                return a.box;
-            }
-            
-            Box next = list.get(a.size);
-            
-            // Add a new box to every part in the partition and put those in the
-            // queue
-            for (int i = 0; i < maxParts && i <= a.box.size(); i++) {
-                q.add(a.add(next, i));
-            }
+        public long getExpanded() {
+            return expanded;
+        }
+
+        /**
+         * Get the number of partitions that were dropped because they could not beat the best partition
+         * @return the number of pruned partitions
+         */
+        public long getPruned() {
+            return pruned;
+        }
+
+        /**
+         * Get the number of partitions that have been put in the queue
+         * @return the number of queued partitions
+         */
+        public long getQueued() {
+            return queued;
         }
 
-        return null;
+        /**
+         * Get the time the search took
+         * @return the time in nanoseconds
+         */
+        public long getElapsed() {
+            return elapsed;
+        }
+
+        /**
+         * Check if the search ran out of time or nodes before it was done
+         * @return {@code true} if the result is the best found within the budget
+         */
+        public boolean isExhausted() {
+            return exhausted;
+        }
+
+        @Override
+        public String toString() {
+            return "SearchStats[expanded=" + expanded + ", pruned=" + pruned + ", queued=" + queued
+                    + ", elapsed=" + TimeUnit.NANOSECONDS.toMillis(elapsed) + "ms, exhausted=" + exhausted + ']';
+        }
     }
 
+    /**
+     * A partition of the first {@code size} boxes into parts. The parts are
+     * stored as (minx, miny, maxx, maxy) in a flat array, and each partition
+     * is only created once and never changed, so the areas are computed when
+     * it is created.
+     */
     public static class Partition implements Comparable<Partition> {
-        ArrayList<Box> box; // The merged boxes
-        int size; // How many boxes have we merged this far
-        double enclosingArea; // The area of the boxes we have added
+        final long[] box; // The merged boxes
+        final int size; // How many boxes have we merged this far
+        final double enclosingArea; // The area of the boxes we have added
+        private final double area; // The area of the merged boxes
+        private final double extra; // The area we download that we did not ask for
 
-        private Partition(ArrayList<Box> n, int i, double area) {
+        Partition(long[] n, int i, double enclosing, double area) {
             box = n;
             size = i;
-            enclosingArea = area;
+            enclosingArea = enclosing;
+            this.area = area;
+            extra = area - enclosing;
         }
 
         /**
          * Constructs a new {@code Partition}.
          */
         public Partition() {
-            this(new ArrayList<Box>(), 0, 0);
+            this(new long[0], 0, 0, 0);
         }
 
         // Create a new partition with an extra box in the ith place
         public Partition add(Box next, int i) {
-            @SuppressWarnings("unchecked")
-            ArrayList<Box> n = (ArrayList<Box>) box.clone();
-            if (n.size() <= i) {
-                n.add(next);
+            return add(next.x.min, next.y.min, next.x.max, next.y.max, i);
+        }
+
+        Partition add(long minx, long miny, long maxx, long maxy, int i) {
+            int o = i * 4;
+            long[] n;
+            double a;
+            if (box.length <= o) {
+                n = Arrays.copyOf(box, o + 4);
+                n[o] = minx;
+                n[o + 1] = miny;
+                n[o + 2] = maxx;
+                n[o + 3] = maxy;
+                a = area;
             } else {
-                n.set(i, n.get(i).union(next));
+                n = box.clone();
+                a = area - partSize(n, o);
+                n[o] = Math.min(n[o], minx);
+                n[o + 1] = Math.min(n[o + 1], miny);
+                n[o + 2] = Math.max(n[o + 2], maxx);
+                n[o + 3] = Math.max(n[o + 3], maxy);
             }
-            return new Partition(n, size + 1, enclosingArea + next.size());
+            return new Partition(n, size + 1, enclosingArea + (maxx - minx) * (maxy - miny), a + partSize(n, o));
+        }
+
+        private static long partSize(long[] n, int o) {
+            return (n[o + 2] - n[o]) * (n[o + 3] - n[o + 1]);
+        }
+
+        /**
+         * Get the number of parts in this partition
+         * @return the number of parts
+         */
+        public int parts() {
+            return box.length / 4;
+        }
+
+        /**
+         * Get the parts of this partition
+         * @return the parts as boxes
+         */
+        public Collection<Box> boxes() {
+            ArrayList<Box> r = new ArrayList<>(parts());
+            for (int o = 0; o < box.length; o += 4) {
+                r.add(new Box(box[o], box[o + 1], box[o + 2], box[o + 3]));
+            }
+            return r;
         }
 
         @Override
         public int compareTo(Partition other) {
-            double a = area() - enclosingArea;
-            double b = other.area() - other.enclosingArea;
-
             // Get the partition that downloads the least amount of extra area
-            if (a > b)
-                return 1;
-            if (a < b)
-                return -1;
+            int c = Double.compare(extra, other.extra);
+            if (c != 0)
+                return c;
 
             // Try to get to the end faster by getting the partition over the
             // most boxes
@@ -108,81 +221,43 @@ public class BoxStrategy extends AbstractDownloadStrategy {
                 return 1;
 
             // Prefer a partition that downloads fewest boxes
-            if (box.size() > other.box.size())
-                return 1;
-            if (box.size() < other.box.size())
-                return -1;
-            return 0;
+            return Integer.compare(box.length, other.box.length);
         }
 
         double area() {
-            double r = 0;
-
-            for (Box b : box) {
-                r += b.size();
-            }
-
-            return r;
+            return area;
         }
-    }
-
-    /*
-     * The next part is conversion between double bboxes and fpi bboxes. Sending
-     * doubles to the server and back through multiple conversions and parsers
-     * is less accurate. This makes it hard to detect if two areas are adjacent.
-     * Converting to fpi makes computation faster and more accurate.
-     */
 
-    /**
-     * Converts a double to a fixed precision integer with 7 digits
-     */
-    private static long toFpi(double n) {
-        return (long) (n * 10000000);
-    }
-
-    /**
-     * Converts a fixed precision integer to a double
-     */
-    private static double fromFpi(long n) {
-        return (n / 10000000.0);
+        double extra() {
+            return extra;
+        }
     }
 
     /**
      * Converts from bounds used in josm to boxes used here
      */
     public static Box fromBounds(Bounds bbox) {
-        LatLon min = bbox.getMin(), max = bbox.getMax();
-        return new Box(toFpi(min.getX()), toFpi(min.getY()), toFpi(max.getX()),
-                toFpi(max.getY()));
+        return BoxSet.toBox(bbox);
     }
 
     /**
      * Converts from boxes to bounds
      */
     public static Bounds toBounds(Box bbox) {
-        return new Bounds(fromFpi(bbox.y.min), fromFpi(bbox.x.min),
-                fromFpi(bbox.y.max), fromFpi(bbox.x.max));
+        return BoxSet.of(bbox).toBounds(0);
     }
 
     /**
      * Converts a set of boxes from bounds used in josm to boxes used here
      */
     public static Collection<Box> fromBounds(Collection<Bounds> bbox) {
-        ArrayList<Box> r = new ArrayList<>(bbox.size());
-        for (Bounds box : bbox) {
-            r.add(fromBounds(box));
-        }
-        return r;
+        return BoxSet.fromBounds(bbox).toBoxes();
     }
 
     /**
      * Converts a set of boxes from boxes to bounds
      */
     public static Collection<Bounds> toBounds(Collection<Box> bbox) {
-        ArrayList<Bounds> r = new ArrayList<>(bbox.size());
-        for (Box box : bbox) {
-            r.add(toBounds(box));
-        }
-        return r;
+        return BoxSet.of(bbox).toBounds();
     }
 }
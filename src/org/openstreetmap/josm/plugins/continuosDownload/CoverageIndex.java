@@ -0,0 +1,214 @@
+// License: GPL. See LICENSE file for details.
+package org.openstreetmap.josm.plugins.continuosDownload;
+
+import java.util.Collection;
+
+import org.openstreetmap.josm.data.Bounds;
+
+/**
+ * A loose quadtree of the boxes that have been downloaded, in fixed point coordinates.
+ * <p>
+ * Each cell reaches half of its size past its sides, so a box is kept in the
+ * cell that holds its center at the depth of its size, even if it crosses the
+ * middle of a larger cell. A query only looks at the cells that the query box
+ * intersects. The time of a query depends on the number of downloaded boxes
+ * near the query, not on how many boxes have been downloaded in the session.
+ * Boxes that are inside a box of the index are not added, so downloading the
+ * same area again does not grow the index.
+ */
+public class CoverageIndex {
+    /** The cells get no smaller than 2^(32 - MAX_DEPTH) */
+    private static final int MAX_DEPTH = 20;
+    /** The root cell covers all of the valid coordinates, and any box outside of them */
+    private static final long WORLD = 1L << 32;
+
+    private final Cell root = new Cell(-WORLD / 2, -WORLD / 2, WORLD);
+    private int size;
+    private int version;
+
+    /**
+     * Add a box to the index
+     *
+     * @param box the downloaded box
+     */
+    public synchronized void add(Box box) {
+        if (!box.valid() || contains(root, box))
+            return;
+        Cell cell = root;
+        for (int depth = 0; depth < MAX_DEPTH; depth++) {
+            Cell child = cell.child(box);
+            if (child == null)
+                break;
+            cell = child;
+        }
+        cell.boxes.add(box);
+        size++;
+    }
+
+    /**
+     * Add bounds to the index
+     *
+     * @param bounds the downloaded bounds
+     */
+    public synchronized void addAll(Collection<Bounds> bounds) {
+        for (Bounds b : bounds) {
+            add(BoxSet.toBox(b));
+        }
+    }
+
+    /**
+     * Remove all the boxes
+     */
+    public synchronized void clear() {
+        root.boxes.clear();
+        root.children = null;
+        size = 0;
+        version++;
+    }
+
+    /**
+     * Get the number of times the index has been cleared. Boxes are only removed from the index by clearing it,
+     * so anything learned from the index is still true as long as this has not changed.
+     *
+     * @return the version of the index
+     */
+    public synchronized int getVersion() {
+        return version;
+    }
+
+    /**
+     * Get the number of boxes in the index
+     *
+     * @return the number of boxes
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Check if the index is empty
+     *
+     * @return true if nothing has been downloaded
+     */
+    public synchronized boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Get the downloaded boxes that intersect a box, cut to the box
+     *
+     * @param box the box
+     * @return the parts of the downloaded boxes inside the box
+     */
+    public synchronized BoxSet query(Box box) {
+        BoxSet r = new BoxSet();
+        query(root, box, r);
+        return r;
+    }
+
+    /**
+     * Get the parts of a box that have not been downloaded
+     *
+     * @param box the box
+     * @return disjoint boxes covering the parts of the box that are not in the index
+     */
+    public synchronized BoxSet uncovered(Box box) {
+        return BoxSet.of(box).subtractAll(query(box));
+    }
+
+    /**
+     * Check if all of a box has been downloaded
+     *
+     * @param box the box
+     * @return true if there is nothing left to download in the box
+     */
+    public synchronized boolean covers(Box box) {
+        return uncovered(box).isEmpty();
+    }
+
+    private static boolean contains(Cell cell, Box box) {
+        BoxSet boxes = cell.boxes;
+        for (int i = 0; i < boxes.size(); i++) {
+            if (boxes.minX(i) <= box.x.min && box.x.max <= boxes.maxX(i)
+                    && boxes.minY(i) <= box.y.min && box.y.max <= boxes.maxY(i))
+                return true;
+        }
+        if (cell.children == null)
+            return false;
+        for (Cell child : cell.children) {
+            if (child != null && child.intersects(box) && contains(child, box))
+                return true;
+        }
+        return false;
+    }
+
+    private static void query(Cell cell, Box box, BoxSet r) {
+        BoxSet boxes = cell.boxes;
+        for (int i = 0; i < boxes.size(); i++) {
+            long minx = Math.max(boxes.minX(i), box.x.min);
+            long miny = Math.max(boxes.minY(i), box.y.min);
+            long maxx = Math.min(boxes.maxX(i), box.x.max);
+            long maxy = Math.min(boxes.maxY(i), box.y.max);
+            if (minx < maxx && miny < maxy) {
+                r.add(minx, miny, maxx, maxy);
+            }
+        }
+        if (cell.children == null)
+            return;
+        for (Cell child : cell.children) {
+            if (child != null && child.intersects(box)) {
+                query(child, box, r);
+            }
+        }
+    }
+
+    /**
+     * A square cell of the quadtree with the boxes that are too large for its quarters. The boxes are within half of
+     * the size of the cell from its sides.
+     */
+    private static final class Cell {
+        final long minx;
+        final long miny;
+        final long span;
+        final BoxSet boxes = new BoxSet(4);
+        Cell[] children;
+
+        Cell(long minx, long miny, long span) {
+            this.minx = minx;
+            this.miny = miny;
+            this.span = span;
+        }
+
+        /**
+         * Check if a box may intersect the boxes of the cell
+         */
+        boolean intersects(Box box) {
+            long loose = span / 2;
+            return box.x.min < minx + span + loose && minx - loose < box.x.max
+                    && box.y.min < miny + span + loose && miny - loose < box.y.max;
+        }
+
+        /**
+         * Get the quarter that holds the center of a box, creating it if needed
+         * @return the quarter, or null if the box is larger than a quarter or its center is outside of the cell
+         */
+        Cell child(Box box) {
+            long half = span / 2;
+            if (box.x.max - box.x.min > half || box.y.max - box.y.min > half)
+                return null;
+            // The box is within half of a quarter from the sides of the quarter of its center
+            long cx = box.x.min + (box.x.max - box.x.min) / 2;
+            long cy = box.y.min + (box.y.max - box.y.min) / 2;
+            if (cx < minx || cx >= minx + span || cy < miny || cy >= miny + span)
+                return null;
+            long midx = minx + half;
+            long midy = miny + half;
+            int q = (cx < midx ? 0 : 1) + (cy < midy ? 0 : 2);
+            if (children == null)
+                children = new Cell[4];
+            if (children[q] == null)
+                children[q] = new Cell((q & 1) == 0 ? minx : midx, (q & 2) == 0 ? miny : midy, half);
+            return children[q];
+        }
+    }
+}
@@ -0,0 +1,357 @@
+// License: GPL. See LICENSE file for details.
+package org.openstreetmap.josm.plugins.continuosDownload;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigDecimal;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.openstreetmap.josm.io.OsmApiException;
+import org.openstreetmap.josm.tools.Logging;
+
+/**
+ * Counts what the downloads cost and what they bring, so the preferences can be tuned from numbers.
+ * <p>
+ * For each type of layer there are the number of requests, a histogram of their latency, the failed and the cached
+ * requests, and for data layers the bytes and the primitives received. For the planning there are a histogram of the
+ * time spent in {@link AbstractDownloadStrategy#getBoxes(Box, AbstractDownloadStrategy.Present, int)}, the area that
+ * was asked for, the part of it that was already downloaded and the length of the queue of the
+ * {@link DownloadScheduler}. The errors are counted by type, and the merges of the {@link MergeBatcher} with the boxes
+ * they merged. All of it is kept since the start of JOSM or the last {@link #reset()}, and can be read as a flat list
+ * of names and numbers by {@link #snapshot()}, {@link #toCsv()} and {@link #toJson()}.
+ */
+final class DownloadMetrics {
+    /** The upper bounds of the buckets of the latency of a request, in milliseconds */
+    private static final double[] LATENCY = {50, 100, 250, 500, 1000, 2500, 5000, 10000, 30000};
+    /** The upper bounds of the buckets of the planning time, in milliseconds */
+    private static final double[] PLANNING = {0.1, 0.25, 0.5, 1, 2.5, 5, 10, 25, 100};
+    private static final double DEG2 = BoxSet.fromFpi(1) * BoxSet.fromFpi(1);
+    private static final DownloadMetrics INSTANCE = new DownloadMetrics();
+
+    private final Map<String, Layer> layers = new TreeMap<>();
+    private final Map<String, Long> errors = new TreeMap<>();
+    private Histogram planning = new Histogram(PLANNING);
+    private long fetches;
+    private long splits;
+    private long merges;
+    private long mergedBoxes;
+    private long mergesUnchanged;
+    private double areaPlanned;
+    private double areaPresent;
+    private double areaOverlap;
+    private long queueSamples;
+    private long queueTotal;
+    private int queueMax;
+    /** The bytes are counted while they are read, without taking the lock */
+    private final LongAdder bytes = new LongAdder();
+
+    DownloadMetrics() {
+        // Use get(), a new instance is for the tests
+    }
+
+    /**
+     * Get the metrics of the plugin
+     * @return The metrics
+     */
+    static DownloadMetrics get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Count the planning of a fetch
+     * @param klass The type of layer
+     * @param nanos The time spent in getBoxes, in nanoseconds
+     * @param bbox The box that was planned for
+     * @param present The parts of the box that are downloaded or being downloaded
+     * @param toFetch The boxes to download
+     */
+    void planned(Class<?> klass, long nanos, Box bbox, BoxSet present, BoxSet toFetch) {
+        double size = bbox.size() * DEG2;
+        double get = toFetch.area() * DEG2;
+        double have = Math.min(size, present.intersectionArea(bbox) * DEG2);
+        // The boxes to fetch and the downloaded parts can only cover the box once
+        double overlap = Math.max(0, get + have - size);
+        synchronized (this) {
+            fetches++;
+            planning.add(nanos);
+            areaPlanned += get;
+            areaPresent += have;
+            areaOverlap += overlap;
+        }
+        if (Logging.isDebugEnabled() && size > 0) {
+            Logging.debug(String.format(Locale.ENGLISH, "%s: getting %.1f%% of area, already have %.1f%%, overlap %.1f%%",
+                    klass.getSimpleName(), get * 100 / size, have * 100 / size, overlap * 100 / size));
+        }
+    }
+
+    /**
+     * Count a request that is done. For data layers the time is the one of the request and the parsing, without the
+     * wait for a download thread or for the merge into the layer.
+     * @param klass The type of layer
+     * @param nanos The time from the start of the request until it was done, in nanoseconds
+     * @param errors The errors of the request
+     */
+    synchronized void requested(Class<?> klass, long nanos, Collection<?> errors) {
+        Layer layer = layer(klass);
+        layer.requests++;
+        layer.latency.add(nanos);
+        if (!errors.isEmpty())
+            layer.failed++;
+        for (Object error : errors) {
+            this.errors.merge(errorType(error), 1L, Long::sum);
+        }
+    }
+
+    /**
+     * Count a request that was read from the {@link ResponseCache}
+     * @param klass The type of layer
+     */
+    synchronized void cached(Class<?> klass) {
+        layer(klass).cached++;
+    }
+
+    /**
+     * Count the primitives received by a request
+     * @param klass The type of layer
+     * @param primitives The number of primitives
+     */
+    synchronized void received(Class<?> klass, int primitives) {
+        layer(klass).primitives += primitives;
+    }
+
+    /**
+     * Count a box that had too much data and has been split
+     */
+    synchronized void split() {
+        splits++;
+    }
+
+    /**
+     * Count a merge of downloaded data into a layer
+     * @param boxes The number of boxes that were merged at once
+     * @param unchanged {@code true} if the layer already had all of the data
+     */
+    synchronized void merged(int boxes, boolean unchanged) {
+        merges++;
+        mergedBoxes += boxes;
+        if (unchanged)
+            mergesUnchanged++;
+    }
+
+    /**
+     * Count the boxes that wait in the {@link DownloadScheduler}
+     * @param size The number of waiting boxes
+     */
+    synchronized void queued(int size) {
+        queueSamples++;
+        queueTotal += size;
+        queueMax = Math.max(queueMax, size);
+    }
+
+    /**
+     * Count the bytes of a response from the server while it is read
+     * @param in The response
+     * @return The response to read instead
+     */
+    InputStream count(InputStream in) {
+        return new FilterInputStream(in) {
+            @Override
+            public int read() throws IOException {
+                int b = super.read();
+                if (b >= 0)
+                    bytes.increment();
+                return b;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int n = super.read(b, off, len);
+                if (n > 0)
+                    bytes.add(n);
+                return n;
+            }
+        };
+    }
+
+    /**
+     * Forget everything that has been counted
+     */
+    synchronized void reset() {
+        layers.clear();
+        errors.clear();
+        planning = new Histogram(PLANNING);
+        fetches = 0;
+        splits = 0;
+        merges = 0;
+        mergedBoxes = 0;
+        mergesUnchanged = 0;
+        areaPlanned = 0;
+        areaPresent = 0;
+        areaOverlap = 0;
+        queueSamples = 0;
+        queueTotal = 0;
+        queueMax = 0;
+        bytes.reset();
+    }
+
+    /**
+     * Get all the metrics
+     * @return The values by name, in the order they should be shown
+     */
+    synchronized Map<String, Number> snapshot() {
+        Map<String, Number> r = new LinkedHashMap<>();
+        for (Map.Entry<String, Layer> e : layers.entrySet()) {
+            String prefix = e.getKey() + '.';
+            Layer layer = e.getValue();
+            r.put(prefix + "requests", layer.requests);
+            r.put(prefix + "failed", layer.failed);
+            r.put(prefix + "cached", layer.cached);
+            r.put(prefix + "primitives", layer.primitives);
+            layer.latency.put(r, prefix + "latency_ms");
+        }
+        r.put("bytes", bytes.sum());
+        r.put("fetches", fetches);
+        planning.put(r, "planning_ms");
+        r.put("area_planned_deg2", areaPlanned);
+        r.put("area_present_deg2", areaPresent);
+        r.put("area_gained_deg2", areaPlanned - areaOverlap);
+        r.put("overlap_ratio", areaPlanned > 0 ? areaOverlap / areaPlanned : 0);
+        r.put("splits", splits);
+        r.put("merges", merges);
+        r.put("merged_boxes", mergedBoxes);
+        r.put("merges_unchanged", mergesUnchanged);
+        r.put("queue_mean", queueSamples > 0 ? (double) queueTotal / queueSamples : 0);
+        r.put("queue_max", queueMax);
+        for (Map.Entry<String, Long> e : errors.entrySet()) {
+            r.put("errors." + e.getKey(), e.getValue());
+        }
+        return r;
+    }
+
+    /**
+     * Get all the metrics as CSV
+     * @return A line with the name and the value of each metric, after a header
+     */
+    String toCsv() {
+        StringBuilder sb = new StringBuilder("metric,value\n");
+        for (Map.Entry<String, Number> e : snapshot().entrySet()) {
+            sb.append(e.getKey()).append(',').append(format(e.getValue())).append('\n');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Get all the metrics as JSON
+     * @return An object with the metrics as members
+     */
+    String toJson() {
+        StringBuilder sb = new StringBuilder("{");
+        String separator = "\n";
+        for (Map.Entry<String, Number> e : snapshot().entrySet()) {
+            // The names are made here, they need no escaping
+            sb.append(separator).append("  \"").append(e.getKey()).append("\": ").append(format(e.getValue()));
+            separator = ",\n";
+        }
+        return sb.append("\n}\n").toString();
+    }
+
+    static String format(Number n) {
+        if (n instanceof Double)
+            return String.format(Locale.ROOT, "%.6g", n.doubleValue());
+        return n.toString();
+    }
+
+    private Layer layer(Class<?> klass) {
+        return layers.computeIfAbsent(klass.getSimpleName(), k -> new Layer());
+    }
+
+    /**
+     * Get the name an error is counted by: the HTTP status of an API error, else the type of the exception
+     */
+    static String errorType(Object error) {
+        if (error instanceof OsmApiException && ((OsmApiException) error).getResponseCode() > 0)
+            return "http_" + ((OsmApiException) error).getResponseCode();
+        if (error instanceof Throwable)
+            return error.getClass().getSimpleName();
+        return "message";
+    }
+
+    private static final class Layer {
+        final Histogram latency = new Histogram(LATENCY);
+        long requests;
+        long failed;
+        long cached;
+        long primitives;
+    }
+
+    /**
+     * Counts values in buckets with fixed bounds
+     */
+    static final class Histogram {
+        /** The upper bounds of the buckets in milliseconds, there is one more bucket for larger values */
+        private final double[] bounds;
+        private final long[] counts;
+        private long count;
+        private long sum;
+        private long max;
+
+        Histogram(double[] bounds) {
+            this.bounds = bounds;
+            this.counts = new long[bounds.length + 1];
+        }
+
+        void add(long nanos) {
+            double ms = nanos / (double) TimeUnit.MILLISECONDS.toNanos(1);
+            int i = 0;
+            while (i < bounds.length && ms > bounds[i]) {
+                i++;
+            }
+            counts[i]++;
+            count++;
+            sum += nanos;
+            max = Math.max(max, nanos);
+        }
+
+        /**
+         * Get a percentile
+         * @param p The percentile, from 0 to 1
+         * @return The upper bound of the bucket the percentile is in, or the largest value for the last bucket
+         */
+        double percentile(double p) {
+            long rank = (long) Math.ceil(p * count);
+            long seen = 0;
+            for (int i = 0; i < bounds.length; i++) {
+                seen += counts[i];
+                if (seen >= rank)
+                    return bounds[i];
+            }
+            return toMillis(max);
+        }
+
+        void put(Map<String, Number> r, String name) {
+            r.put(name + ".count", count);
+            r.put(name + ".mean", count > 0 ? toMillis(sum) / count : 0);
+            r.put(name + ".p50", count > 0 ? percentile(0.5) : 0);
+            r.put(name + ".p95", count > 0 ? percentile(0.95) : 0);
+            r.put(name + ".max", toMillis(max));
+            // The number of values up to each bound, like the buckets of Prometheus
+            long seen = 0;
+            for (int i = 0; i < bounds.length; i++) {
+                seen += counts[i];
+                r.put(name + ".le_" + BigDecimal.valueOf(bounds[i]).stripTrailingZeros().toPlainString(), seen);
+            }
+            r.put(name + ".le_inf", count);
+        }
+
+        private static double toMillis(long nanos) {
+            return nanos / (double) TimeUnit.MILLISECONDS.toNanos(1);
+        }
+    }
+}
@@ -2,17 +2,28 @@
 package org.openstreetmap.josm.plugins.continuosDownload;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.Future;
 import java.util.function.Consumer;
 
 import org.openstreetmap.josm.actions.downloadtasks.DownloadOsmTask;
 import org.openstreetmap.josm.actions.downloadtasks.DownloadParams;
 import org.openstreetmap.josm.data.Bounds;
+import org.openstreetmap.josm.data.osm.DataSet;
+import org.openstreetmap.josm.gui.layer.OsmDataLayer;
+import org.openstreetmap.josm.gui.progress.NullProgressMonitor;
 import org.openstreetmap.josm.gui.progress.ProgressMonitor;
+import org.openstreetmap.josm.io.BoundingBoxDownloader;
+import org.openstreetmap.josm.io.IllegalDataException;
+import org.openstreetmap.josm.io.OsmReader;
 import org.openstreetmap.josm.io.OsmServerReader;
 import org.openstreetmap.josm.io.OsmTransferException;
+import org.openstreetmap.josm.tools.Logging;
 import org.xml.sax.SAXException;
 
 /**
@@ -20,6 +31,11 @@ import org.xml.sax.SAXException;
  * It still displays modal windows and ugly dialog boxes :(
  */
 public class DownloadOsmTask2 extends DownloadOsmTask {
+    /** Reads the area from the cache or from the server, if the area is downloaded by a bounding box */
+    private CachingDownloader downloader;
+    /** Set when the data waits for the {@link MergeBatcher} */
+    private volatile CompletableFuture<Void> merged;
+
     /**
      * Constructs a new {@code DownloadOsmTask2}.
      */
@@ -30,7 +46,30 @@ public class DownloadOsmTask2 extends DownloadOsmTask {
     @Override
     public Future<?> download(OsmServerReader reader, DownloadParams settings, Bounds downloadArea,
             ProgressMonitor progressMonitor) {
-        return download(new DownloadTask2(settings, reader, progressMonitor), downloadArea);
+        // The cache is looked at by the download on its own thread, not while the scheduler starts the box
+        OsmServerReader r = reader;
+        if (reader.getClass() == BoundingBoxDownloader.class) {
+            downloader = new CachingDownloader(downloadArea);
+            r = downloader;
+        }
+        return download(new DownloadTask2(settings, r, progressMonitor), downloadArea);
+    }
+
+    /**
+     * Check if the area is read from the {@link ResponseCache}. Call it when the download is done.
+     * @return {@code true} if the server is not asked
+     */
+    boolean isCached() {
+        return downloader != null && downloader.isCached();
+    }
+
+    /**
+     * Get when the downloaded data is in the layer. Call it when the download is done.
+     * @return Completes when the data has been merged, or at once if it was merged by the download itself
+     */
+    CompletableFuture<Void> merged() {
+        CompletableFuture<Void> m = merged;
+        return m != null ? m : CompletableFuture.completedFuture(null);
     }
 
     @Override
@@ -40,7 +79,7 @@ public class DownloadOsmTask2 extends DownloadOsmTask {
         this.currentBounds = new Bounds(downloadArea);
         // We need submit instead of execute so we can wait for it to finish and get the error
         // message if necessary. If no one calls getErrorMessage() it just behaves like execute.
-        return DownloadPlugin.worker.submit(downloadTask);
+        return DownloadPlugin.submit(downloadTask);
     }
 
     protected class DownloadTask2 extends DownloadTask {
@@ -54,15 +93,143 @@ public class DownloadOsmTask2 extends DownloadOsmTask {
             // Get the current error messages
             final List<Object> oldErrors = new ArrayList<>(DownloadOsmTask2.this.getErrorObjects());
             // Do the actual run
+            final long start = System.nanoTime();
             super.realRun();
+            final long end = System.nanoTime();
             // Get the new error messages
             final List<Object> newErrors = new ArrayList<>(DownloadOsmTask2.this.getErrorObjects());
             // But we have to remove the old error messages first
             newErrors.removeIf(oldErrors::contains);
+            if (dataSet != null)
+                DownloadMetrics.get().received(OsmDataLayer.class, dataSet.allPrimitives().size());
+            // The cache says nothing about the server
+            if (isCached())
+                return;
+            // A box with too much data is split, and the parts are downloaded instead. Do not show the error.
+            if (newErrors.stream().anyMatch(DownloadScheduler::isTooLarge)
+                    && DownloadScheduler.get().retry(OsmDataLayer.class, BoxSet.toBox(currentBounds))) {
+                DownloadOsmTask2.this.getErrorObjects().removeAll(newErrors);
+                DownloadMetrics.get().requested(OsmDataLayer.class, end - start, Collections.emptyList());
+                DownloadMetrics.get().split();
+                return;
+            }
+            // The time of the request, without the wait for a thread or for the merge
+            DownloadMetrics.get().requested(OsmDataLayer.class, end - start, newErrors);
+            // Run more or fewer downloads at the same time depending on how the server answers
+            DownloadScheduler.get().getLimit().done(start, end, newErrors);
+            if (newErrors.isEmpty()) {
+                DownloadScheduler.get().succeeded();
+            }
 
             final List<Consumer<Exception>> handlers = DownloadPlugin.getDownloadExceptionConsumers();
             newErrors.stream().filter(Exception.class::isInstance).map(Exception.class::cast)
                     .forEach(exception -> handlers.forEach(handler -> handler.accept(exception)));
         }
+
+        @Override
+        protected void loadData(String newLayerName, Bounds bounds) {
+            // Merge into the edit layer with the other boxes that are done about now. Anything else, like a new
+            // layer, is left to JOSM.
+            OsmDataLayer layer = getEditLayer();
+            if (settings.isNewLayer() || layer == null || !layer.isDownloadable()) {
+                super.loadData(newLayerName, bounds);
+                return;
+            }
+            merged = MergeBatcher.get().add(layer, dataSet, bounds);
+        }
+    }
+
+    /**
+     * Reads an area from the responses in the cache if they cover it. Else it downloads the area, counts the bytes of
+     * the response and stores it in the cache if there is one.
+     */
+    private static class CachingDownloader extends BoundingBoxDownloader {
+        private final Box box;
+        /** The cache, or {@code null} if it is turned off */
+        private ResponseCache cache;
+        private ResponseCache.Storing storing;
+        /** If the area took more than one request, the responses are not stored */
+        private boolean split;
+        private volatile boolean cached;
+
+        CachingDownloader(Bounds area) {
+            super(area);
+            this.box = BoxSet.toBox(area);
+        }
+
+        boolean isCached() {
+            return cached;
+        }
+
+        @Override
+        protected InputStream getInputStreamRaw(String urlStr, ProgressMonitor progressMonitor, String reason,
+                boolean uncompressAccordingToContentDisposition, String httpMethod, byte[] requestBody)
+                throws OsmTransferException {
+            InputStream in = super.getInputStreamRaw(urlStr, progressMonitor, reason,
+                    uncompressAccordingToContentDisposition, httpMethod, requestBody);
+            if (in == null)
+                return null;
+            in = DownloadMetrics.get().count(in);
+            if (cache == null)
+                return in;
+            if (split || storing != null) {
+                split = true;
+                return in;
+            }
+            try {
+                storing = cache.store(box, in);
+                return storing;
+            } catch (IOException e) {
+                Logging.warn(e);
+                return in;
+            }
+        }
+
+        @Override
+        public DataSet parseOsm(ProgressMonitor progressMonitor) throws OsmTransferException {
+            cache = ResponseCache.get();
+            List<Path> files = cache != null ? cache.lookup(box) : null;
+            if (files != null) {
+                DataSet r = read(files);
+                if (r != null) {
+                    cached = true;
+                    return r;
+                }
+            }
+            try {
+                DataSet r = super.parseOsm(progressMonitor);
+                if (storing != null && !split)
+                    storing.commit();
+                return r;
+            } finally {
+                if (storing != null)
+                    storing.discard();
+            }
+        }
+
+        /**
+         * Read the responses of the cache
+         * @return The data, or {@code null} if a file could not be read
+         */
+        private static DataSet read(List<Path> files) {
+            DataSet r = null;
+            try {
+                for (Path file : files) {
+                    try (InputStream in = ResponseCache.open(file)) {
+                        DataSet ds = OsmReader.parseDataSet(in, NullProgressMonitor.INSTANCE);
+                        if (r == null) {
+                            r = ds;
+                        } else {
+                            r.mergeFrom(ds);
+                        }
+                    }
+                }
+                return r;
+            } catch (IOException | IllegalDataException e) {
+                // The file may have been removed since it was found, ask the server instead
+                Logging.debug(e);
+                return null;
+            }
+        }
     }
 }
@@ -11,12 +11,14 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Optional;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.function.Consumer;
@@ -41,6 +43,7 @@ import org.openstreetmap.josm.io.OsmApiException;
 import org.openstreetmap.josm.plugins.Plugin;
 import org.openstreetmap.josm.plugins.PluginInformation;
 import org.openstreetmap.josm.spi.preferences.Config;
+import org.openstreetmap.josm.spi.preferences.PreferenceChangedListener;
 import org.openstreetmap.josm.tools.Destroyable;
 import org.openstreetmap.josm.tools.Logging;
 import org.openstreetmap.josm.tools.Shortcut;
@@ -53,32 +56,34 @@ public class DownloadPlugin extends Plugin implements ZoomChangeListener, Destro
 
     private static final List<Consumer<Exception>> exceptionConsumers = new ArrayList<>();
 
-    /**
-     * The worker that runs all our downloads, it has more threads than
-     * {@link MainApplication#worker}.
-     */
-    public static final ExecutorService worker = new ThreadPoolExecutor(
-            /*
-             * maximumPoolSize only matters when the queue is full. Which should never happen (Integer.MAX_VALUE).
-             * We will set core size to maxThreads and allow them to time out
-             */
-            maxThreads.get(), maxThreads.get(), 1, TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
-            Executors.defaultThreadFactory());
+    /** See {@link #getWorker()}, {@code null} until it is needed and after the plugin has been destroyed */
+    private static ThreadPoolExecutor worker;
+    /** The executor that runs each download on its own virtual thread, if it is turned on and Java has them */
+    private static ExecutorService virtualWorker;
+    private static boolean noVirtualThreads;
     private static final HashMap<String, AbstractDownloadStrategy> strats = new HashMap<>();
     static {
         registerStrat(new SimpleStrategy());
         registerStrat(new BoxStrategy());
-        // This ensures that threads will be destroyed when not used.
-        ((ThreadPoolExecutor) worker).allowCoreThreadTimeOut(true);
+        registerStrat(new TileStrategy());
+        registerStrat(new PredictiveStrategy());
     }
-    private Timer timer;
-    private TimerTask task;
+    private final PreferenceChangedListener maxThreadsListener = e -> setMaxThreads(maxThreads.get());
+    /** Runs the wait for the view to stop, the fetches then run on the same thread off the EDT */
+    private final ViewDebouncer debouncer = new ViewDebouncer(new DownloadScheduler.ExecutorAlarm(), System::nanoTime,
+            DownloadScheduler.get().getLimit(), bbox -> fetch(bbox, true));
+    /** Only used on the EDT */
     private Bounds lastBbox;
-    private boolean active;
+    private volatile boolean active;
 
     private DownloadPreference preference;
     private final JCheckBoxMenuItem menuItem;
-    private Double zoomDisabled;
+    private volatile Double zoomDisabled;
+    /** Only used on the thread of the alarms and by {@link #destroy()}, with the lock of the plugin */
+    private ViewRecorder recorder;
+    private boolean destroyed;
+    /** If there is a recording to write to or to stop, read by the EDT */
+    private volatile boolean recording;
 
     /**
      * Constructs a new {@code DownloadPlugin}.
@@ -88,8 +93,8 @@ public class DownloadPlugin extends Plugin implements ZoomChangeListener, Destro
         super(info);
         active = Config.getPref().getBoolean("plugin.continuos_download.active_default", true);
 
-        timer = new Timer();
         NavigatableComponent.addZoomChangeListener(this);
+        Config.getPref().addKeyPreferenceChangeListener(maxThreads.getKey(), maxThreadsListener);
 
         ToggleAction toggle = new ToggleAction();
         menuItem = MainMenu.addWithCheckbox(MainApplication.getMenu().fileMenu, toggle,
@@ -118,6 +123,11 @@ public class DownloadPlugin extends Plugin implements ZoomChangeListener, Destro
             return;
         MapView mv = MainApplication.getMap().mapView;
         Bounds bbox = mv.getLatLonBounds(mv.getBounds());
+        // The file is written off the EDT
+        if (recording || DownloadSettings.get().isRecordViews()) {
+            long time = System.currentTimeMillis();
+            execute(() -> record(time, bbox));
+        }
         // Re-enable if the user has zoomed in
         if (this.zoomDisabled != null && this.zoomDisabled > mv.getScale()) {
             this.zoomDisabled = null;
@@ -127,33 +137,199 @@ public class DownloadPlugin extends Plugin implements ZoomChangeListener, Destro
 
         // Have the user changed view since last time
         if (active && (lastBbox == null || !lastBbox.equals(bbox))) {
-            if (task != null) {
-                task.cancel();
-            }
+            DownloadScheduler.get().setView(BoxSet.toBox(bbox));
 
-            // wait 500ms before downloading in case the user is in the middle of a pan/zoom
-            int delay = Config.getPref().getInt("plugin.continuos_download.wait_time", 500);
-            task = new Task(bbox);
-            try {
-                timer.schedule(task, delay);
-            } catch (IllegalStateException e) {
-                // #8836: "Timer already cancelled" error received even if we don't cancel it
-                Logging.debug(e);
-                timer = new Timer();
-                timer.schedule(task, delay);
+            // The strategy may want to fetch where the user is going before the view stops
+            Bounds ahead = getStrat().viewChanged(bbox);
+            if (ahead != null) {
+                execute(() -> fetch(ahead, false));
             }
+
+            // Wait until the view stops, in case the user is in the middle of a pan/zoom
+            debouncer.viewChanged(bbox);
             lastBbox = bbox;
         }
     }
 
-    public AbstractDownloadStrategy getStrat() {
-        AbstractDownloadStrategy r = strats.get(Config.getPref().get("plugin.continuos_download.strategy", "BoxStrategy"));
+    /**
+     * Write the view to the recording if {@code plugin.continuos_download.record_views} is set
+     */
+    private synchronized void record(long time, Bounds bbox) {
+        if (destroyed)
+            return;
+        if (DownloadSettings.get().isRecordViews()) {
+            if (recorder == null)
+                recorder = ViewRecorder.start();
+            if (recorder != null)
+                recorder.record(time, bbox);
+            recording = recorder != null;
+        } else {
+            stopRecording();
+        }
+    }
+
+    private synchronized void stopRecording() {
+        if (recorder != null) {
+            recorder.close();
+            recorder = null;
+        }
+        recording = false;
+    }
+
+    /**
+     * Fetch an area
+     * @param bbox The bounds to fetch
+     * @param view {@code true} if the bounds are the view the user stopped at, the downloads far from it are
+     *             cancelled first
+     */
+    private void fetch(Bounds bbox, boolean view) {
+        if (!active)
+            return;
+
+        DownloadSettings settings = DownloadSettings.get();
+        AbstractDownloadStrategy strategy = settings.getStrategy();
+        if (view && settings.isCancelStale())
+            strategy.cancelStale(bbox);
+
+        // Do not try to download an area if the user have zoomed far out
+        if (bbox.getArea() < settings.getMaxArea())
+            strategy.fetch(bbox, settings);
+    }
+
+    private void execute(Runnable r) {
+        try {
+            DownloadScheduler.ExecutorAlarm.executor().execute(r);
+        } catch (RejectedExecutionException e) {
+            // The plugin has been destroyed
+            Logging.trace(e);
+        }
+    }
+
+    /**
+     * Get the worker that runs all our downloads, it has more threads than {@link MainApplication#worker}. The number
+     * of threads follows {@code plugin.continuos_download.max_threads}. It is stopped when the plugin is destroyed,
+     * and made again when it is needed.
+     * @return The worker
+     */
+    public static synchronized ExecutorService getWorker() {
+        if (worker == null) {
+            /*
+             * maximumPoolSize only matters when the queue is full. Which should never happen (Integer.MAX_VALUE).
+             * We will set core size to maxThreads and allow them to time out
+             */
+            int size = Math.max(1, maxThreads.get());
+            worker = new ThreadPoolExecutor(size, size, 1, TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+                    Executors.defaultThreadFactory()) {
+                @Override
+                protected void afterExecute(Runnable r, Throwable t) {
+                    super.afterExecute(r, t);
+                    // A thread is free, start the next box
+                    DownloadScheduler.get().dispatch();
+                }
+            };
+            // This ensures that threads will be destroyed when not used.
+            worker.allowCoreThreadTimeOut(true);
+        }
+        return worker;
+    }
+
+    /**
+     * Change the number of download threads. The {@link AdaptiveLimit} decides how many of them are used.
+     * @param n The number of threads
+     */
+    private static void setMaxThreads(int n) {
+        ThreadPoolExecutor executor = (ThreadPoolExecutor) getWorker();
+        int size = Math.max(1, n);
+        // The core size may not be larger than the maximum size
+        if (size > executor.getMaximumPoolSize()) {
+            executor.setMaximumPoolSize(size);
+            executor.setCorePoolSize(size);
+        } else {
+            executor.setCorePoolSize(size);
+            executor.setMaximumPoolSize(size);
+        }
+        DownloadScheduler.get().dispatch();
+    }
 
-        if (r == null) {
-            r = strats.get("SimpleStrategy");
+    /**
+     * Run a download. It runs on {@link #getWorker()}, or on its own virtual thread if
+     * {@code plugin.continuos_download.virtual_threads} is set and Java has them. In both cases the number of
+     * downloads that run at the same time is limited by the {@link DownloadScheduler}.
+     * @param download The download to run
+     * @return The future of the download
+     */
+    public static Future<?> submit(Runnable download) {
+        ExecutorService virtual = getVirtualWorker();
+        if (virtual == null)
+            return getWorker().submit(download);
+        FutureTask<?> future = new FutureTask<Void>(download, null) {
+            @Override
+            protected void done() {
+                // There is no pool to tell that a thread is free, start the next box here
+                DownloadScheduler.get().dispatch();
+            }
+        };
+        virtual.execute(future);
+        return future;
+    }
+
+    /**
+     * Run something on {@link MainApplication#worker} once a download is done. With virtual threads the waiting
+     * is done on a virtual thread, so the main worker is not blocked while the data is downloaded.
+     * @param future The future of the download
+     * @param r What to run
+     */
+    static void afterDownload(Future<?> future, Runnable r) {
+        ExecutorService virtual = getVirtualWorker();
+        if (virtual == null) {
+            MainApplication.worker.execute(r);
+            return;
+        }
+        virtual.execute(() -> {
+            try {
+                future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException | CancellationException e) {
+                // The handler shows the error
+                Logging.trace(e);
+            }
+            MainApplication.worker.execute(r);
+        });
+    }
+
+    private static synchronized ExecutorService getVirtualWorker() {
+        if (!DownloadSettings.get().isVirtualThreads())
+            return null;
+        if (virtualWorker == null && !noVirtualThreads) {
+            // Virtual threads are final in Java 21, the plugin is built for older versions
+            if (Runtime.version().feature() >= 21) {
+                try {
+                    virtualWorker = (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor")
+                            .invoke(null);
+                } catch (ReflectiveOperationException | RuntimeException e) {
+                    Logging.debug(e);
+                }
+            }
+            if (virtualWorker == null) {
+                Logging.info("Continuous download: virtual threads need Java 21, using the thread pool");
+                noVirtualThreads = true;
+            }
         }
+        return virtualWorker;
+    }
 
-        return r;
+    public AbstractDownloadStrategy getStrat() {
+        return DownloadSettings.get().getStrategy();
+    }
+
+    /**
+     * Get a registered strategy
+     * @param name The name of the strategy, see {@link #getStrategies()}
+     * @return The strategy, or {@code null} if there is none by that name
+     */
+    static AbstractDownloadStrategy getStrategy(String name) {
+        return strats.get(name);
     }
 
     /**
@@ -161,24 +337,13 @@ public class DownloadPlugin extends Plugin implements ZoomChangeListener, Destro
      * @param exception the exception to handle
      */
     private void handleException(final Exception exception) {
+        // Boxes with too many nodes are split by the scheduler, only a box that is too small to split gets here
         if (exception instanceof OsmApiException && ((OsmApiException) exception).getErrorHeader() != null &&
                 ((OsmApiException) exception).getErrorHeader().contains("requested too many")) {
             this.active = false;
             GuiHelper.runInEDT(() -> this.menuItem.setSelected(false));
-            final ThreadPoolExecutor executor = (ThreadPoolExecutor) worker;
-            // Remove anything that is currently in the queue. There are going to be a lot of PostDownloadHandler objects, which
-            // does not have cancel functionality. Unfortunately.
-            new ArrayList<>(executor.getQueue()).forEach(runnable -> {
-                executor.remove(runnable);
-                // DownloadTask is a subclass of PleaseWaitRunnable
-                if (runnable instanceof PleaseWaitRunnable) {
-                    ((PleaseWaitRunnable) runnable).operationCanceled();
-                }
-                // See #22363: Worker thread is blocked
-                if (runnable instanceof Future) {
-                    ((Future<?>) runnable).cancel(true);
-                }
-            });
+            DownloadScheduler.get().clear();
+            cancelQueued((ThreadPoolExecutor) getWorker());
             this.zoomDisabled = Optional.ofNullable(MainApplication.getMap()).map(map -> map.mapView)
                     .map(NavigatableComponent::getScale).orElse(null);
             GuiHelper.runInEDT(() -> {
@@ -189,6 +354,26 @@ public class DownloadPlugin extends Plugin implements ZoomChangeListener, Destro
         }
     }
 
+    /**
+     * Cancel the downloads that wait for a thread of a worker
+     * @param executor The worker
+     */
+    private static void cancelQueued(ThreadPoolExecutor executor) {
+        // Remove anything that is currently in the queue. There are going to be a lot of PostDownloadHandler objects, which
+        // does not have cancel functionality. Unfortunately.
+        new ArrayList<>(executor.getQueue()).forEach(runnable -> {
+            executor.remove(runnable);
+            // DownloadTask is a subclass of PleaseWaitRunnable
+            if (runnable instanceof PleaseWaitRunnable) {
+                ((PleaseWaitRunnable) runnable).operationCanceled();
+            }
+            // See #22363: Worker thread is blocked
+            if (runnable instanceof Future) {
+                ((Future<?>) runnable).cancel(true);
+            }
+        });
+    }
+
     /**
      * Get a list of handlers for exceptions from downloading data
      * @return the exception handlers -- they take action based off of the exceptions passed in.
@@ -203,24 +388,8 @@ public class DownloadPlugin extends Plugin implements ZoomChangeListener, Destro
      */
     public static void registerStrat(AbstractDownloadStrategy strat) {
         strats.put(strat.getClass().getSimpleName(), strat);
-    }
-
-    private class Task extends TimerTask {
-        private final Bounds bbox;
-
-        public Task(Bounds bbox) {
-            this.bbox = bbox;
-        }
-
-        @Override
-        public void run() {
-            if (!active)
-                return;
-            
-            // Do not try to download an area if the user have zoomed far out
-            if (bbox.getArea() < Config.getPref().getDouble("plugin.continuos_download.max_area", 0.25))
-                getStrat().fetch(bbox);
-        }
+        // The settings may have found another strategy for the name
+        DownloadSettings.invalidate();
     }
 
     private class ToggleAction extends JosmAction {
@@ -268,10 +437,37 @@ public class DownloadPlugin extends Plugin implements ZoomChangeListener, Destro
     @Override
     public void destroy() {
         NavigatableComponent.removeZoomChangeListener(this);
-        worker.shutdown();
+        Config.getPref().removeKeyPreferenceChangeListener(maxThreads.getKey(), maxThreadsListener);
+        // Nothing new is started, the downloads that wait for a thread are cancelled and the running ones finish
+        DownloadScheduler.get().clear();
+        synchronized (DownloadPlugin.class) {
+            if (worker != null) {
+                cancelQueued(worker);
+                worker.shutdown();
+                worker = null;
+            }
+            if (virtualWorker != null) {
+                virtualWorker.shutdown();
+                virtualWorker = null;
+            }
+        }
         MainApplication.getMenu().fileMenu.remove(menuItem);
         if (preference != null)
             preference.destroy();
         exceptionConsumers.clear();
+        LayerCoverage.clear();
+        PendingDownloads.clear();
+        PartitionSearch.clear();
+        synchronized (this) {
+            destroyed = true;
+            stopRecording();
+        }
+        // The data that waits to be merged is dropped before the thread of the merges is stopped
+        MergeBatcher.get().stop();
+        // The alarms of the scheduler, the view and the merges
+        DownloadScheduler.ExecutorAlarm.shutdown();
+        // The next session knows what is in the cache without reading the directory
+        ResponseCache.saveAll();
+        DownloadSettings.stop();
     }
 }
@@ -3,19 +3,25 @@ package org.openstreetmap.josm.plugins.continuosDownload;
 
 import static org.openstreetmap.josm.tools.I18n.tr;
 
+import java.awt.Dimension;
 import java.awt.GridBagConstraints;
 import java.awt.GridBagLayout;
 import java.util.HashMap;
 import java.util.Map;
 
 import javax.swing.Box;
+import javax.swing.JButton;
 import javax.swing.JCheckBox;
 import javax.swing.JComboBox;
 import javax.swing.JLabel;
 import javax.swing.JPanel;
+import javax.swing.JScrollPane;
 import javax.swing.JTabbedPane;
+import javax.swing.JTable;
 import javax.swing.JTextField;
+import javax.swing.table.DefaultTableModel;
 
+import org.openstreetmap.josm.gui.datatransfer.ClipboardUtils;
 import org.openstreetmap.josm.gui.preferences.DefaultTabPreferenceSetting;
 import org.openstreetmap.josm.gui.preferences.PreferenceTabbedPane;
 import org.openstreetmap.josm.spi.preferences.Config;
@@ -57,7 +63,7 @@ public class DownloadPreference extends DefaultTabPreferenceSetting implements D
         // maxThreads
         maxThreads.setText(Config.getPref().get("plugin.continuos_download.max_threads", "2"));
         maxThreads.setToolTipText(tr("Maximum number of threads used for downloading, increasing this will cause the"
-                + " client to send more concurrent queries to the server.")+" "+tr("Requires restart"));
+                + " client to send more concurrent queries to the server. Fewer are used while the server is slow."));
         panel.add(new JLabel(tr("Max threads")), GBC.std());
         panel.add(maxThreads, GBC.eol().fill(GridBagConstraints.HORIZONTAL).insets(5, 0, 0, 5));
 
@@ -104,15 +110,61 @@ public class DownloadPreference extends DefaultTabPreferenceSetting implements D
                 + " cancel the download."));
         panel.add(quietDownload, GBC.eol().insets(0, 0, 0, 0));
 
+        // The state of the rate limiter of the current server
+        JLabel rateLimit = new JLabel(DownloadScheduler.get().getRateLimiter().getState());
+        rateLimit.setToolTipText(tr("The requests and the area that may be downloaded from the server right now. The"
+                + " rates are set by plugin.continuos_download.requests_per_second and"
+                + " plugin.continuos_download.area_per_minute in the advanced preferences."));
+        panel.add(new JLabel(tr("Rate limit")), GBC.std());
+        panel.add(rateLimit, GBC.eol().fill(GridBagConstraints.HORIZONTAL).insets(5, 0, 0, 5));
+
+        // What the downloads cost and brought since JOSM started
+        DefaultTableModel model = new DefaultTableModel(new Object[] {tr("Metric"), tr("Value")}, 0) {
+            @Override
+            public boolean isCellEditable(int row, int column) {
+                return false;
+            }
+        };
+        showMetrics(model);
+        JTable table = new JTable(model);
+        JScrollPane scroll = new JScrollPane(table);
+        scroll.setPreferredSize(new Dimension(300, 150));
+        panel.add(new JLabel(tr("Statistics")), GBC.eol().insets(0, 10, 0, 0));
+        panel.add(scroll, GBC.eol().fill(GridBagConstraints.BOTH).insets(0, 0, 0, 5));
+        JButton refresh = new JButton(tr("Refresh"));
+        refresh.addActionListener(e -> showMetrics(model));
+        JButton csv = new JButton(tr("Copy as CSV"));
+        csv.setToolTipText(tr("Copy the statistics to the clipboard as CSV"));
+        csv.addActionListener(e -> ClipboardUtils.copyString(DownloadMetrics.get().toCsv()));
+        JButton json = new JButton(tr("Copy as JSON"));
+        json.setToolTipText(tr("Copy the statistics to the clipboard as JSON"));
+        json.addActionListener(e -> ClipboardUtils.copyString(DownloadMetrics.get().toJson()));
+        JButton reset = new JButton(tr("Reset"));
+        reset.addActionListener(e -> {
+            DownloadMetrics.get().reset();
+            showMetrics(model);
+        });
+        JPanel buttons = new JPanel();
+        buttons.add(refresh);
+        buttons.add(csv);
+        buttons.add(json);
+        buttons.add(reset);
+        panel.add(buttons, GBC.eol());
+
         panel.add(Box.createVerticalGlue(), GBC.eol().fill(GridBagConstraints.VERTICAL));
         createPreferenceTabWithScrollPane(gui, panel);
         guiPanes.put(gui, panel);
     }
 
+    private static void showMetrics(DefaultTableModel model) {
+        model.setRowCount(0);
+        for (Map.Entry<String, Number> e : DownloadMetrics.get().snapshot().entrySet()) {
+            model.addRow(new Object[] {e.getKey(), DownloadMetrics.format(e.getValue())});
+        }
+    }
+
     @Override
     public boolean ok() {
-        boolean r = !maxThreads.getText().equals(Config.getPref().get("plugin.continuos_download.max_threads", "2"));
-
         Config.getPref().putBoolean("plugin.continuos_download.active_default", activeDefault.isSelected());
         Config.getPref().put("plugin.continuos_download.max_threads", maxThreads.getText());
         Config.getPref().put("plugin.continuos_download.max_areas", maxAreas.getText());
@@ -121,7 +173,7 @@ public class DownloadPreference extends DefaultTabPreferenceSetting implements D
         Config.getPref().put("plugin.continuos_download.max_area", maxArea.getText());
         Config.getPref().put("plugin.continuos_download.strategy", (String) strategy.getSelectedItem());
         Config.getPref().putBoolean("plugin.continuos_download.quiet_download", quietDownload.isSelected());
-        return r;
+        return false;
     }
 
     @Override
@@ -0,0 +1,454 @@
+// License: GPL. See LICENSE file for details.
+package org.openstreetmap.josm.plugins.continuosDownload;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+import org.openstreetmap.josm.data.Bounds;
+import org.openstreetmap.josm.gui.layer.OsmDataLayer;
+import org.openstreetmap.josm.io.OsmApiException;
+import org.openstreetmap.josm.tools.Logging;
+
+/**
+ * Decides in which order the boxes are downloaded.
+ * <p>
+ * The strategies submit the boxes they want, and a box waits here until the {@link AdaptiveLimit} lets one more
+ * download run. Then the box that is most visible and closest to the center of the view is started first, so the view
+ * loads before the area around it. A new box that is inside a waiting box is dropped, and the waiting boxes inside a
+ * new box are replaced by it. At most {@code plugin.continuos_download.max_queue} boxes wait. When there is no room, a
+ * new box is joined with the waiting box that grows the least by it, or it takes the place of the waiting box furthest
+ * from the view. A box is only started when the {@link RateLimiter} allows it, else the scheduler tries again later.
+ * <p>
+ * A box with more data than the server gives at once is split in four, and the parts wait a while before they are
+ * downloaded. The wait doubles for every such box in a row, and is reset when a download works.
+ */
+final class DownloadScheduler {
+
+    /** The default number of boxes that may wait for a download thread */
+    static final int DEFAULT_MAX_QUEUE = 16;
+    /** The first wait before the parts of a split box are downloaded, in nanoseconds */
+    static final long RETRY_DELAY = TimeUnit.MILLISECONDS.toNanos(500);
+    /** The longest wait before the parts of a split box are downloaded, in nanoseconds */
+    private static final long MAX_RETRY_DELAY = TimeUnit.SECONDS.toNanos(30);
+    /** A box is not split if its sides are shorter than this, in fixed point coordinates */
+    static final long MIN_SPLIT_SIZE = BoxSet.toFpi(0.0005);
+    private static final DownloadScheduler INSTANCE = new DownloadScheduler(AbstractDownloadStrategy::start,
+            new AdaptiveLimit(2), new RateLimiter(System::nanoTime, RateLimiter::endpoint), System::nanoTime);
+
+    /**
+     * Starts the download of a box
+     */
+    @FunctionalInterface
+    interface Starter {
+        /**
+         * Start a download
+         * @param klass The type of layer to download to
+         * @param bbox The bounds to download
+         * @return The future of the download, or {@code null} if it was not started
+         */
+        Future<?> start(Class<?> klass, Bounds bbox);
+    }
+
+    /**
+     * Runs something after a while, to start the boxes that have to wait
+     */
+    interface Alarm {
+        /**
+         * Run something later
+         * @param nanos The time to wait in nanoseconds
+         * @param r What to run
+         * @return {@code false} if the alarm has been stopped and will not run it
+         */
+        boolean schedule(long nanos, Runnable r);
+
+        /**
+         * Forget everything that has not been run yet
+         */
+        void cancel();
+    }
+
+    private final Starter starter;
+    private final AdaptiveLimit limit;
+    private final RateLimiter rateLimiter;
+    private final LongSupplier clock;
+    private final Alarm alarm;
+    private boolean waiting;
+    private long wakeAt;
+    private long retryDelay = RETRY_DELAY;
+    private final List<Request> queue = new ArrayList<>();
+    private final List<Future<?>> running = new ArrayList<>();
+    /** Set by the EDT without the lock, so a change of the view does not wait for the scheduler */
+    private volatile Box view;
+
+    DownloadScheduler(Starter starter, AdaptiveLimit limit, RateLimiter rateLimiter, LongSupplier clock) {
+        this(starter, limit, rateLimiter, clock, new ExecutorAlarm());
+    }
+
+    DownloadScheduler(Starter starter, AdaptiveLimit limit, RateLimiter rateLimiter, LongSupplier clock, Alarm alarm) {
+        this.starter = starter;
+        this.limit = limit;
+        this.rateLimiter = rateLimiter;
+        this.clock = clock;
+        this.alarm = alarm;
+    }
+
+    /**
+     * Get the scheduler of the plugin
+     * @return The scheduler
+     */
+    static DownloadScheduler get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Get the limit of the number of downloads running at the same time
+     * @return The limit
+     */
+    AdaptiveLimit getLimit() {
+        return limit;
+    }
+
+    /**
+     * Get the limit of the request rate
+     * @return The rate limiter
+     */
+    RateLimiter getRateLimiter() {
+        return rateLimiter;
+    }
+
+    /**
+     * Set the view to give the priority to
+     * @param view The view in fixed point coordinates
+     */
+    void setView(Box view) {
+        this.view = view;
+    }
+
+    /**
+     * Add boxes to download and start as many as there are free threads for
+     * @param klass The type of layer to download to
+     * @param boxes The boxes to download
+     */
+    synchronized void submit(Class<?> klass, BoxSet boxes) {
+        for (int i = 0; i < boxes.size(); i++) {
+            offer(klass, boxes.get(i));
+        }
+        dispatch();
+        DownloadMetrics.get().queued(queue.size());
+    }
+
+    private void offer(Class<?> klass, Box box) {
+        for (Request r : queue) {
+            if (r.klass == klass && contains(r.box, box))
+                return;
+        }
+        // The parts of a split box are not joined again
+        queue.removeIf(r -> r.klass == klass && !r.split && contains(box, r.box));
+        DownloadSettings settings = DownloadSettings.get();
+        if (queue.size() < settings.getMaxQueue()) {
+            queue.add(new Request(klass, box, clock.getAsLong(), false));
+            return;
+        }
+
+        // Join it with the box that grows the least, as long as the result is not too large to download
+        double maxArea = settings.getMaxArea();
+        long limit = BoxSet.toFpi(1) * (long) (maxArea * BoxSet.toFpi(1));
+        Request join = null;
+        long grow = Long.MAX_VALUE;
+        for (Request r : queue) {
+            if (r.klass != klass || r.split)
+                continue;
+            Box union = r.box.union(box);
+            if (union.size() <= limit && union.size() - r.box.size() < grow) {
+                join = r;
+                grow = union.size() - r.box.size();
+            }
+        }
+        if (join != null) {
+            Request j = join;
+            j.box = j.box.union(box);
+            queue.removeIf(r -> r != j && r.klass == klass && !r.split && contains(j.box, r.box));
+            return;
+        }
+
+        // Or drop the box furthest from the view, it is fetched again if the user goes there
+        Box v = view;
+        Request worst = queue.get(0);
+        for (Request r : queue) {
+            if (cost(r.box, v) > cost(worst.box, v))
+                worst = r;
+        }
+        if (cost(box, v) < cost(worst.box, v)) {
+            queue.remove(worst);
+            queue.add(new Request(klass, box, clock.getAsLong(), false));
+        }
+    }
+
+    /**
+     * Split a box that has more data than the server gives at once, and download the parts later
+     * @param klass The type of layer to download to
+     * @param box The box that failed
+     * @return {@code true} if the box has been split, {@code false} if it is too small to split
+     */
+    synchronized boolean retry(Class<?> klass, Box box) {
+        if (box.x.size() < MIN_SPLIT_SIZE * 2 && box.y.size() < MIN_SPLIT_SIZE * 2)
+            return false;
+        long due = clock.getAsLong() + retryDelay;
+        retryDelay = Math.min(MAX_RETRY_DELAY, retryDelay * 2);
+        // Split in two along a side that is too short to split
+        long midx = box.x.size() < MIN_SPLIT_SIZE * 2 ? box.x.max : box.x.min + box.x.size() / 2;
+        long midy = box.y.size() < MIN_SPLIT_SIZE * 2 ? box.y.max : box.y.min + box.y.size() / 2;
+        BoxSet parts = new BoxSet();
+        parts.add(box.x.min, box.y.min, midx, midy);
+        parts.add(midx, box.y.min, box.x.max, midy);
+        parts.add(box.x.min, midy, midx, box.y.max);
+        parts.add(midx, midy, box.x.max, box.y.max);
+        for (int i = 0; i < parts.size(); i++) {
+            if (parts.size(i) > 0)
+                queue.add(new Request(klass, parts.get(i), due, true));
+        }
+        Logging.debug("Continuous download: {0} is too large, download it in parts", box);
+        dispatch();
+        return true;
+    }
+
+    /**
+     * Tell that a download worked, the parts of the next box that is too large are downloaded without a long wait
+     */
+    synchronized void succeeded() {
+        retryDelay = RETRY_DELAY;
+    }
+
+    /**
+     * Start the best waiting boxes if there are free threads
+     */
+    synchronized void dispatch() {
+        running.removeIf(Future::isDone);
+        int maxRunning = limit.get();
+        while (running.size() < maxRunning && !queue.isEmpty()) {
+            long now = clock.getAsLong();
+            Box v = view;
+            Request best = null;
+            long next = Long.MAX_VALUE;
+            for (Request r : queue) {
+                if (r.due - now > 0) {
+                    next = Math.min(next, r.due - now);
+                } else if (best == null || cost(r.box, v) < cost(best.box, v)) {
+                    best = r;
+                }
+            }
+            // Only boxes that wait for a retry
+            if (best == null) {
+                wakeUp(next);
+                return;
+            }
+            // Wait for the rate limiter, the box may not be the best one by then. The cache is not limited, asking it
+            // does not touch the disk.
+            long wait = cached(best) ? 0
+                    : rateLimiter.acquire(BoxSet.fromFpi(best.box.x.size()) * BoxSet.fromFpi(best.box.y.size()));
+            if (wait > 0) {
+                wakeUp(wait);
+                return;
+            }
+            queue.remove(best);
+            Future<?> future = starter.start(best.klass, BoxSet.of(best.box).toBounds(0));
+            if (future != null)
+                running.add(future);
+        }
+    }
+
+    private void wakeUp(long nanos) {
+        long at = clock.getAsLong() + nanos;
+        if (waiting && wakeAt - at <= 0)
+            return;
+        waiting = true;
+        wakeAt = at;
+        alarm.schedule(nanos, () -> {
+            synchronized (this) {
+                waiting = false;
+                dispatch();
+            }
+        });
+    }
+
+    /**
+     * Get the waiting boxes near a box
+     * @param klass The type of layer
+     * @param box The box
+     * @return The parts of the waiting boxes inside the box
+     */
+    synchronized BoxSet queued(Class<?> klass, Box box) {
+        BoxSet r = new BoxSet();
+        for (Request q : queue) {
+            Box i = q.box.intersection(box);
+            if (q.klass == klass && i.valid()) {
+                r.add(i);
+            }
+        }
+        return r;
+    }
+
+    /**
+     * Drop the waiting boxes that have no part in a box
+     * @param box The box to keep the waiting boxes of
+     * @return The number of dropped boxes
+     */
+    synchronized int cancelOutside(Box box) {
+        int size = queue.size();
+        queue.removeIf(r -> !r.box.intersection(box).valid());
+        return size - queue.size();
+    }
+
+    /**
+     * Drop all the waiting boxes
+     */
+    synchronized void clear() {
+        queue.clear();
+        alarm.cancel();
+        waiting = false;
+    }
+
+    /**
+     * Get how far a box is from the view, the box with the lowest cost is downloaded first
+     */
+    private static double cost(Box box, Box view) {
+        if (view == null)
+            return 0;
+        double cx = (view.x.min + view.x.max) / 2.0;
+        double cy = (view.y.min + view.y.max) / 2.0;
+        double dx = Math.max(0, Math.max(box.x.min - cx, cx - box.x.max));
+        double dy = Math.max(0, Math.max(box.y.min - cy, cy - box.y.max));
+        double diagonal = Math.max(1, Math.hypot(view.x.size(), view.y.size()));
+        // How much of the box is visible, a box mostly outside the view is not as important
+        Box visible = box.intersection(view);
+        double seen = visible.valid() ? (double) visible.size() / box.size() : 0;
+        return Math.hypot(dx, dy) / diagonal - seen;
+    }
+
+    private static boolean cached(Request r) {
+        ResponseCache cache = r.klass == OsmDataLayer.class ? ResponseCache.get() : null;
+        return cache != null && cache.covers(r.box);
+    }
+
+    private static boolean contains(Box outer, Box inner) {
+        return outer.x.min <= inner.x.min && inner.x.max <= outer.x.max
+                && outer.y.min <= inner.y.min && inner.y.max <= outer.y.max;
+    }
+
+    /**
+     * Check if an error means that a box has more data than the server gives at once
+     * @param error The error of a download
+     * @return {@code true} if the box has too many nodes or is too large
+     */
+    static boolean isTooLarge(Object error) {
+        if (!(error instanceof OsmApiException))
+            return false;
+        String header = ((OsmApiException) error).getErrorHeader();
+        return header != null && (header.contains("requested too many") || header.contains("maximum bbox size"));
+    }
+
+    /**
+     * Runs the alarms on a daemon thread of the plugin. The debounce of the view, the fetches and the waits of the
+     * scheduler share one thread, the alarms with another name get a thread of their own, so their work does not hold
+     * up the others. The threads are made when they are needed and stopped by {@link #shutdown()}.
+     */
+    static final class ExecutorAlarm implements Alarm {
+        /** The name of the thread that is shared by default */
+        static final String THREAD = "continuous-download-alarm";
+        private static final Map<String, ScheduledExecutorService> executors = new HashMap<>();
+        private final String thread;
+        /** What this alarm has scheduled and may still cancel */
+        private final List<ScheduledFuture<?>> scheduled = new ArrayList<>();
+
+        /**
+         * Constructs a new {@code ExecutorAlarm} on the shared thread.
+         */
+        ExecutorAlarm() {
+            this(THREAD);
+        }
+
+        /**
+         * Constructs a new {@code ExecutorAlarm}.
+         * @param thread The name of the thread, the alarms with the same name share it
+         */
+        ExecutorAlarm(String thread) {
+            this.thread = thread;
+        }
+
+        /**
+         * Get the executor of the shared thread, to run something on it
+         * @return The executor
+         */
+        static ScheduledExecutorService executor() {
+            return executor(THREAD);
+        }
+
+        private static synchronized ScheduledExecutorService executor(String name) {
+            return executors.computeIfAbsent(name, k -> {
+                ScheduledThreadPoolExecutor e = new ScheduledThreadPoolExecutor(1, r -> {
+                    Thread t = new Thread(r, k);
+                    t.setDaemon(true);
+                    return t;
+                });
+                // What waits is dropped by a shutdown, what runs may finish
+                e.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+                return e;
+            });
+        }
+
+        /**
+         * Stop the threads of the alarms, call this when the plugin is destroyed. What has not been run yet is
+         * forgotten, and what is running is not interrupted: a merge may be waiting for the EDT.
+         */
+        static synchronized void shutdown() {
+            executors.values().forEach(ExecutorService::shutdown);
+            executors.clear();
+        }
+
+        @Override
+        public synchronized boolean schedule(long nanos, Runnable r) {
+            scheduled.removeIf(Future::isDone);
+            try {
+                scheduled.add(executor(thread).schedule(r, nanos, TimeUnit.NANOSECONDS));
+                return true;
+            } catch (RejectedExecutionException e) {
+                // Shut down at the same time
+                Logging.trace(e);
+                return false;
+            }
+        }
+
+        @Override
+        public synchronized void cancel() {
+            scheduled.forEach(f -> f.cancel(false));
+            scheduled.clear();
+        }
+    }
+
+    private static final class Request {
+        final Class<?> klass;
+        Box box;
+        /** When the box may be started, in nanoseconds */
+        final long due;
+        /** If the box is a part of a box that was too large */
+        final boolean split;
+
+        Request(Class<?> klass, Box box, long due, boolean split) {
+            this.klass = klass;
+            this.box = box;
+            this.due = due;
+            this.split = split;
+        }
+    }
+}
@@ -0,0 +1,367 @@
+// License: GPL. See LICENSE file for details.
+package org.openstreetmap.josm.plugins.continuosDownload;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.openstreetmap.josm.spi.preferences.Config;
+import org.openstreetmap.josm.spi.preferences.IPreferences;
+import org.openstreetmap.josm.spi.preferences.PreferenceChangedListener;
+
+/**
+ * The settings of the plugin, read from the preferences at once.
+ * <p>
+ * A snapshot is never changed, so it can be read from any thread without a lock. {@link #get()} gives the current
+ * one, which is made again when one of the {@code plugin.continuos_download.*} preferences or one of the JOSM
+ * preferences the plugin uses changes, or when the preferences are replaced. A fetch gets the snapshot once and
+ * passes it on, so the preferences are not looked up and parsed again for every box.
+ */
+public final class DownloadSettings {
+    private static final String PREFIX = "plugin.continuos_download.";
+    private static final String REQUESTS_PER_SECOND = "requests_per_second";
+    private static final String AREA_PER_MINUTE = "area_per_minute";
+    /** The preferences of JOSM the plugin uses */
+    private static final Set<String> JOSM_KEYS = Collections.unmodifiableSet(new HashSet<>(Arrays.asList(
+            "download.osm.data", "download.osm.gps", "download.osm.notes", "download.gps.mergeWithLocal")));
+    private static final PreferenceChangedListener LISTENER = e -> {
+        if (isSetting(e.getKey()))
+            update();
+    };
+
+    private static volatile DownloadSettings current;
+    /** The preferences the listener has been added to */
+    private static IPreferences listening;
+
+    private final IPreferences source;
+    private final boolean downloadData;
+    private final boolean downloadGps;
+    private final boolean downloadNotes;
+    private final boolean mergeGpsWithLocal;
+    private final String strategyName;
+    private final double extraDownload;
+    private final int maxAreas;
+    private final double maxArea;
+    private final boolean quietDownload;
+    private final int waitTime;
+    private final boolean cancelStale;
+    private final long searchTime;
+    private final int searchNodes;
+    private final double tileSize;
+    private final int lookahead;
+    private final int maxQueue;
+    private final int maxThreads;
+    private final boolean virtualThreads;
+    private final boolean recordViews;
+    private final boolean cache;
+    private final long cacheTtl;
+    private final long cacheSize;
+    private final double requestsPerSecond;
+    private final double areaPerMinute;
+    /** The rates of the {@link RateLimiter} that are set for one server, by the key after the prefix */
+    private final Map<String, Double> serverRates;
+    /**
+     * Found the first time it is asked for, the strategies may not be registered when the snapshot is made. Any
+     * thread may find it, they all find the same one.
+     */
+    private volatile AbstractDownloadStrategy strategy;
+
+    private DownloadSettings(IPreferences pref) {
+        source = pref;
+        downloadData = pref.getBoolean("download.osm.data", true);
+        downloadGps = pref.getBoolean("download.osm.gps", false);
+        downloadNotes = pref.getBoolean("download.osm.notes", false);
+        mergeGpsWithLocal = pref.getBoolean("download.gps.mergeWithLocal", false);
+        strategyName = pref.get(PREFIX + "strategy", "BoxStrategy");
+        extraDownload = pref.getDouble(PREFIX + "extra_download", 0.1);
+        maxAreas = pref.getInt(PREFIX + "max_areas", 4);
+        maxArea = pref.getDouble(PREFIX + "max_area", 0.25);
+        quietDownload = pref.getBoolean(PREFIX + "quiet_download", false);
+        waitTime = Math.max(0, pref.getInt(PREFIX + "wait_time", 500));
+        cancelStale = pref.getBoolean(PREFIX + "cancel_stale", true);
+        searchTime = pref.getLong(PREFIX + "search_time", BoxStrategy.DEFAULT_SEARCH_TIME);
+        searchNodes = pref.getInt(PREFIX + "search_nodes", BoxStrategy.DEFAULT_SEARCH_NODES);
+        tileSize = pref.getDouble(PREFIX + "tile_size", TileStrategy.DEFAULT_TILE_SIZE);
+        lookahead = pref.getInt(PREFIX + "lookahead", PredictiveStrategy.DEFAULT_LOOKAHEAD);
+        maxQueue = Math.max(1, pref.getInt(PREFIX + "max_queue", DownloadScheduler.DEFAULT_MAX_QUEUE));
+        maxThreads = Math.max(1, pref.getInt(PREFIX + "max_threads", 2));
+        virtualThreads = pref.getBoolean(PREFIX + "virtual_threads", false);
+        recordViews = pref.getBoolean(PREFIX + "record_views", false);
+        cache = pref.getBoolean(PREFIX + "cache", false);
+        cacheTtl = pref.getLong(PREFIX + "cache_ttl", ResponseCache.DEFAULT_TTL);
+        cacheSize = pref.getLong(PREFIX + "cache_size", ResponseCache.DEFAULT_SIZE);
+        requestsPerSecond = pref.getDouble(PREFIX + REQUESTS_PER_SECOND, RateLimiter.DEFAULT_REQUESTS_PER_SECOND);
+        areaPerMinute = pref.getDouble(PREFIX + AREA_PER_MINUTE, RateLimiter.DEFAULT_AREA_PER_MINUTE);
+        serverRates = serverRates(pref);
+    }
+
+    private static Map<String, Double> serverRates(IPreferences pref) {
+        Map<String, Double> r = new HashMap<>();
+        for (String key : pref.getKeySet()) {
+            if (key.startsWith(PREFIX + REQUESTS_PER_SECOND + '.') || key.startsWith(PREFIX + AREA_PER_MINUTE + '.')) {
+                double rate = pref.getDouble(key, Double.NaN);
+                if (!Double.isNaN(rate))
+                    r.put(key.substring(PREFIX.length()), rate);
+            }
+        }
+        return r;
+    }
+
+    /**
+     * Get the current settings
+     * @return The settings
+     */
+    public static DownloadSettings get() {
+        DownloadSettings s = current;
+        if (s == null || s.source != Config.getPref())
+            s = update();
+        return s;
+    }
+
+    /**
+     * Forget the settings, they are read again the next time they are asked for. For a change that is not seen by
+     * the listener, like a new strategy.
+     */
+    static synchronized void invalidate() {
+        current = null;
+    }
+
+    /**
+     * Stop listening to the preferences and forget the settings, call this when the plugin is destroyed. The settings
+     * are read again, and the listener added again, the next time they are asked for.
+     */
+    static synchronized void stop() {
+        if (listening != null) {
+            listening.removePreferenceChangeListener(LISTENER);
+            listening = null;
+        }
+        current = null;
+    }
+
+    private static synchronized DownloadSettings update() {
+        IPreferences pref = Config.getPref();
+        // The tests and the replay replace the preferences
+        if (listening != pref) {
+            if (listening != null)
+                listening.removePreferenceChangeListener(LISTENER);
+            pref.addPreferenceChangeListener(LISTENER);
+            listening = pref;
+        }
+        DownloadSettings s = new DownloadSettings(pref);
+        current = s;
+        return s;
+    }
+
+    /**
+     * Check if a preference is one of the settings
+     * @param key The key of the preference
+     * @return {@code true} if the settings have to be read again when it changes
+     */
+    static boolean isSetting(String key) {
+        return key != null && (key.startsWith(PREFIX) || JOSM_KEYS.contains(key));
+    }
+
+    /**
+     * Check if OSM data is downloaded
+     * @return {@code download.osm.data}
+     */
+    public boolean isDownloadData() {
+        return downloadData;
+    }
+
+    /**
+     * Check if GPS traces are downloaded
+     * @return {@code download.osm.gps}
+     */
+    public boolean isDownloadGps() {
+        return downloadGps;
+    }
+
+    /**
+     * Check if notes are downloaded
+     * @return {@code download.osm.notes}
+     */
+    public boolean isDownloadNotes() {
+        return downloadNotes;
+    }
+
+    /**
+     * Check if GPS traces are downloaded to a layer that is not from the server
+     * @return {@code download.gps.mergeWithLocal}
+     */
+    public boolean isMergeGpsWithLocal() {
+        return mergeGpsWithLocal;
+    }
+
+    /**
+     * Get the strategy to use, the simple strategy if there is none by the configured name
+     * @return The strategy
+     */
+    public AbstractDownloadStrategy getStrategy() {
+        AbstractDownloadStrategy r = strategy;
+        if (r == null) {
+            r = DownloadPlugin.getStrategy(strategyName);
+            if (r == null)
+                r = DownloadPlugin.getStrategy("SimpleStrategy");
+            strategy = r;
+        }
+        return r;
+    }
+
+    /**
+     * Get how much is downloaded around the view
+     * @return The part of the size of the view that is added on every side
+     */
+    public double getExtraDownload() {
+        return extraDownload;
+    }
+
+    /**
+     * Get the maximum number of boxes to download for a view
+     * @return The number of boxes
+     */
+    public int getMaxAreas() {
+        return maxAreas;
+    }
+
+    /**
+     * Get the largest view that is downloaded
+     * @return The area in degrees^2
+     */
+    public double getMaxArea() {
+        return maxArea;
+    }
+
+    /**
+     * Check if the downloads are done in the background
+     * @return {@code true} if no progress is shown
+     */
+    public boolean isQuietDownload() {
+        return quietDownload;
+    }
+
+    /**
+     * Get the longest wait for the view to stop
+     * @return The time in milliseconds
+     */
+    public int getWaitTime() {
+        return waitTime;
+    }
+
+    /**
+     * Check if the downloads far from the view are cancelled when the view stops
+     * @return {@code true} to cancel them
+     */
+    public boolean isCancelStale() {
+        return cancelStale;
+    }
+
+    /**
+     * Get the time the box strategy may look for the best boxes
+     * @return The time in milliseconds
+     */
+    public long getSearchTime() {
+        return searchTime;
+    }
+
+    /**
+     * Get the number of partitions the box strategy may look at
+     * @return The number of partitions
+     */
+    public int getSearchNodes() {
+        return searchNodes;
+    }
+
+    /**
+     * Get the size of the tiles of the tile strategy
+     * @return The size in degrees
+     */
+    public double getTileSize() {
+        return tileSize;
+    }
+
+    /**
+     * Get how far the predictive strategy looks ahead
+     * @return The time in milliseconds
+     */
+    public int getLookahead() {
+        return lookahead;
+    }
+
+    /**
+     * Get the maximum number of boxes that wait for a download thread
+     * @return The number of boxes, at least one
+     */
+    public int getMaxQueue() {
+        return maxQueue;
+    }
+
+    /**
+     * Get the maximum number of downloads at the same time
+     * @return The number of threads, at least one
+     */
+    public int getMaxThreads() {
+        return maxThreads;
+    }
+
+    /**
+     * Check if each download runs on its own virtual thread
+     * @return {@code true} for virtual threads
+     */
+    public boolean isVirtualThreads() {
+        return virtualThreads;
+    }
+
+    /**
+     * Check if the views are written to a file
+     * @return {@code true} to record the views
+     */
+    public boolean isRecordViews() {
+        return recordViews;
+    }
+
+    /**
+     * Check if the responses of the server are kept in the {@link ResponseCache}
+     * @return {@code true} to use the cache
+     */
+    public boolean isCache() {
+        return cache;
+    }
+
+    /**
+     * Get how long a response in the cache is used
+     * @return The time in seconds
+     */
+    public long getCacheTtl() {
+        return cacheTtl;
+    }
+
+    /**
+     * Get how large the cache may grow
+     * @return The size in megabytes
+     */
+    public long getCacheSize() {
+        return cacheSize;
+    }
+
+    /**
+     * Get the number of requests per second the {@link RateLimiter} allows
+     * @param endpoint The host name of the server
+     * @return The rate of the server if it has one, else {@code plugin.continuos_download.requests_per_second}
+     */
+    public double getRequestsPerSecond(String endpoint) {
+        return serverRates.getOrDefault(REQUESTS_PER_SECOND + '.' + endpoint, requestsPerSecond);
+    }
+
+    /**
+     * Get the area per minute the {@link RateLimiter} allows
+     * @param endpoint The host name of the server
+     * @return The area in degrees^2 of the server if it has one, else {@code plugin.continuos_download.area_per_minute}
+     */
+    public double getAreaPerMinute(String endpoint) {
+        return serverRates.getOrDefault(AREA_PER_MINUTE + '.' + endpoint, areaPerMinute);
+    }
+}
@@ -0,0 +1,192 @@
+// License: GPL. See LICENSE file for details.
+package org.openstreetmap.josm.plugins.continuosDownload;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.openstreetmap.josm.data.Bounds;
+import org.openstreetmap.josm.data.DataSource;
+import org.openstreetmap.josm.data.osm.DataSet;
+import org.openstreetmap.josm.data.osm.DataSourceChangeEvent;
+import org.openstreetmap.josm.data.osm.DataSourceListener;
+import org.openstreetmap.josm.gui.MainApplication;
+import org.openstreetmap.josm.gui.layer.GpxLayer;
+import org.openstreetmap.josm.gui.layer.Layer;
+import org.openstreetmap.josm.gui.layer.LayerManager.LayerAddEvent;
+import org.openstreetmap.josm.gui.layer.LayerManager.LayerChangeListener;
+import org.openstreetmap.josm.gui.layer.LayerManager.LayerOrderChangeEvent;
+import org.openstreetmap.josm.gui.layer.LayerManager.LayerRemoveEvent;
+import org.openstreetmap.josm.gui.layer.NoteLayer;
+import org.openstreetmap.josm.gui.layer.OsmDataLayer;
+
+/**
+ * Keeps a {@link CoverageIndex} of the downloaded areas of each layer.
+ * <p>
+ * The index of a data layer is updated when data sources are added to its data set. GPX and note layers have no
+ * such event, so only the bounds that are new since the last time are added when their index is asked for. The
+ * index is dropped when the layer is removed.
+ */
+final class LayerCoverage implements DataSourceListener, LayerChangeListener {
+    private static final LayerCoverage INSTANCE = new LayerCoverage();
+
+    private final Map<Layer, Entry> entries = new ConcurrentHashMap<>();
+    private boolean listening;
+
+    private LayerCoverage() {
+        // Use the static methods
+    }
+
+    /**
+     * Get the coverage index of a layer
+     * @param layer The layer, a {@link OsmDataLayer}, {@link GpxLayer} or {@link NoteLayer}
+     * @return The index of the areas that have been downloaded to the layer
+     */
+    static CoverageIndex get(Layer layer) {
+        return INSTANCE.index(layer);
+    }
+
+    /**
+     * Drop all the indexes and stop listening for changes
+     */
+    static void clear() {
+        INSTANCE.removeAll();
+    }
+
+    private CoverageIndex index(Layer layer) {
+        synchronized (this) {
+            if (!listening) {
+                MainApplication.getLayerManager().addLayerChangeListener(this);
+                listening = true;
+            }
+        }
+        Entry entry = entries.computeIfAbsent(layer, l -> {
+            Entry e = new Entry(l);
+            if (e.data != null) {
+                e.data.addDataSourceListener(this);
+            }
+            return e;
+        });
+        entry.sync(layer);
+        return entry.index;
+    }
+
+    private synchronized void removeAll() {
+        if (listening) {
+            MainApplication.getLayerManager().removeLayerChangeListener(this);
+            listening = false;
+        }
+        for (Entry entry : entries.values()) {
+            if (entry.data != null) {
+                entry.data.removeDataSourceListener(this);
+            }
+        }
+        entries.clear();
+    }
+
+    @Override
+    public void dataSourceChange(DataSourceChangeEvent event) {
+        for (Entry entry : entries.values()) {
+            if (entry.data == event.getSource()) {
+                if (event.getRemoved().isEmpty()) {
+                    entry.added(event.getAdded());
+                } else {
+                    entry.reset();
+                }
+            }
+        }
+    }
+
+    @Override
+    public void layerAdded(LayerAddEvent e) {
+        // Indexes are created when they are needed
+    }
+
+    @Override
+    public void layerRemoving(LayerRemoveEvent e) {
+        Entry entry = entries.remove(e.getRemovedLayer());
+        if (entry != null && entry.data != null) {
+            entry.data.removeDataSourceListener(this);
+        }
+    }
+
+    @Override
+    public void layerOrderChanged(LayerOrderChangeEvent e) {
+        // Do nothing
+    }
+
+    /**
+     * Get the downloaded bounds of a layer
+     */
+    private static Collection<Bounds> getBounds(Layer layer) {
+        if (layer instanceof OsmDataLayer)
+            return ((OsmDataLayer) layer).data.getDataSourceBounds();
+        if (layer instanceof GpxLayer)
+            return ((GpxLayer) layer).data.getDataSourceBounds();
+        if (layer instanceof NoteLayer)
+            return ((NoteLayer) layer).getNoteData().getDataSourceBounds();
+        throw new IllegalArgumentException();
+    }
+
+    private static final class Entry {
+        final CoverageIndex index = new CoverageIndex();
+        /** The data set of a data layer, it tells us when data sources are added */
+        final DataSet data;
+        /** The number of bounds that have been added to the index, or -1 if it has to be rebuilt */
+        private int synced = -1;
+        /** The number of events, to tell if one came while the layer was read */
+        private int generation;
+
+        Entry(Layer layer) {
+            data = layer instanceof OsmDataLayer ? ((OsmDataLayer) layer).data : null;
+        }
+
+        synchronized void added(Collection<DataSource> sources) {
+            for (DataSource source : sources) {
+                index.add(BoxSet.toBox(source.bounds));
+            }
+            generation++;
+        }
+
+        synchronized void reset() {
+            synced = -1;
+            generation++;
+        }
+
+        void sync(Layer layer) {
+            int seen;
+            // A data layer only has to be read once, after that the events keep the index up to date
+            synchronized (this) {
+                if (data != null && synced >= 0)
+                    return;
+                seen = generation;
+            }
+            // Do not hold the lock while reading the layer, the events come from a thread that holds the data set lock
+            Collection<Bounds> bounds = getBounds(layer);
+            synchronized (this) {
+                if (bounds.size() < synced) {
+                    synced = -1;
+                }
+                if (synced < 0 && generation != seen) {
+                    // What was read may miss the bounds of the event, which are in the index. Do not clear it, and
+                    // read the layer again the next time.
+                    for (Bounds b : bounds) {
+                        index.add(BoxSet.toBox(b));
+                    }
+                    return;
+                }
+                if (synced < 0) {
+                    index.clear();
+                    synced = 0;
+                }
+                int i = 0;
+                for (Bounds b : bounds) {
+                    if (i++ >= synced) {
+                        index.add(BoxSet.toBox(b));
+                    }
+                }
+                synced = bounds.size();
+            }
+        }
+    }
+}
@@ -0,0 +1,315 @@
+// License: GPL. See LICENSE file for details.
+package org.openstreetmap.josm.plugins.continuosDownload;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.function.BiConsumer;
+
+import org.openstreetmap.josm.data.Bounds;
+import org.openstreetmap.josm.data.osm.BBox;
+import org.openstreetmap.josm.data.osm.DataSet;
+import org.openstreetmap.josm.data.osm.Node;
+import org.openstreetmap.josm.data.osm.OsmPrimitive;
+import org.openstreetmap.josm.data.osm.PrimitiveId;
+import org.openstreetmap.josm.data.osm.Relation;
+import org.openstreetmap.josm.data.osm.Way;
+import org.openstreetmap.josm.data.osm.event.AbstractDatasetChangedEvent;
+import org.openstreetmap.josm.data.osm.event.AbstractDatasetChangedEvent.DatasetEventType;
+import org.openstreetmap.josm.data.osm.event.DataSetListenerAdapter;
+import org.openstreetmap.josm.gui.MainApplication;
+import org.openstreetmap.josm.gui.io.UpdatePrimitivesTask;
+import org.openstreetmap.josm.gui.layer.OsmDataLayer;
+import org.openstreetmap.josm.gui.util.GuiHelper;
+import org.openstreetmap.josm.tools.Logging;
+
+/**
+ * Merges the downloaded data into the layer in batches.
+ * <p>
+ * JOSM merges the data of each download on its own, and each merge fires the events of the layer and repaints the
+ * map. When several boxes of a view are done at about the same time, their data is gathered for {@link #WINDOW},
+ * put together off the EDT, and merged into the layer at once. Boxes that come while a batch is merged go into the
+ * next one. The primitives that are gone from a downloaded box are updated from the server, like JOSM does.
+ * <p>
+ * Each download parses its response into a data set of its own on its own thread. Before the EDT is needed, the data
+ * of a batch is compared with the layer under its read lock, so the editing is not held up: the primitives that are
+ * gone are found, and the ways and nodes the layer already has in the same version are taken out of the batch, as
+ * merging them would change nothing. The EDT then merges what is left at once, which takes the write lock of the
+ * layer once for the batch, or only adds the downloaded area if nothing is left. If a primitive that was taken out
+ * leaves the layer before the EDT merges, the batch is put back together and merged as it came. Conflicts with the
+ * changes of the user are left to the merger of JOSM.
+ */
+final class MergeBatcher {
+    /** How long the data of a box may wait for other boxes, in nanoseconds */
+    static final long WINDOW = TimeUnit.MILLISECONDS.toNanos(50);
+    /** The merges wait for the EDT, they run on a thread of their own so the fetches of the next view do not wait */
+    private static final MergeBatcher INSTANCE = new MergeBatcher(
+            new DownloadScheduler.ExecutorAlarm("continuous-download-merge"), MergeBatcher::merge);
+
+    private final DownloadScheduler.Alarm alarm;
+    private final BiConsumer<OsmDataLayer, List<Part>> merger;
+    /** The data waiting to be merged, by layer */
+    private Map<OsmDataLayer, List<Part>> batch = new LinkedHashMap<>();
+
+    /**
+     * Constructs a new {@code MergeBatcher}.
+     * @param alarm Runs the merges
+     * @param merger Merges the data of a batch into a layer
+     */
+    MergeBatcher(DownloadScheduler.Alarm alarm, BiConsumer<OsmDataLayer, List<Part>> merger) {
+        this.alarm = alarm;
+        this.merger = merger;
+    }
+
+    /**
+     * Get the batcher of the plugin
+     * @return The batcher
+     */
+    static MergeBatcher get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Merge downloaded data into a layer with the next batch
+     * @param layer The layer
+     * @param data The data, it must not be used anymore
+     * @param bounds The area that was downloaded
+     * @return Completes when the data is in the layer, or could not be merged
+     */
+    CompletableFuture<Void> add(OsmDataLayer layer, DataSet data, Bounds bounds) {
+        Part part = new Part(data, bounds);
+        synchronized (this) {
+            if (batch.isEmpty() && !alarm.schedule(WINDOW, this::flush)) {
+                // The plugin is being destroyed, nothing would merge the batch
+                part.merged.cancel(false);
+                return part.merged;
+            }
+            batch.computeIfAbsent(layer, k -> new ArrayList<>()).add(part);
+        }
+        return part.merged;
+    }
+
+    /**
+     * Drop the data that waits to be merged, call this when the plugin is destroyed. The futures of the boxes are
+     * cancelled, so they are not pending anymore.
+     */
+    void stop() {
+        Map<OsmDataLayer, List<Part>> parts;
+        synchronized (this) {
+            alarm.cancel();
+            parts = batch;
+            batch = new LinkedHashMap<>();
+        }
+        parts.values().forEach(l -> l.forEach(p -> p.merged.cancel(false)));
+    }
+
+    /**
+     * Merge what has been gathered
+     */
+    void flush() {
+        Map<OsmDataLayer, List<Part>> parts;
+        synchronized (this) {
+            parts = batch;
+            batch = new LinkedHashMap<>();
+        }
+        for (Map.Entry<OsmDataLayer, List<Part>> e : parts.entrySet()) {
+            try {
+                merger.accept(e.getKey(), e.getValue());
+            } catch (RuntimeException ex) {
+                Logging.error(ex);
+            } finally {
+                e.getValue().forEach(p -> p.merged.complete(null));
+            }
+        }
+    }
+
+    /**
+     * Merge the data of a batch into a layer
+     */
+    private static void merge(OsmDataLayer layer, List<Part> parts) {
+        // The data of the boxes is not in a layer yet, it can be put together before the EDT is needed
+        DataSet all = parts.get(0).data;
+        for (Part part : parts.subList(1, parts.size())) {
+            all.mergeFrom(part.data);
+        }
+        DataSet ds = layer.getDataSet();
+        // From now on, so nothing that leaves the layer after it has been looked at is missed
+        Removals removals = new Removals();
+        DataSetListenerAdapter listener = new DataSetListenerAdapter(removals);
+        ds.addDataSetListener(listener);
+        try {
+            Set<OsmPrimitive> toUpdate = new LinkedHashSet<>();
+            List<OsmPrimitive> known;
+            Lock lock = ds.getReadLock();
+            lock.lock();
+            try {
+                for (Part part : parts) {
+                    toUpdate.addAll(gone(ds, all, part.bounds));
+                }
+                known = known(ds, all);
+            } finally {
+                lock.unlock();
+            }
+            for (OsmPrimitive p : known) {
+                all.removePrimitive(p);
+            }
+            GuiHelper.runInEDTAndWait(() -> {
+                // The layer may have been removed while the boxes were downloaded
+                if (!MainApplication.getLayerManager().containsLayer(layer))
+                    return;
+                boolean skipped = !known.isEmpty();
+                if (skipped && removals.any(known)) {
+                    // The nodes before the ways that use them
+                    for (int i = known.size() - 1; i >= 0; i--) {
+                        all.addPrimitive(known.get(i));
+                    }
+                    skipped = false;
+                    toUpdate.clear();
+                    for (Part part : parts) {
+                        toUpdate.addAll(gone(ds, all, part.bounds));
+                    }
+                }
+                boolean same = skipped && all.allPrimitives().isEmpty();
+                if (same)
+                    ds.addDataSources(all.getDataSources());
+                else
+                    layer.mergeFrom(all);
+                layer.onPostDownloadFromServer();
+                if (!toUpdate.isEmpty())
+                    MainApplication.worker.execute(new UpdatePrimitivesTask(layer, toUpdate));
+                DownloadMetrics.get().merged(parts.size(), same);
+            });
+        } finally {
+            ds.removeDataSetListener(listener);
+        }
+    }
+
+    /**
+     * Find the ways and nodes of downloaded data that a layer already has in the same version, merging them would
+     * change nothing. The relations are always merged, and so are their members and the nodes of the ways that are
+     * merged.
+     * @param ds The data of the layer
+     * @param downloaded The data that was downloaded
+     * @return The primitives that can be left out, the ways before the nodes
+     */
+    static List<OsmPrimitive> known(DataSet ds, DataSet downloaded) {
+        Set<OsmPrimitive> needed = new HashSet<>();
+        for (Relation r : downloaded.getRelations()) {
+            needed.addAll(r.getMemberPrimitivesList());
+        }
+        List<OsmPrimitive> r = new ArrayList<>();
+        for (Way w : downloaded.getWays()) {
+            if (!needed.contains(w) && has(ds, w))
+                r.add(w);
+            else
+                needed.addAll(w.getNodes());
+        }
+        for (Node n : downloaded.getNodes()) {
+            if (!needed.contains(n) && has(ds, n))
+                r.add(n);
+        }
+        return r;
+    }
+
+    private static boolean has(DataSet ds, OsmPrimitive p) {
+        OsmPrimitive q = ds.getPrimitiveById(p);
+        // An incomplete primitive, like the member of a relation, brings nothing
+        return q != null && (p.isIncomplete() || (!q.isIncomplete() && q.getVersion() == p.getVersion()));
+    }
+
+    /**
+     * Find the primitives of a layer in a downloaded area that the server did not send, they may have been deleted
+     * @param ds The data of the layer
+     * @param downloaded The data that was downloaded
+     * @param bounds The downloaded area
+     * @return The primitives to update
+     */
+    static Collection<OsmPrimitive> gone(DataSet ds, DataSet downloaded, Bounds bounds) {
+        BBox bbox = bounds.toBBox();
+        List<OsmPrimitive> r = new ArrayList<>();
+        for (Node n : ds.searchNodes(bbox)) {
+            if (!n.isNew() && !n.isIncomplete() && downloaded.getPrimitiveById(n) == null)
+                r.add(n);
+        }
+        // The server sends the ways with a node in the area
+        for (Way w : ds.searchWays(bbox)) {
+            if (!w.isNew() && !w.isIncomplete() && downloaded.getPrimitiveById(w) == null && inside(w, bounds))
+                r.add(w);
+        }
+        // And the relations with one of those nodes or ways as a member
+        for (Relation rel : ds.searchRelations(bbox)) {
+            if (!rel.isNew() && !rel.isIncomplete() && downloaded.getPrimitiveById(rel) == null
+                    && rel.getMemberPrimitivesList().stream().anyMatch(m -> m instanceof Node
+                            ? inside((Node) m, bounds) : m instanceof Way && inside((Way) m, bounds)))
+                r.add(rel);
+        }
+        return r;
+    }
+
+    private static boolean inside(Node n, Bounds bounds) {
+        return n.isLatLonKnown() && bounds.contains(n.getCoor());
+    }
+
+    private static boolean inside(Way w, Bounds bounds) {
+        return w.getNodes().stream().anyMatch(n -> inside(n, bounds));
+    }
+
+    /**
+     * Remembers the primitives that leave a layer, or that all of it changed, while a batch waits for the EDT
+     */
+    static final class Removals implements DataSetListenerAdapter.Listener {
+        private final Set<PrimitiveId> removed = ConcurrentHashMap.newKeySet();
+        private volatile boolean changed;
+
+        @Override
+        public void processDatasetEvent(AbstractDatasetChangedEvent event) {
+            if (event.getType() == DatasetEventType.DATA_CHANGED) {
+                changed = true;
+            } else if (event.getType() == DatasetEventType.PRIMITIVES_REMOVED) {
+                for (OsmPrimitive p : event.getPrimitives()) {
+                    removed.add(p.getPrimitiveId());
+                }
+            }
+        }
+
+        /**
+         * Check if some primitives may have left the layer
+         * @param primitives The primitives, of the layer or of another data set
+         * @return {@code true} if one of them has been removed, or if it is not known
+         */
+        boolean any(Collection<OsmPrimitive> primitives) {
+            if (changed)
+                return true;
+            if (removed.isEmpty())
+                return false;
+            for (OsmPrimitive p : primitives) {
+                if (removed.contains(p.getPrimitiveId()))
+                    return true;
+            }
+            return false;
+        }
+    }
+
+    /**
+     * The data of a box that waits to be merged
+     */
+    static final class Part {
+        final DataSet data;
+        final Bounds bounds;
+        final CompletableFuture<Void> merged = new CompletableFuture<>();
+
+        Part(DataSet data, Bounds bounds) {
+            this.data = data;
+            this.bounds = bounds;
+        }
+    }
+}
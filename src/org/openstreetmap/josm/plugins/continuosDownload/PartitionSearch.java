@@ -0,0 +1,405 @@
+// License: GPL. See LICENSE file for details.
+package org.openstreetmap.josm.plugins.continuosDownload;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.concurrent.TimeUnit;
+
+import org.openstreetmap.josm.plugins.continuosDownload.BoxStrategy.Partition;
+import org.openstreetmap.josm.plugins.continuosDownload.BoxStrategy.SearchStats;
+
+/**
+ * The best-first search behind {@link BoxStrategy#optimalPart}.
+ * <p>
+ * Every node in the search adds the next box to one part of its parent. A node
+ * only stores its parent, the part it changed, its number of parts and boxes
+ * and the area of its parts, 24 bytes in primitive arrays. The arrays are
+ * chunks of a fixed size, so they are never copied when the search grows, and
+ * the chunks of the first {@link #RETAIN} nodes are kept between searches in a
+ * small pool, which the plugin empties when it is destroyed. The
+ * parts of a node are only built when the node is expanded, by following the
+ * parents back to the root.
+ * <p>
+ * What is allocated for every search, like the sorted boxes and the greedy
+ * partition, is the most of what a small search allocates. A search that grows
+ * past the retained chunks allocates its nodes once. In
+ * {@code PartitionBenchmark} this comes to 17, 63 and 150 bytes for each
+ * expanded node, against 740, 745 and 1650 for a partition of
+ * {@code ArrayList<Box>}.
+ */
+final class PartitionSearch {
+    /** Keep the chunks of this many nodes between searches */
+    private static final int RETAIN = 1 << 16;
+    /** The nodes in a chunk, 2^SHIFT */
+    private static final int SHIFT = 12;
+    private static final int MASK = (1 << SHIFT) - 1;
+    /** Keep at most this many searches that are not in use, about one for each thread that plans at once */
+    private static final int POOL = 2;
+    /** The searches that are not in use, not one for each thread so nothing is left on the threads of JOSM */
+    private static final Deque<PartitionSearch> FREE = new ArrayDeque<>();
+
+    // The nodes in chunks, node c is at [c >>> SHIFT][c & MASK]. Node 0 is the empty partition.
+    private int[][] parent = new int[0][];
+    private int[][] part = new int[0][]; // The part the last box was added to
+    private int[][] parts = new int[0][]; // The number of parts
+    private int[][] depth = new int[0][]; // The number of boxes in the partition
+    private double[][] area = new double[0][]; // The area of the parts
+    private int chunks;
+    private int nodes;
+
+    // A binary heap of node numbers, the best partition first
+    private int[] heap;
+    private int queued;
+
+    // The boxes to partition, (minx, miny, maxx, maxy) for each box, largest first
+    private long[] boxes;
+    // The area of the first i boxes, the area a node with i boxes encloses
+    private double[] enclosing;
+    // The parts of the node that is being expanded, and the path to it
+    private long[] scratch = new long[64];
+    private int[] path = new int[64];
+
+    private PartitionSearch() {
+        heap = new int[256];
+    }
+
+    /**
+     * Find the best partition of a set of boxes
+     * @see BoxStrategy#optimalPart(int, Collection, long, int, SearchStats)
+     */
+    static BoxSet search(int maxParts, BoxSet set, long timeBudget, int nodeBudget, SearchStats stats) {
+        PartitionSearch search = take();
+        try {
+            return BoxSet.wrap(search.run(Math.max(1, maxParts), set, timeBudget, nodeBudget, stats).box);
+        } finally {
+            search.reset();
+            give(search);
+        }
+    }
+
+    private static synchronized PartitionSearch take() {
+        PartitionSearch search = FREE.poll();
+        return search != null ? search : new PartitionSearch();
+    }
+
+    private static synchronized void give(PartitionSearch search) {
+        if (FREE.size() < POOL)
+            FREE.push(search);
+    }
+
+    /**
+     * Drop the searches that are kept for reuse, call this when the plugin is destroyed
+     */
+    static synchronized void clear() {
+        FREE.clear();
+    }
+
+    private void reset() {
+        int keep = RETAIN >>> SHIFT;
+        if (chunks > keep) {
+            parent = Arrays.copyOf(parent, keep);
+            part = Arrays.copyOf(part, keep);
+            parts = Arrays.copyOf(parts, keep);
+            depth = Arrays.copyOf(depth, keep);
+            area = Arrays.copyOf(area, keep);
+            chunks = keep;
+        }
+        if (heap.length > RETAIN) {
+            heap = new int[RETAIN];
+        }
+        nodes = 0;
+        queued = 0;
+        boxes = null;
+        enclosing = null;
+    }
+
+    private Partition run(int maxParts, BoxSet set, long timeBudget, int nodeBudget, SearchStats stats) {
+        long start = System.nanoTime();
+        long budget = TimeUnit.MILLISECONDS.toNanos(timeBudget);
+
+        // Sort the set from largest to smalest, there is a better chance of
+        // getting good pactitions if you start with the biggest boxes because
+        // the smaller boxes have little impact on the overall score.
+        BoxSet sorted = new BoxSet(set.size());
+        sorted.addAll(set);
+        sorted.sortBySize();
+        int n = sorted.size();
+        boxes = new long[n * 4];
+        enclosing = new double[n + 1];
+        for (int i = 0; i < n; i++) {
+            boxes[i * 4] = sorted.minX(i);
+            boxes[i * 4 + 1] = sorted.minY(i);
+            boxes[i * 4 + 2] = sorted.maxX(i);
+            boxes[i * 4 + 3] = sorted.maxY(i);
+            enclosing[i + 1] = enclosing[i] + sorted.size(i);
+        }
+        double total = enclosing[n];
+        if (scratch.length < maxParts * 4) {
+            scratch = new long[maxParts * 4];
+        }
+        if (path.length < n + 1) {
+            path = new int[n + 1];
+        }
+
+        // Start with a greedy partition, so there is always something to
+        // return and something to prune against.
+        Partition best = greedy(maxParts, n);
+        // The best complete partition the search itself has found
+        boolean found = false;
+        double foundExtra = 0;
+        int foundParts = 0;
+
+        push(node(-1, -1, 0, 0, 0));
+        stats.queued++;
+
+        // Find the best partition this far and add another box to it until the
+        // best partition is a partition of the complete set.
+        while (queued > 0) {
+            if (stats.expanded >= nodeBudget || System.nanoTime() - start > budget) {
+                stats.exhausted = true;
+                break;
+            }
+            int a = pop();
+            int ad = depth(a);
+            double aa = area(a);
+            // Stop when the best complete partition the search has found
+            // would have been taken from the queue before this one
+            if (found && compare(foundExtra, n, foundParts, aa - enclosing[ad], ad, parts(a)) <= 0) {
+                break;
+            }
+            if (!canImprove(aa - total, parts(a), best)) {
+                stats.pruned++;
+                continue;
+            }
+            stats.expanded++;
+
+            int count = build(a);
+            int next = ad * 4;
+            long nextSize = size(boxes, next);
+            double enclosed = enclosing[ad + 1];
+
+            // Add the next box to every part in the partition and put those
+            // in the queue
+            for (int i = 0; i < maxParts && i <= count; i++) {
+                double childArea;
+                int childParts;
+                if (i == count) {
+                    childArea = aa + nextSize;
+                    childParts = count + 1;
+                } else {
+                    childArea = aa - size(scratch, i * 4) + unionSize(scratch, i * 4, boxes, next);
+                    childParts = count;
+                }
+                double childExtra = childArea - enclosed;
+                if (ad + 1 == n) {
+                    if (!found || compare(childExtra, n, childParts, foundExtra, n, foundParts) < 0) {
+                        found = true;
+                        foundExtra = childExtra;
+                        foundParts = childParts;
+                    }
+                    if (compare(childExtra, n, childParts, best.extra(), n, best.parts()) < 0) {
+                        best = partition(count, i, next, n, enclosed, childArea);
+                    }
+                }
+                if (canImprove(childArea - total, childParts, best)) {
+                    push(node(a, i, childParts, ad + 1, childArea));
+                    stats.queued++;
+                } else {
+                    stats.pruned++;
+                }
+            }
+        }
+
+        stats.elapsed = System.nanoTime() - start;
+        return best;
+    }
+
+    /**
+     * Check if any completion of a node may be better than the best complete partition found so far.
+     * Parts only grow when boxes are added, so the area of the parts minus the area of all the boxes is
+     * a lower bound for the extra area of any completion.
+     */
+    private static boolean canImprove(double bound, int count, Partition best) {
+        return bound < best.extra() || (bound == best.extra() && count < best.parts());
+    }
+
+    /**
+     * The order of the search, the same as {@link Partition#compareTo}
+     */
+    private static int compare(double extraA, int depthA, int partsA, double extraB, int depthB, int partsB) {
+        // Get the partition that downloads the least amount of extra area
+        int c = Double.compare(extraA, extraB);
+        if (c != 0)
+            return c;
+        // Try to get to the end faster by getting the partition over the most boxes
+        c = Integer.compare(depthB, depthA);
+        if (c != 0)
+            return c;
+        // Prefer a partition that downloads fewest boxes
+        return Integer.compare(partsA, partsB);
+    }
+
+    private int compare(int a, int b) {
+        int da = depth(a);
+        int db = depth(b);
+        return compare(area(a) - enclosing[da], da, parts(a), area(b) - enclosing[db], db, parts(b));
+    }
+
+    /**
+     * Add the boxes one by one to the part where it adds the least extra area.
+     */
+    private Partition greedy(int maxParts, int n) {
+        Partition r = new Partition();
+        for (int b = 0; b < n * 4; b += 4) {
+            Partition best = null;
+            for (int i = 0; i < maxParts && i <= r.parts(); i++) {
+                Partition p = r.add(boxes[b], boxes[b + 1], boxes[b + 2], boxes[b + 3], i);
+                if (best == null || p.compareTo(best) < 0) {
+                    best = p;
+                }
+            }
+            r = best;
+        }
+        return r;
+    }
+
+    private int node(int p, int i, int count, int d, double a) {
+        int c = nodes >>> SHIFT;
+        int o = nodes & MASK;
+        if (c == chunks) {
+            addChunk();
+        }
+        parent[c][o] = p;
+        part[c][o] = i;
+        parts[c][o] = count;
+        depth[c][o] = d;
+        area[c][o] = a;
+        return nodes++;
+    }
+
+    private void addChunk() {
+        if (chunks == parent.length) {
+            int capacity = Math.max(4, chunks * 2);
+            parent = Arrays.copyOf(parent, capacity);
+            part = Arrays.copyOf(part, capacity);
+            parts = Arrays.copyOf(parts, capacity);
+            depth = Arrays.copyOf(depth, capacity);
+            area = Arrays.copyOf(area, capacity);
+        }
+        parent[chunks] = new int[MASK + 1];
+        part[chunks] = new int[MASK + 1];
+        parts[chunks] = new int[MASK + 1];
+        depth[chunks] = new int[MASK + 1];
+        area[chunks] = new double[MASK + 1];
+        chunks++;
+    }
+
+    private int parent(int node) {
+        return parent[node >>> SHIFT][node & MASK];
+    }
+
+    private int part(int node) {
+        return part[node >>> SHIFT][node & MASK];
+    }
+
+    private int parts(int node) {
+        return parts[node >>> SHIFT][node & MASK];
+    }
+
+    private int depth(int node) {
+        return depth[node >>> SHIFT][node & MASK];
+    }
+
+    private double area(int node) {
+        return area[node >>> SHIFT][node & MASK];
+    }
+
+    /**
+     * Build the parts of a node in {@link #scratch}
+     * @return the number of parts
+     */
+    private int build(int node) {
+        int length = 0;
+        for (int c = node; parent(c) >= 0; c = parent(c)) {
+            path[length++] = c;
+        }
+        int count = 0;
+        for (int k = length - 1; k >= 0; k--) {
+            int c = path[k];
+            int i = part(c);
+            int o = i * 4;
+            int b = (depth(c) - 1) * 4;
+            if (i == count) {
+                System.arraycopy(boxes, b, scratch, o, 4);
+                count++;
+            } else {
+                scratch[o] = Math.min(scratch[o], boxes[b]);
+                scratch[o + 1] = Math.min(scratch[o + 1], boxes[b + 1]);
+                scratch[o + 2] = Math.max(scratch[o + 2], boxes[b + 2]);
+                scratch[o + 3] = Math.max(scratch[o + 3], boxes[b + 3]);
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Create a partition from the parts in {@link #scratch} with box {@code next} added to part {@code i}
+     */
+    private Partition partition(int count, int i, int next, int size, double enclosed, double a) {
+        long[] r = Arrays.copyOf(scratch, Math.max(count, i + 1) * 4);
+        int o = i * 4;
+        if (i == count) {
+            System.arraycopy(boxes, next, r, o, 4);
+        } else {
+            r[o] = Math.min(r[o], boxes[next]);
+            r[o + 1] = Math.min(r[o + 1], boxes[next + 1]);
+            r[o + 2] = Math.max(r[o + 2], boxes[next + 2]);
+            r[o + 3] = Math.max(r[o + 3], boxes[next + 3]);
+        }
+        return new Partition(r, size, enclosed, a);
+    }
+
+    private static long size(long[] b, int o) {
+        return (b[o + 2] - b[o]) * (b[o + 3] - b[o + 1]);
+    }
+
+    private static long unionSize(long[] a, int o, long[] b, int p) {
+        return (Math.max(a[o + 2], b[p + 2]) - Math.min(a[o], b[p]))
+                * (Math.max(a[o + 3], b[p + 3]) - Math.min(a[o + 1], b[p + 1]));
+    }
+
+    private void push(int node) {
+        if (queued == heap.length) {
+            heap = Arrays.copyOf(heap, queued * 2);
+        }
+        int i = queued++;
+        while (i > 0) {
+            int p = (i - 1) >>> 1;
+            if (compare(node, heap[p]) >= 0)
+                break;
+            heap[i] = heap[p];
+            i = p;
+        }
+        heap[i] = node;
+    }
+
+    private int pop() {
+        int r = heap[0];
+        int last = heap[--queued];
+        int i = 0;
+        int half = queued >>> 1;
+        while (i < half) {
+            int c = 2 * i + 1;
+            if (c + 1 < queued && compare(heap[c + 1], heap[c]) < 0)
+                c++;
+            if (compare(last, heap[c]) <= 0)
+                break;
+            heap[i] = heap[c];
+            i = c;
+        }
+        heap[i] = last;
+        return r;
+    }
+}
@@ -0,0 +1,113 @@
+// License: GPL. See LICENSE file for details.
+package org.openstreetmap.josm.plugins.continuosDownload;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
+
+import org.openstreetmap.josm.actions.downloadtasks.AbstractDownloadTask;
+import org.openstreetmap.josm.tools.Logging;
+
+/**
+ * The boxes that are being downloaded, for each type of layer. A box is added when its download is started and
+ * removed when the downloaded data has been handled, so an area is not downloaded again while it is on its way.
+ */
+final class PendingDownloads {
+    private static final Map<Class<?>, List<Download>> PENDING = new HashMap<>();
+
+    private PendingDownloads() {
+        // Hide the default constructor
+    }
+
+    /**
+     * Add a box that is being downloaded
+     * @param klass The type of layer it is downloaded to
+     * @param box The box
+     * @param task The task that downloads it
+     * @param future The future of the download
+     */
+    static synchronized void add(Class<?> klass, Box box, AbstractDownloadTask<?> task, Future<?> future) {
+        PENDING.computeIfAbsent(klass, k -> new ArrayList<>()).add(new Download(box, task, future));
+    }
+
+    /**
+     * Remove a box when it is done, whether the download worked or not
+     * @param klass The type of layer it was downloaded to
+     * @param box The box given to {@link #add}
+     */
+    static synchronized void remove(Class<?> klass, Box box) {
+        List<Download> downloads = PENDING.get(klass);
+        if (downloads != null) {
+            // The same box may be pending twice, only remove this one
+            downloads.removeIf(d -> d.box == box);
+        }
+    }
+
+    /**
+     * Get the boxes being downloaded near a box
+     * @param klass The type of layer
+     * @param box The box
+     * @return The parts of the pending boxes inside the box
+     */
+    static synchronized BoxSet get(Class<?> klass, Box box) {
+        BoxSet r = new BoxSet();
+        List<Download> downloads = PENDING.get(klass);
+        if (downloads != null) {
+            for (Download d : downloads) {
+                Box i = d.box.intersection(box);
+                if (i.valid()) {
+                    r.add(i);
+                }
+            }
+        }
+        return r;
+    }
+
+    /**
+     * Cancel the downloads that have no part in a box, whether they are waiting for a thread or running. A cancelled
+     * download is no longer pending, so its area is asked for again if it is needed later.
+     * @param box The box to keep the downloads of, usually the extended view
+     * @return The number of cancelled downloads
+     */
+    static int cancelOutside(Box box) {
+        List<Download> stale = new ArrayList<>();
+        synchronized (PendingDownloads.class) {
+            for (List<Download> downloads : PENDING.values()) {
+                downloads.removeIf(d -> {
+                    if (d.box.intersection(box).valid() || d.future.isDone())
+                        return false;
+                    stale.add(d);
+                    return true;
+                });
+            }
+        }
+        // Cancelling a running task closes its connection, do not hold the lock for that
+        for (Download d : stale) {
+            Logging.debug("Continuous download: cancel {0}", d.box);
+            d.task.cancel();
+            d.future.cancel(true);
+        }
+        return stale.size();
+    }
+
+    /**
+     * Forget all the pending boxes
+     */
+    static synchronized void clear() {
+        PENDING.clear();
+    }
+
+    private static final class Download {
+        final Box box;
+        final AbstractDownloadTask<?> task;
+        final Future<?> future;
+
+        Download(Box box, AbstractDownloadTask<?> task, Future<?> future) {
+            this.box = box;
+            this.task = task;
+            this.future = future;
+        }
+    }
+}
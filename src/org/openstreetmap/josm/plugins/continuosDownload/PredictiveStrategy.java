@@ -0,0 +1,115 @@
+// License: GPL. See LICENSE file for details.
+package org.openstreetmap.josm.plugins.continuosDownload;
+
+import org.openstreetmap.josm.data.Bounds;
+import org.openstreetmap.josm.data.coor.LatLon;
+
+/**
+ * A {@link BoxStrategy} that looks at how the user pans. While the view keeps moving in the same direction, it fetches
+ * the area the view is moving to before the view stops, and it extends the area to fetch further in the direction of
+ * the movement than behind it.
+ */
+public class PredictiveStrategy extends BoxStrategy {
+
+    /** The default time in milliseconds to look ahead */
+    public static final int DEFAULT_LOOKAHEAD = 1000;
+    /** Only the movement in this many milliseconds is used for the velocity */
+    private static final long WINDOW = 1000;
+    /** The view sizes of two samples differ by less than this if the user is panning and not zooming */
+    private static final double ZOOM_TOLERANCE = 0.2;
+    private static final int SAMPLES = 16;
+
+    // The last centers of the view, in degrees, and when the view was there, in milliseconds
+    private final double[] lon = new double[SAMPLES];
+    private final double[] lat = new double[SAMPLES];
+    private final long[] time = new long[SAMPLES];
+    private int first;
+    private int count;
+    private double width;
+    private double height;
+    private long lastPrefetch;
+
+    @Override
+    public Bounds viewChanged(Bounds bbox) {
+        return viewChanged(bbox, now());
+    }
+
+    synchronized Bounds viewChanged(Bounds bbox, long now) {
+        LatLon min = bbox.getMin();
+        LatLon max = bbox.getMax();
+        double w = max.lon() - min.lon();
+        double h = max.lat() - min.lat();
+        // A zoom is not a pan, start over
+        if (Math.abs(w - width) > width * ZOOM_TOLERANCE || Math.abs(h - height) > height * ZOOM_TOLERANCE) {
+            count = 0;
+        }
+        width = w;
+        height = h;
+
+        int i = (first + count) % SAMPLES;
+        if (count == SAMPLES) {
+            first = (first + 1) % SAMPLES;
+        } else {
+            count++;
+        }
+        lon[i] = (min.lon() + max.lon()) / 2;
+        lat[i] = (min.lat() + max.lat()) / 2;
+        time[i] = now;
+
+        DownloadSettings settings = DownloadSettings.get();
+        double[] shift = shift(now, settings);
+        if (shift == null || now - lastPrefetch < settings.getWaitTime())
+            return null;
+        lastPrefetch = now;
+        return new Bounds(min.lat() + shift[1], min.lon() + shift[0], max.lat() + shift[1], max.lon() + shift[0]);
+    }
+
+    @Override
+    protected Bounds getFetchBounds(Bounds bbox, DownloadSettings settings) {
+        Bounds extended = super.getFetchBounds(bbox, settings);
+        double[] shift;
+        synchronized (this) {
+            shift = shift(now(), settings);
+        }
+        if (shift == null)
+            return extended;
+        LatLon min = extended.getMin();
+        LatLon max = extended.getMax();
+        return new Bounds(min.lat() + Math.min(0, shift[1]), min.lon() + Math.min(0, shift[0]),
+                max.lat() + Math.max(0, shift[1]), max.lon() + Math.max(0, shift[0]));
+    }
+
+    /**
+     * Get how far the view will move in the look ahead time if it keeps going the way it has been
+     * @return the movement in degrees, longitude then latitude, or {@code null} if the view is not moving
+     */
+    private double[] shift(long now, DownloadSettings settings) {
+        // Use the samples in the window
+        int n = count;
+        int start = first;
+        while (n > 0 && now - time[start] > WINDOW) {
+            start = (start + 1) % SAMPLES;
+            n--;
+        }
+        if (n < 3)
+            return null;
+        int end = (start + n - 1) % SAMPLES;
+        // A user that has stopped is not moving
+        if (now - time[end] > WINDOW / 2)
+            return null;
+        long dt = time[end] - time[start];
+        if (dt <= 0)
+            return null;
+        long lookahead = settings.getLookahead();
+        // Do not go further than one view ahead, one fast flick should not download a large area
+        double dx = clamp((lon[end] - lon[start]) / dt * lookahead, width);
+        double dy = clamp((lat[end] - lat[start]) / dt * lookahead, height);
+        if (Math.abs(dx) < width * 0.05 && Math.abs(dy) < height * 0.05)
+            return null;
+        return new double[] {dx, dy};
+    }
+
+    private static double clamp(double v, double limit) {
+        return Math.max(-limit, Math.min(limit, v));
+    }
+}
@@ -0,0 +1,155 @@
+// License: GPL. See LICENSE file for details.
+package org.openstreetmap.josm.plugins.continuosDownload;
+
+import static org.openstreetmap.josm.tools.I18n.tr;
+
+import java.net.URI;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+import org.openstreetmap.josm.io.OsmApi;
+
+/**
+ * Keeps the downloads under the limits of the server, before the server has to refuse them.
+ * <p>
+ * There are two token buckets for each server: one for the number of requests per second and one for the area in
+ * degrees^2 per minute. A bucket holds at most the tokens of one second or one minute, so a short burst is allowed
+ * after a pause, and the rate is kept over time. The rates are {@code plugin.continuos_download.requests_per_second}
+ * and {@code plugin.continuos_download.area_per_minute}, a server can have its own rates by adding its host name to
+ * the key, like {@code plugin.continuos_download.requests_per_second.api.openstreetmap.org}. A rate of 0 turns the
+ * bucket off. They are read from the {@link DownloadSettings}, not looked up for every download.
+ */
+final class RateLimiter {
+
+    /** The default number of requests per second */
+    static final double DEFAULT_REQUESTS_PER_SECOND = 2;
+    /** The default area in degrees^2 per minute, off: the OSM API limits the area of a request, not of a minute */
+    static final double DEFAULT_AREA_PER_MINUTE = 0;
+
+    private final LongSupplier clock;
+    private final Supplier<String> endpoint;
+    private final Map<String, Bucket[]> buckets = new HashMap<>();
+
+    /**
+     * Constructs a new {@code RateLimiter}.
+     * @param clock The time in nanoseconds
+     * @param endpoint The host name of the current server, see {@link #endpoint()}
+     */
+    RateLimiter(LongSupplier clock, Supplier<String> endpoint) {
+        this.clock = clock;
+        this.endpoint = endpoint;
+    }
+
+    /**
+     * Take the tokens for a download from the current server
+     * @param area The area of the download in degrees^2
+     * @return 0 if the download may start now, else the nanoseconds to wait before trying again
+     */
+    long acquire(double area) {
+        return acquire(endpoint.get(), area);
+    }
+
+    /**
+     * Take the tokens for a download
+     * @param endpoint The host name of the server
+     * @param area The area of the download in degrees^2
+     * @return 0 if the download may start now, else the nanoseconds to wait before trying again
+     */
+    long acquire(String endpoint, double area) {
+        // The settings may have to be read again, not while other threads wait for the buckets
+        DownloadSettings settings = DownloadSettings.get();
+        synchronized (this) {
+            long now = clock.getAsLong();
+            Bucket[] b = buckets(endpoint, now, settings);
+            long wait = Math.max(b[0].delay(1), b[1].delay(area));
+            if (wait == 0) {
+                b[0].take(1);
+                b[1].take(area);
+            }
+            return wait;
+        }
+    }
+
+    /**
+     * Get the state of the buckets of the current server, to show to the user
+     * @return The tokens that are left and the rates
+     */
+    String getState() {
+        String host = endpoint.get();
+        DownloadSettings settings = DownloadSettings.get();
+        synchronized (this) {
+            Bucket[] b = buckets(host, clock.getAsLong(), settings);
+            return tr("{0}: {1} requests per second, {2} degrees^2 per minute", host, b[0].state("%.1f"),
+                    b[1].state("%.3f"));
+        }
+    }
+
+    /**
+     * Get the host name of the current server
+     * @return The host name
+     */
+    static String endpoint() {
+        String url = OsmApi.getOsmApi().getServerUrl();
+        try {
+            String host = URI.create(url).getHost();
+            return host != null ? host : url;
+        } catch (IllegalArgumentException e) {
+            return url;
+        }
+    }
+
+    private Bucket[] buckets(String endpoint, long now, DownloadSettings settings) {
+        Bucket[] b = buckets.computeIfAbsent(endpoint, e -> new Bucket[] {new Bucket(now), new Bucket(now)});
+        b[0].refill(now, settings.getRequestsPerSecond(endpoint), TimeUnit.SECONDS);
+        b[1].refill(now, settings.getAreaPerMinute(endpoint), TimeUnit.MINUTES);
+        return b;
+    }
+
+    /**
+     * A token bucket, it holds at most the tokens of one period
+     */
+    private static final class Bucket {
+        double rate;
+        double capacity;
+        double tokens = Double.NaN;
+        long last;
+        long period;
+
+        Bucket(long now) {
+            this.last = now;
+        }
+
+        void refill(long now, double rate, TimeUnit unit) {
+            this.rate = rate;
+            this.capacity = rate;
+            this.period = unit.toNanos(1);
+            // Full at the start
+            tokens = Double.isNaN(tokens) ? capacity : Math.min(capacity, tokens + (now - last) * rate / period);
+            last = now;
+        }
+
+        /**
+         * Get the time until there are enough tokens, a download larger than the bucket only waits for a full bucket
+         */
+        long delay(double n) {
+            if (rate <= 0)
+                return 0;
+            double missing = Math.min(n, capacity) - tokens;
+            return missing <= 0 ? 0 : Math.max(1, (long) Math.ceil(missing / rate * period));
+        }
+
+        String state(String format) {
+            if (rate <= 0)
+                return tr("no limit");
+            return tr("{0} of {1} left", String.format(format, tokens), String.format(format, capacity));
+        }
+
+        void take(double n) {
+            if (rate > 0)
+                tokens -= Math.min(n, capacity);
+        }
+    }
+}
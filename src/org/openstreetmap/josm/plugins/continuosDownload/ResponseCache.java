@@ -0,0 +1,567 @@
+// License: GPL. See LICENSE file for details.
+package org.openstreetmap.josm.plugins.continuosDownload;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+import org.openstreetmap.josm.io.OsmApi;
+import org.openstreetmap.josm.spi.preferences.Config;
+import org.openstreetmap.josm.tools.Logging;
+
+/**
+ * Keeps the responses of the server on disk, so an area that has been downloaded lately is read from the disk and not
+ * from the server.
+ * <p>
+ * The cache is off by default: an area read from the disk may be older than what is on the server, and edits made on
+ * top of old data conflict when they are uploaded. It is meant for looking at the same areas again and again.
+ * <p>
+ * Each server has a cache of its own, in a directory named by a hash of its URL. A response is stored as it came from
+ * the server, in a file named by the box of the request in fixed point coordinates. A box can be read from the cache
+ * if the responses younger than {@code plugin.continuos_download.cache_ttl} seconds cover all of it. The responses
+ * that have not been used for the longest time are removed when the cache is larger than
+ * {@code plugin.continuos_download.cache_size} megabytes. The files are memory mapped when they are read.
+ * <p>
+ * The server, the boxes, the times they were downloaded and the order they were used in are saved in a small index
+ * file when JOSM exits, so the next session knows what is on the disk without looking at every file. The index is
+ * removed when it is read, and if JOSM does not exit cleanly the directory is scanned instead.
+ */
+final class ResponseCache {
+
+    /** The default time in seconds a response is used */
+    static final int DEFAULT_TTL = 3600;
+    /** The default size of the cache in megabytes */
+    static final int DEFAULT_SIZE = 100;
+    private static final String SUFFIX = ".osm";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final String INDEX = "index.bin";
+    /** The first bytes of the index, "CDI" and the version of the format */
+    private static final int MAGIC = 0x43444902;
+    /** The caches by the URL of their server */
+    private static final Map<String, ResponseCache> INSTANCES = new HashMap<>();
+
+    private final Path dir;
+    private final String server;
+    private final LongSupplier clock;
+    /** The responses by file name, the least recently used first */
+    private final Map<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long size;
+    private boolean loaded;
+    /** The boxes of the responses that are young enough, for {@link #covers(Box)} */
+    private volatile CoverageIndex fresh = new CoverageIndex();
+    /** When the oldest response in {@link #fresh} gets too old, in milliseconds */
+    private volatile long freshUntil = Long.MAX_VALUE;
+
+    /**
+     * Constructs a new {@code ResponseCache}.
+     * @param dir The directory of the cache
+     * @param server The URL of the server the responses come from
+     * @param clock The time in milliseconds
+     */
+    ResponseCache(Path dir, String server, LongSupplier clock) {
+        this.dir = dir;
+        this.server = server;
+        this.clock = clock;
+    }
+
+    /**
+     * Get the cache of the server that is used now
+     * @return The cache, or {@code null} if it is turned off
+     */
+    static synchronized ResponseCache get() {
+        if (!DownloadSettings.get().isCache() || Config.getDirs() == null)
+            return null;
+        String url = OsmApi.getOsmApi().getServerUrl();
+        return INSTANCES.computeIfAbsent(url, k -> {
+            File cache = new File(Config.getDirs().getCacheDirectory(true), "continuos_download");
+            return new ResponseCache(cache.toPath().resolve(key(k)), k, System::currentTimeMillis);
+        });
+    }
+
+    /**
+     * Save the index of the caches that have been used, call this when JOSM exits
+     */
+    static synchronized void saveAll() {
+        INSTANCES.values().forEach(ResponseCache::save);
+    }
+
+    /**
+     * Get the responses that cover a box
+     * @param box The box in fixed point coordinates
+     * @return The files of the responses, or {@code null} if some of the box is not in the cache
+     */
+    synchronized List<Path> lookup(Box box) {
+        load();
+        if (clock.getAsLong() >= freshUntil)
+            index();
+        long oldest = clock.getAsLong() - TimeUnit.SECONDS.toMillis(ttl());
+        BoxSet found = new BoxSet();
+        List<String> names = new ArrayList<>();
+        for (Map.Entry<String, Entry> e : entries.entrySet()) {
+            Entry entry = e.getValue();
+            if (entry.time >= oldest && entry.box.intersection(box).valid()) {
+                found.add(entry.box);
+                names.add(e.getKey());
+            }
+        }
+        if (found.isEmpty() || !BoxSet.of(box).subtractAll(found).isEmpty())
+            return null;
+        List<Path> r = new ArrayList<>(names.size());
+        for (String name : names) {
+            // Mark them as used
+            entries.get(name);
+            r.add(dir.resolve(name));
+        }
+        return r;
+    }
+
+    /**
+     * Check if all of a box is in the cache. This does not wait for the cache and does not read the disk, so it can
+     * be called under other locks. Until the cache has been used in the session, or while some of the responses in it
+     * are too old to be used, it says {@code false}.
+     * @param box The box in fixed point coordinates
+     * @return {@code true} if the box can be read from the cache
+     */
+    boolean covers(Box box) {
+        return clock.getAsLong() < freshUntil && fresh.covers(box);
+    }
+
+    /**
+     * Read a response
+     * @param file The file from {@link #lookup(Box)}
+     * @return The response
+     * @throws IOException if the file cannot be read
+     */
+    static InputStream open(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            return new BufferInputStream(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    /**
+     * Store a response while it is read
+     * @param box The box of the request in fixed point coordinates
+     * @param in The response from the server
+     * @return The response to read instead of {@code in}
+     * @throws IOException if the file for the response cannot be made
+     */
+    synchronized Storing store(Box box, InputStream in) throws IOException {
+        // Before the file is made, the first scan removes the temporary files
+        load();
+        Files.createDirectories(dir);
+        return new Storing(in, Files.createTempFile(dir, "response", TEMP_SUFFIX), box);
+    }
+
+    private synchronized void stored(Box box, Path temp) {
+        load();
+        String name = name(box);
+        try {
+            Files.move(temp, dir.resolve(name), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            long bytes = Files.size(dir.resolve(name));
+            Entry old = entries.put(name, new Entry(box, clock.getAsLong(), bytes));
+            size += bytes - (old != null ? old.bytes : 0);
+        } catch (IOException e) {
+            Logging.warn(e);
+            delete(temp);
+        }
+        evict(DownloadSettings.get().getCacheSize() << 20);
+    }
+
+    /**
+     * Remove the least recently used responses until the cache is small enough
+     * @param maxBytes The size to keep the cache under
+     */
+    synchronized void evict(long maxBytes) {
+        Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+        while (size > maxBytes && it.hasNext()) {
+            Map.Entry<String, Entry> e = it.next();
+            if (delete(dir.resolve(e.getKey()))) {
+                size -= e.getValue().bytes;
+                it.remove();
+            }
+        }
+        index();
+    }
+
+    /**
+     * Put the boxes of the responses that are young enough in the index for {@link #covers(Box)}
+     */
+    private void index() {
+        long ttl = TimeUnit.SECONDS.toMillis(ttl());
+        long oldest = clock.getAsLong() - ttl;
+        CoverageIndex index = new CoverageIndex();
+        long until = Long.MAX_VALUE;
+        for (Entry entry : entries.values()) {
+            if (entry.time >= oldest) {
+                index.add(entry.box);
+                until = Math.min(until, entry.time + ttl);
+            }
+        }
+        // The time first, so the new index is not used with the time of the old one
+        freshUntil = Long.MIN_VALUE;
+        fresh = index;
+        freshUntil = until;
+    }
+
+    /**
+     * Get the size of the responses in the cache
+     * @return The size in bytes
+     */
+    synchronized long size() {
+        load();
+        return size;
+    }
+
+    /**
+     * Find the responses that are already on the disk, the first time the cache is used
+     */
+    private void load() {
+        if (loaded)
+            return;
+        loaded = true;
+        if (!Files.isDirectory(dir))
+            return;
+        if (readIndex()) {
+            index();
+            return;
+        }
+        Map<String, Entry> found = new HashMap<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                Box box = name.endsWith(SUFFIX) ? box(name) : null;
+                if (box == null) {
+                    // What is left of a response that was not read to the end
+                    if (name.endsWith(TEMP_SUFFIX))
+                        delete(file);
+                    continue;
+                }
+                long time = Files.getLastModifiedTime(file).toMillis();
+                found.put(name, new Entry(box, time, Files.size(file)));
+            }
+        } catch (IOException e) {
+            Logging.warn(e);
+        }
+        // The oldest first, the time a response was used is not known
+        List<String> names = new ArrayList<>(found.keySet());
+        names.sort(Comparator.comparingLong(name -> found.get(name).time));
+        for (String name : names) {
+            entries.put(name, found.get(name));
+            size += found.get(name).bytes;
+        }
+        index();
+    }
+
+    /**
+     * Save the index of the responses, so the next session does not have to scan the directory. Call this when
+     * JOSM exits.
+     */
+    synchronized void save() {
+        if (!loaded || !Files.isDirectory(dir))
+            return;
+        try {
+            Path temp = Files.createTempFile(dir, "index", TEMP_SUFFIX);
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+                out.writeInt(MAGIC);
+                out.writeUTF(server);
+                out.writeInt(entries.size());
+                // The least recently used first, like the map
+                for (Entry entry : entries.values()) {
+                    out.writeInt((int) entry.box.x.min);
+                    out.writeInt((int) entry.box.y.min);
+                    out.writeInt((int) entry.box.x.max);
+                    out.writeInt((int) entry.box.y.max);
+                    out.writeLong(entry.time);
+                    out.writeLong(entry.bytes);
+                }
+            }
+            Files.move(temp, dir.resolve(INDEX), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            Logging.warn(e);
+        }
+    }
+
+    /**
+     * Read the index saved by the last session, and remove it, it is not up to date once the cache changes
+     * @return {@code true} if the index has been read
+     */
+    private boolean readIndex() {
+        Path index = dir.resolve(INDEX);
+        if (!Files.isRegularFile(index))
+            return false;
+        Map<String, Entry> found = new LinkedHashMap<>();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(index)))) {
+            if (in.readInt() != MAGIC)
+                return false;
+            if (!server.equals(in.readUTF())) {
+                // The directory of another server with the same hash, its responses must not be read for this one
+                Logging.warn("Continuous download: the cache in {0} is not for {1}, it is cleared", dir, server);
+                found = null;
+            }
+            for (int n = in.readInt(); n > 0; n--) {
+                Box box = new Box(in.readInt(), in.readInt(), in.readInt(), in.readInt());
+                Entry entry = new Entry(box, in.readLong(), in.readLong());
+                if (found != null)
+                    found.put(name(box), entry);
+            }
+        } catch (IOException e) {
+            Logging.warn(e);
+            return false;
+        } finally {
+            delete(index);
+        }
+        if (found != null) {
+            for (Map.Entry<String, Entry> e : found.entrySet()) {
+                entries.put(e.getKey(), e.getValue());
+                size += e.getValue().bytes;
+            }
+        }
+        // What is left of the responses that were being read when JOSM exited, or all of them for another server
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, found != null ? "*" + TEMP_SUFFIX : "*")) {
+            for (Path file : files) {
+                delete(file);
+            }
+        } catch (IOException e) {
+            Logging.warn(e);
+        }
+        return true;
+    }
+
+    private static long ttl() {
+        return DownloadSettings.get().getCacheTtl();
+    }
+
+    /**
+     * Get the name of the directory of a server
+     */
+    static String key(String server) {
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(server.getBytes(StandardCharsets.UTF_8));
+            StringBuilder r = new StringBuilder();
+            for (int i = 0; i < 8; i++) {
+                r.append(String.format("%02x", hash[i]));
+            }
+            return r.toString();
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java has SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String name(Box box) {
+        return box.x.min + "_" + box.y.min + "_" + box.x.max + "_" + box.y.max + SUFFIX;
+    }
+
+    private static Box box(String name) {
+        String[] parts = name.substring(0, name.length() - SUFFIX.length()).split("_", -1);
+        if (parts.length != 4)
+            return null;
+        try {
+            Box box = new Box(Long.parseLong(parts[0]), Long.parseLong(parts[1]), Long.parseLong(parts[2]),
+                    Long.parseLong(parts[3]));
+            return box.valid() ? box : null;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static boolean delete(Path file) {
+        try {
+            Files.deleteIfExists(file);
+            return true;
+        } catch (IOException e) {
+            // A file that is mapped cannot be removed on some systems, try again later
+            Logging.debug(e);
+            return false;
+        }
+    }
+
+    private static final class Entry {
+        final Box box;
+        /** When the response was downloaded, in milliseconds */
+        final long time;
+        final long bytes;
+
+        Entry(Box box, long time, long bytes) {
+            this.box = box;
+            this.time = time;
+            this.bytes = bytes;
+        }
+    }
+
+    /**
+     * Reads a mapped file
+     */
+    private static final class BufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        BufferInputStream(MappedByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0)
+                return 0;
+            if (!buffer.hasRemaining())
+                return -1;
+            int n = Math.min(len, buffer.remaining());
+            buffer.get(b, off, n);
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+
+        @Override
+        public long skip(long n) {
+            int k = (int) Math.max(0, Math.min(n, buffer.remaining()));
+            buffer.position(buffer.position() + k);
+            return k;
+        }
+    }
+
+    /**
+     * A response that is written to a file while it is read. The file is added to the cache by {@link #commit()}
+     * when the response has been parsed.
+     */
+    final class Storing extends FilterInputStream {
+        private final Path temp;
+        private final Box box;
+        private OutputStream out;
+        private boolean complete;
+
+        Storing(InputStream in, Path temp, Box box) throws IOException {
+            super(in);
+            this.temp = temp;
+            this.box = box;
+            this.out = Files.newOutputStream(temp);
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (out != null) {
+                if (n < 0) {
+                    complete = true;
+                    closeFile();
+                } else {
+                    try {
+                        out.write(b, off, n);
+                    } catch (IOException e) {
+                        Logging.warn(e);
+                        closeFile();
+                    }
+                }
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            // Skipped bytes are read, so they are in the file as well
+            byte[] b = new byte[(int) Math.min(n, 8192)];
+            int r = read(b, 0, b.length);
+            return Math.max(0, r);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                // The parser may stop before the end of the response
+                drain();
+            } finally {
+                super.close();
+            }
+        }
+
+        /**
+         * Add the response to the cache, call this after the response has been parsed without errors
+         */
+        void commit() {
+            try {
+                drain();
+            } catch (IOException e) {
+                Logging.debug(e);
+            }
+            if (complete) {
+                complete = false;
+                stored(box, temp);
+            } else {
+                discard();
+            }
+        }
+
+        /**
+         * Forget the response, it does not go into the cache
+         */
+        void discard() {
+            closeFile();
+            complete = false;
+            delete(temp);
+        }
+
+        private void drain() throws IOException {
+            byte[] b = new byte[8192];
+            while (out != null && read(b, 0, b.length) >= 0) {
+                // Read it all
+            }
+        }
+
+        private void closeFile() {
+            if (out == null)
+                return;
+            try {
+                out.close();
+            } catch (IOException e) {
+                Logging.warn(e);
+                complete = false;
+            }
+            out = null;
+        }
+    }
+}
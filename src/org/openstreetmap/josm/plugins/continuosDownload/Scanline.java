@@ -0,0 +1,306 @@
+// License: GPL. See LICENSE file for details.
+package org.openstreetmap.josm.plugins.continuosDownload;
+
+import java.util.Arrays;
+
+/**
+ * The difference of two sets of boxes, behind {@link BoxSet#subtractAll}.
+ * <p>
+ * A vertical line is swept over the left and right edges of the boxes. Between
+ * two edges the same boxes cross the line, so the part of the line that is in
+ * the first set and not in the second is a fixed set of intervals. A box is
+ * started for each interval, and only ended when the interval is not there
+ * after the next edge. This gives disjoint boxes that are as wide as they can
+ * be, instead of the fragments from cutting around one box at a time.
+ * <p>
+ * The boxes crossing the line are kept in a segment tree over the bottom and
+ * top edges, which can skip the parts of the line that are covered. Each edge
+ * costs O(log n), and finding the intervals costs O(log n) for each interval.
+ */
+final class Scanline {
+    // The bottom and top edges of all the boxes, sorted, segment i is ys[i] to ys[i + 1]
+    private final long[] ys;
+    private final int segments;
+
+    // The segment tree, node 1 is the root and node n has the children 2n and 2n + 1.
+    // The counts are the boxes that cover all of the node and none of its parents.
+    private final int[] plus;
+    private final int[] minus;
+    // If some / all of the segments of the node have no minus box, counting only the boxes of the node and below
+    private final boolean[] free;
+    private final boolean[] allFree;
+    // If some / all of the segments of the node have a plus box and no minus box
+    private final boolean[] wanted;
+    private final boolean[] allWanted;
+
+    // The segments where boxes have been added or removed since the line last moved
+    private int changedMin;
+    private int changedMax;
+
+    // The intervals found on the line, (min, max) for each interval, from the bottom up
+    private long[] intervals = new long[16];
+    private int count;
+
+    private Scanline(long[] ys, int segments) {
+        this.ys = ys;
+        this.segments = segments;
+        int nodes = 4 * Math.max(1, segments);
+        plus = new int[nodes];
+        minus = new int[nodes];
+        free = new boolean[nodes];
+        allFree = new boolean[nodes];
+        wanted = new boolean[nodes];
+        allWanted = new boolean[nodes];
+        Arrays.fill(free, true);
+        Arrays.fill(allFree, true);
+    }
+
+    /**
+     * Subtract boxes from other boxes
+     *
+     * @param a the boxes to keep
+     * @param b the boxes to remove
+     * @return disjoint boxes covering the parts of {@code a} that are not in {@code b}
+     */
+    static BoxSet subtract(BoxSet a, BoxSet b) {
+        BoxSet r = new BoxSet();
+        BoxSet keep = clip(a, Long.MIN_VALUE, Long.MIN_VALUE, Long.MAX_VALUE, Long.MAX_VALUE);
+        if (keep.isEmpty())
+            return r;
+        long minx = Long.MAX_VALUE;
+        long miny = Long.MAX_VALUE;
+        long maxx = Long.MIN_VALUE;
+        long maxy = Long.MIN_VALUE;
+        for (int i = 0; i < keep.size(); i++) {
+            minx = Math.min(minx, keep.minX(i));
+            miny = Math.min(miny, keep.minY(i));
+            maxx = Math.max(maxx, keep.maxX(i));
+            maxy = Math.max(maxy, keep.maxY(i));
+        }
+        // Only the parts of the removed boxes near the kept boxes matter
+        BoxSet remove = clip(b, minx, miny, maxx, maxy);
+
+        int n = keep.size() + remove.size();
+        long[] ys = new long[n * 2];
+        long[] xs = new long[n * 2];
+        int k = 0;
+        for (BoxSet set : new BoxSet[] {keep, remove}) {
+            for (int i = 0; i < set.size(); i++) {
+                ys[k] = set.minY(i);
+                xs[k++] = set.minX(i);
+                ys[k] = set.maxY(i);
+                xs[k++] = set.maxX(i);
+            }
+        }
+        Arrays.sort(ys);
+        Arrays.sort(xs);
+        Scanline line = new Scanline(ys, unique(ys) - 1);
+
+        BoxSet keepEnds = copy(keep);
+        BoxSet removeEnds = copy(remove);
+        keep.sortByMinX();
+        keepEnds.sortByMaxX();
+        remove.sortByMinX();
+        removeEnds.sortByMaxX();
+        int keepStarted = 0;
+        int keepEnded = 0;
+        int removeStarted = 0;
+        int removeEnded = 0;
+
+        // The boxes that have been started, (miny, maxy, minx) for each box, from the bottom up
+        long[] open = new long[48];
+        long[] next = new long[48];
+        int opened = 0;
+        for (int j = 0; j < xs.length; j++) {
+            long x = xs[j];
+            if (j > 0 && x == xs[j - 1])
+                continue;
+            // Move the line to x
+            line.changedMin = Integer.MAX_VALUE;
+            line.changedMax = Integer.MIN_VALUE;
+            for (; keepEnded < keepEnds.size() && keepEnds.maxX(keepEnded) <= x; keepEnded++)
+                line.update(keepEnds, keepEnded, true, -1);
+            for (; removeEnded < removeEnds.size() && removeEnds.maxX(removeEnded) <= x; removeEnded++)
+                line.update(removeEnds, removeEnded, false, -1);
+            for (; keepStarted < keep.size() && keep.minX(keepStarted) <= x; keepStarted++)
+                line.update(keep, keepStarted, true, 1);
+            for (; removeStarted < remove.size() && remove.minX(removeStarted) <= x; removeStarted++)
+                line.update(remove, removeStarted, false, 1);
+
+            // Only the part of the line where boxes were added or removed can change, but an interval that
+            // reaches into that part may get longer or shorter
+            long bottom = line.ys[line.changedMin];
+            long top = line.ys[line.changedMax + 1];
+            int first = 0;
+            while (first < opened * 3 && open[first + 1] < bottom)
+                first += 3;
+            int last = first;
+            while (last < opened * 3 && open[last] <= top)
+                last += 3;
+            if (last > first) {
+                bottom = Math.min(bottom, open[first]);
+                top = Math.max(top, open[last - 2]);
+            }
+            line.count = 0;
+            line.collect(1, 0, line.segments - 1, false, bottom, top);
+
+            // End the boxes that do not go on, and start the new ones
+            if (next.length < (opened + line.count) * 3) {
+                next = new long[(opened + line.count) * 3];
+            }
+            System.arraycopy(open, 0, next, 0, first);
+            int m = first;
+            int p = first;
+            for (int i = 0; i < line.count * 2; i += 2) {
+                long min = line.intervals[i];
+                long max = line.intervals[i + 1];
+                while (p < last && open[p] < min) {
+                    r.add(open[p + 2], open[p], x, open[p + 1]);
+                    p += 3;
+                }
+                long left = x;
+                if (p < last && open[p] == min && open[p + 1] == max) {
+                    left = open[p + 2];
+                    p += 3;
+                }
+                next[m++] = min;
+                next[m++] = max;
+                next[m++] = left;
+            }
+            for (; p < last; p += 3) {
+                r.add(open[p + 2], open[p], x, open[p + 1]);
+            }
+            System.arraycopy(open, last, next, m, opened * 3 - last);
+            m += opened * 3 - last;
+            long[] t = open;
+            open = next;
+            next = t;
+            opened = m / 3;
+        }
+        return r;
+    }
+
+    /**
+     * Get the valid parts of the boxes inside a box
+     */
+    private static BoxSet clip(BoxSet set, long minx, long miny, long maxx, long maxy) {
+        BoxSet r = new BoxSet(set.size());
+        for (int i = 0; i < set.size(); i++) {
+            long l = Math.max(set.minX(i), minx);
+            long b = Math.max(set.minY(i), miny);
+            long rt = Math.min(set.maxX(i), maxx);
+            long t = Math.min(set.maxY(i), maxy);
+            if (l < rt && b < t) {
+                r.add(l, b, rt, t);
+            }
+        }
+        return r;
+    }
+
+    private static BoxSet copy(BoxSet set) {
+        BoxSet r = new BoxSet(set.size());
+        r.addAll(set);
+        return r;
+    }
+
+    /**
+     * Remove the duplicates from a sorted array
+     * @return the number of distinct values, they are at the start of the array
+     */
+    private static int unique(long[] a) {
+        int n = 0;
+        for (int i = 0; i < a.length; i++) {
+            if (n == 0 || a[i] != a[n - 1])
+                a[n++] = a[i];
+        }
+        return n;
+    }
+
+    /**
+     * Add a box to the line or remove it
+     */
+    private void update(BoxSet set, int i, boolean keep, int delta) {
+        int lo = Arrays.binarySearch(ys, 0, segments + 1, set.minY(i));
+        int hi = Arrays.binarySearch(ys, 0, segments + 1, set.maxY(i)) - 1;
+        changedMin = Math.min(changedMin, lo);
+        changedMax = Math.max(changedMax, hi);
+        update(1, 0, segments - 1, lo, hi, keep, delta);
+    }
+
+    private void update(int node, int l, int r, int lo, int hi, boolean keep, int delta) {
+        if (lo <= l && r <= hi) {
+            if (keep)
+                plus[node] += delta;
+            else
+                minus[node] += delta;
+        } else {
+            int mid = (l + r) >>> 1;
+            if (lo <= mid)
+                update(2 * node, l, mid, lo, hi, keep, delta);
+            if (hi > mid)
+                update(2 * node + 1, mid + 1, r, lo, hi, keep, delta);
+        }
+        pull(node, l == r);
+    }
+
+    private void pull(int node, boolean leaf) {
+        if (minus[node] > 0) {
+            free[node] = false;
+            allFree[node] = false;
+            wanted[node] = false;
+            allWanted[node] = false;
+            return;
+        }
+        if (leaf) {
+            free[node] = true;
+            allFree[node] = true;
+            wanted[node] = plus[node] > 0;
+            allWanted[node] = plus[node] > 0;
+            return;
+        }
+        int a = 2 * node;
+        int b = 2 * node + 1;
+        free[node] = free[a] || free[b];
+        allFree[node] = allFree[a] && allFree[b];
+        if (plus[node] > 0) {
+            wanted[node] = free[node];
+            allWanted[node] = allFree[node];
+        } else {
+            wanted[node] = wanted[a] || wanted[b];
+            allWanted[node] = allWanted[a] && allWanted[b];
+        }
+    }
+
+    /**
+     * Find the intervals of the line between two values that are in a plus box and not in a minus box
+     * @param kept if a parent of the node is covered by a plus box
+     */
+    private void collect(int node, int l, int r, boolean kept, long min, long max) {
+        if (minus[node] > 0 || ys[r + 1] <= min || ys[l] >= max)
+            return;
+        boolean k = kept || plus[node] > 0;
+        if (k ? !free[node] : !wanted[node])
+            return;
+        if (k ? allFree[node] : allWanted[node]) {
+            add(Math.max(ys[l], min), Math.min(ys[r + 1], max));
+            return;
+        }
+        int mid = (l + r) >>> 1;
+        collect(2 * node, l, mid, k, min, max);
+        collect(2 * node + 1, mid + 1, r, k, min, max);
+    }
+
+    private void add(long min, long max) {
+        // Intervals that touch are one interval
+        if (count > 0 && intervals[count * 2 - 1] == min) {
+            intervals[count * 2 - 1] = max;
+            return;
+        }
+        if (intervals.length < count * 2 + 2) {
+            intervals = Arrays.copyOf(intervals, intervals.length * 2);
+        }
+        intervals[count * 2] = min;
+        intervals[count * 2 + 1] = max;
+        count++;
+    }
+}
@@ -0,0 +1,71 @@
+// License: GPL. See LICENSE file for details.
+package org.openstreetmap.josm.plugins.continuosDownload;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A set of tiles, given by their column and row in a grid.
+ * <p>
+ * The grid is split into chunks of 64 by 64 tiles, and only the chunks that
+ * have a tile in them are kept. A chunk is a bitmap with one long for each
+ * row, so adding a tile and checking for it take constant time, and a chunk
+ * takes 512 bytes however many of its tiles are in the set.
+ */
+public class TileSet {
+    private static final int SHIFT = 6;
+    private static final int MASK = (1 << SHIFT) - 1;
+
+    private final Map<Long, long[]> chunks = new HashMap<>();
+    private int size;
+
+    /**
+     * Add a tile
+     *
+     * @param x the column
+     * @param y the row
+     * @return true if the tile was not in the set
+     */
+    public boolean add(int x, int y) {
+        long[] chunk = chunks.computeIfAbsent(key(x, y), k -> new long[1 << SHIFT]);
+        long bit = 1L << (x & MASK);
+        if ((chunk[y & MASK] & bit) != 0)
+            return false;
+        chunk[y & MASK] |= bit;
+        size++;
+        return true;
+    }
+
+    /**
+     * Check for a tile
+     *
+     * @param x the column
+     * @param y the row
+     * @return true if the tile is in the set
+     */
+    public boolean contains(int x, int y) {
+        long[] chunk = chunks.get(key(x, y));
+        return chunk != null && (chunk[y & MASK] & (1L << (x & MASK))) != 0;
+    }
+
+    /**
+     * Get the number of tiles in the set
+     *
+     * @return the number of tiles
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Remove all the tiles
+     */
+    public void clear() {
+        chunks.clear();
+        size = 0;
+    }
+
+    private static Long key(int x, int y) {
+        return ((long) (x >> SHIFT) << 32) | ((y >> SHIFT) & 0xffffffffL);
+    }
+}
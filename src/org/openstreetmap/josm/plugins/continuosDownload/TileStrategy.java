@@ -0,0 +1,201 @@
+// License: GPL. See LICENSE file for details.
+package org.openstreetmap.josm.plugins.continuosDownload;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import org.openstreetmap.josm.data.Bounds;
+
+/**
+ * A strategy that only downloads whole tiles of a fixed grid.
+ * <p>
+ * The world is split into square tiles of {@code plugin.continuos_download.tile_size} degrees. The tiles that are
+ * known to be downloaded are kept in a {@link TileSet} for each layer, so a tile is only looked up in the coverage
+ * index until it has been downloaded. The missing tiles are requested as rows of tiles, and rows with the same
+ * columns are joined into one box. Since the boxes are always on the grid, the same view gives the same requests.
+ */
+public class TileStrategy extends AbstractDownloadStrategy {
+
+    /** The default size of a tile in degrees */
+    public static final double DEFAULT_TILE_SIZE = 0.01;
+    /** If a view has more tiles than this, larger tiles are used for that view */
+    private static final long MAX_TILES = 1 << 16;
+    private static final long WORLD_MIN_X = BoxSet.toFpi(-180);
+    private static final long WORLD_MIN_Y = BoxSet.toFpi(-90);
+    private static final long WORLD_MAX_X = BoxSet.toFpi(180);
+    private static final long WORLD_MAX_Y = BoxSet.toFpi(90);
+
+    /** The tiles known to be downloaded, by layer and tile size */
+    private final Map<CoverageIndex, Known> known = new WeakHashMap<>();
+
+    @Override
+    public Collection<Bounds> getBoxes(Bounds bbox, Collection<Bounds> present, int maxBoxes) {
+        return getBoxes(BoxSet.toBox(bbox), Present.of(BoxSet.fromBounds(present)), maxBoxes).toBounds();
+    }
+
+    @Override
+    public BoxSet getBoxes(Box bbox, Present present, int maxBoxes) {
+        // The tiles are looked up in the index, the boxes near the view are not needed
+        CoverageIndex coverage = present.getCoverage();
+        BoxSet pending = present.getPending();
+        DownloadSettings settings = DownloadSettings.get();
+        long tile = Math.max(1, BoxSet.toFpi(settings.getTileSize()));
+        // Keep the number of tiles down when zoomed out, twice the size is still on the grid
+        while (tiles(bbox, tile) > MAX_TILES) {
+            tile *= 2;
+        }
+        int x0 = (int) Math.floorDiv(bbox.x.min, tile);
+        int y0 = (int) Math.floorDiv(bbox.y.min, tile);
+        int x1 = (int) Math.floorDiv(bbox.x.max - 1, tile);
+        int y1 = (int) Math.floorDiv(bbox.y.max - 1, tile);
+        TileSet done = known(coverage, tile);
+
+        // Find the tiles that are not known to be downloaded
+        int minx = Integer.MAX_VALUE;
+        int miny = Integer.MAX_VALUE;
+        int maxx = Integer.MIN_VALUE;
+        int maxy = Integer.MIN_VALUE;
+        synchronized (done) {
+            for (int y = y0; y <= y1; y++) {
+                for (int x = x0; x <= x1; x++) {
+                    if (!done.contains(x, y)) {
+                        minx = Math.min(minx, x);
+                        miny = Math.min(miny, y);
+                        maxx = Math.max(maxx, x);
+                        maxy = Math.max(maxy, y);
+                    }
+                }
+            }
+        }
+        if (minx > maxx)
+            return new BoxSet();
+
+        // Ask the index once for all of them, a tile is missing if some of it has not been downloaded
+        BoxSet uncovered = coverage.uncovered(new Box(minx * tile, miny * tile, (maxx + 1L) * tile, (maxy + 1L) * tile));
+        TileSet missing = tiles(uncovered, tile);
+        synchronized (done) {
+            for (int y = miny; y <= maxy; y++) {
+                for (int x = minx; x <= maxx; x++) {
+                    if (!missing.contains(x, y))
+                        done.add(x, y);
+                }
+            }
+        }
+        // The tiles that are being downloaded are not done yet, but they are not missing either
+        if (!pending.isEmpty()) {
+            missing = tiles(uncovered.subtractAll(pending), tile);
+        }
+
+        BoxSet runs = runs(missing, minx, miny, maxx, maxy, tile);
+        if (runs.size() > maxBoxes) {
+            // The parts are unions of boxes on the grid, so they are on the grid as well
+            runs = PartitionSearch.search(maxBoxes, runs, settings.getSearchTime(), settings.getSearchNodes(),
+                    new BoxStrategy.SearchStats());
+        }
+        return clip(runs);
+    }
+
+    /**
+     * Get the tiles that have some part in the boxes
+     */
+    private static TileSet tiles(BoxSet boxes, long tile) {
+        TileSet r = new TileSet();
+        for (int i = 0; i < boxes.size(); i++) {
+            for (int y = (int) Math.floorDiv(boxes.minY(i), tile); y <= Math.floorDiv(boxes.maxY(i) - 1, tile); y++) {
+                for (int x = (int) Math.floorDiv(boxes.minX(i), tile); x <= Math.floorDiv(boxes.maxX(i) - 1, tile); x++) {
+                    r.add(x, y);
+                }
+            }
+        }
+        return r;
+    }
+
+    /**
+     * Join the missing tiles in each row into boxes, and join a box with the one in the row below if they have the
+     * same columns.
+     */
+    private static BoxSet runs(TileSet missing, int minx, int miny, int maxx, int maxy, long tile) {
+        BoxSet r = new BoxSet();
+        // The boxes that go on in the next row, (first column, last column, first row) for each box
+        int[] open = new int[(maxx - minx + 2) / 2 * 3 + 3];
+        int[] next = new int[open.length];
+        int opened = 0;
+        for (int y = miny; y <= maxy + 1; y++) {
+            int n = 0;
+            int p = 0;
+            int x = minx;
+            while (y <= maxy && x <= maxx) {
+                if (!missing.contains(x, y)) {
+                    x++;
+                    continue;
+                }
+                int first = x;
+                while (x <= maxx && missing.contains(x, y)) {
+                    x++;
+                }
+                int last = x - 1;
+                while (p < opened * 3 && open[p] < first) {
+                    r.add(open[p] * tile, open[p + 2] * tile, (open[p + 1] + 1L) * tile, (long) y * tile);
+                    p += 3;
+                }
+                int row = y;
+                if (p < opened * 3 && open[p] == first && open[p + 1] == last) {
+                    row = open[p + 2];
+                    p += 3;
+                }
+                next[n++] = first;
+                next[n++] = last;
+                next[n++] = row;
+            }
+            for (; p < opened * 3; p += 3) {
+                r.add(open[p] * tile, open[p + 2] * tile, (open[p + 1] + 1L) * tile, (long) y * tile);
+            }
+            int[] t = open;
+            open = next;
+            next = t;
+            opened = n / 3;
+        }
+        return r;
+    }
+
+    private static BoxSet clip(BoxSet set) {
+        BoxSet r = new BoxSet(set.size());
+        for (int i = 0; i < set.size(); i++) {
+            long minx = Math.max(set.minX(i), WORLD_MIN_X);
+            long miny = Math.max(set.minY(i), WORLD_MIN_Y);
+            long maxx = Math.min(set.maxX(i), WORLD_MAX_X);
+            long maxy = Math.min(set.maxY(i), WORLD_MAX_Y);
+            if (minx < maxx && miny < maxy) {
+                r.add(minx, miny, maxx, maxy);
+            }
+        }
+        return r;
+    }
+
+    private static long tiles(Box bbox, long tile) {
+        return (Math.floorDiv(bbox.x.max - 1, tile) - Math.floorDiv(bbox.x.min, tile) + 1)
+                * (Math.floorDiv(bbox.y.max - 1, tile) - Math.floorDiv(bbox.y.min, tile) + 1);
+    }
+
+    /**
+     * Get the tiles known to be downloaded to a layer
+     */
+    private TileSet known(CoverageIndex coverage, long tile) {
+        synchronized (known) {
+            Known k = known.computeIfAbsent(coverage, c -> new Known());
+            // Something has been removed from the layer, start over
+            if (k.version != coverage.getVersion()) {
+                k.version = coverage.getVersion();
+                k.tiles.clear();
+            }
+            return k.tiles.computeIfAbsent(tile, t -> new TileSet());
+        }
+    }
+
+    private static final class Known {
+        int version;
+        final Map<Long, TileSet> tiles = new HashMap<>();
+    }
+}
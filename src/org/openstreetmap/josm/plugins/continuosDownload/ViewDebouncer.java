@@ -0,0 +1,166 @@
+// License: GPL. See LICENSE file for details.
+package org.openstreetmap.josm.plugins.continuosDownload;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.function.LongSupplier;
+
+import org.openstreetmap.josm.data.Bounds;
+import org.openstreetmap.josm.tools.Logging;
+
+/**
+ * Waits until the view stops before it is downloaded.
+ * <p>
+ * The view is handed over without a lock: a new view replaces the last one, and an alarm is only set when no alarm
+ * goes off before the view should be fetched, so a change of the view costs almost nothing on the EDT. When an alarm
+ * goes off and the view has changed since, it is set again for the rest of the wait. A view that comes while the last
+ * one is fetched is not lost, it gets its own wait.
+ * <p>
+ * The wait adapts to how the user moves. The user has stopped when no change came for a few times the usual time
+ * between the changes of the current pan or zoom, twice as long while the view moves fast, and a quarter of the usual
+ * latency of the server longer, because a download that is not needed costs more when the server is slow. The wait
+ * is at least {@link #MIN_WAIT} and at most {@link DownloadSettings#getWaitTime()}, which is also the wait after
+ * a single change.
+ */
+final class ViewDebouncer {
+    /** The shortest wait, in nanoseconds */
+    static final long MIN_WAIT = TimeUnit.MILLISECONDS.toNanos(100);
+    /** The user has stopped after this many times the usual time between changes */
+    private static final double GAP_FACTOR = 3;
+    /** How much the last time between changes counts in the usual one */
+    private static final double ALPHA = 0.3;
+    /** The view moves fast above this many views per second */
+    private static final double FAST = 1;
+
+    private final DownloadScheduler.Alarm alarm;
+    private final LongSupplier clock;
+    private final AdaptiveLimit limit;
+    private final Consumer<Bounds> target;
+
+    /** The last view, set by the EDT and read by the alarm */
+    private final AtomicReference<View> latest = new AtomicReference<>();
+    /** When the next alarm goes off, in nanoseconds, {@link Long#MAX_VALUE} if none is set */
+    private final AtomicLong due = new AtomicLong(Long.MAX_VALUE);
+    /** The last view that was fetched, only used by the alarm */
+    private View fired;
+
+    // Only used by the thread that tells the changes of the view
+    private View previous;
+    private double gap;
+
+    /**
+     * Constructs a new {@code ViewDebouncer}.
+     * @param alarm Runs the wait
+     * @param clock The time in nanoseconds
+     * @param limit The limit of the downloads, that knows the usual latency of the server
+     * @param target What to do with a view the user has stopped at
+     */
+    ViewDebouncer(DownloadScheduler.Alarm alarm, LongSupplier clock, AdaptiveLimit limit, Consumer<Bounds> target) {
+        this.alarm = alarm;
+        this.clock = clock;
+        this.limit = limit;
+        this.target = target;
+    }
+
+    /**
+     * Tell that the view has changed. Call it from one thread only, the EDT.
+     * @param bbox The new view
+     */
+    void viewChanged(Bounds bbox) {
+        long now = clock.getAsLong();
+        double speed = 0;
+        if (previous != null && now - previous.time < maxWait()) {
+            long dt = Math.max(1, now - previous.time);
+            gap = gap > 0 ? ALPHA * dt + (1 - ALPHA) * gap : dt;
+            double size = Math.max(Math.max(bbox.getWidth(), bbox.getHeight()), 1e-9);
+            double dx = (bbox.getMinLon() + bbox.getMaxLon() - previous.bbox.getMinLon() - previous.bbox.getMaxLon()) / 2;
+            double dy = (bbox.getMinLat() + bbox.getMaxLat() - previous.bbox.getMinLat() - previous.bbox.getMaxLat()) / 2;
+            speed = Math.sqrt(dx * dx + dy * dy) / size * TimeUnit.SECONDS.toNanos(1) / dt;
+        } else {
+            // A new pan or zoom, nothing is known about it yet
+            gap = 0;
+        }
+        View view = new View(bbox, now, (long) gap, speed);
+        previous = view;
+        latest.set(view);
+        schedule(now + wait(view), now);
+    }
+
+    /**
+     * Get how long to wait for a view
+     * @param view The view
+     * @return The time in nanoseconds
+     */
+    long wait(View view) {
+        long max = maxWait();
+        long min = Math.min(MIN_WAIT, max);
+        if (view.gap <= 0)
+            return max;
+        double wait = GAP_FACTOR * view.gap;
+        if (view.speed > FAST)
+            wait *= 2;
+        wait += limit.getLatency() / 4.0;
+        return Math.max(min, Math.min(max, (long) wait));
+    }
+
+    private static long maxWait() {
+        return TimeUnit.MILLISECONDS.toNanos(DownloadSettings.get().getWaitTime());
+    }
+
+    /**
+     * Set an alarm, unless one goes off before
+     * @param at When the alarm should go off, in nanoseconds
+     * @param now The time now
+     */
+    private void schedule(long at, long now) {
+        long d;
+        do {
+            d = due.get();
+            if (d <= at)
+                return;
+        } while (!due.compareAndSet(d, at));
+        alarm.schedule(Math.max(0, at - now), this::run);
+    }
+
+    private void run() {
+        // A view that comes from now on sets its own alarm, one that came before is read below
+        due.set(Long.MAX_VALUE);
+        View view = latest.get();
+        if (view == null || view == fired)
+            return;
+        long now = clock.getAsLong();
+        long at = view.time + wait(view);
+        if (at > now) {
+            schedule(at, now);
+            return;
+        }
+        fired = view;
+        try {
+            target.accept(view.bbox);
+        } catch (RuntimeException e) {
+            Logging.error(e);
+        }
+    }
+
+    /**
+     * A view and how it was reached
+     */
+    static final class View {
+        final Bounds bbox;
+        /** When the view was seen, in nanoseconds */
+        final long time;
+        /** The usual time between the changes of the view, in nanoseconds, 0 for the first change */
+        final long gap;
+        /** How fast the view moves, in views per second */
+        final double speed;
+
+        View(Bounds bbox, long time, long gap, double speed) {
+            this.bbox = bbox;
+            this.time = time;
+            this.gap = gap;
+            this.speed = speed;
+        }
+    }
+}
@@ -0,0 +1,140 @@
+// License: GPL. See LICENSE file for details.
+package org.openstreetmap.josm.plugins.continuosDownload;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+
+import org.openstreetmap.josm.data.Bounds;
+import org.openstreetmap.josm.spi.preferences.Config;
+import org.openstreetmap.josm.tools.Logging;
+
+/**
+ * Writes the views of an editing session to a file, so the session can be replayed to compare strategies and settings
+ * without the server.
+ * <p>
+ * A line is written every time the view changes, with the time in milliseconds and the bounds of the view:
+ * {@code time,minlat,minlon,maxlat,maxlon}. The recording is turned on by
+ * {@code plugin.continuos_download.record_views}, the files are in {@code continuos_download} in the user data
+ * directory of JOSM. The plugin writes the views on the thread of its alarms, the EDT only hands them over.
+ */
+final class ViewRecorder {
+    private static final String HEADER = "# time,minlat,minlon,maxlat,maxlon";
+    /** Write the file every this many views, so a session is not lost if JOSM stops */
+    private static final int FLUSH = 64;
+
+    private final Writer out;
+    private int unflushed;
+
+    /**
+     * Constructs a new {@code ViewRecorder}.
+     * @param out Where to write the views
+     * @throws IOException if the header cannot be written
+     */
+    ViewRecorder(Writer out) throws IOException {
+        this.out = out;
+        out.write(HEADER);
+        out.write('\n');
+    }
+
+    /**
+     * Start a recording in a new file in the user data directory
+     * @return The recorder, or {@code null} if the file cannot be made
+     */
+    static ViewRecorder start() {
+        if (Config.getDirs() == null)
+            return null;
+        File dir = new File(Config.getDirs().getUserDataDirectory(true), "continuos_download");
+        String name = "views-" + new SimpleDateFormat("yyyyMMdd-HHmmss", Locale.ROOT).format(new Date()) + ".csv";
+        try {
+            Files.createDirectories(dir.toPath());
+            Path file = dir.toPath().resolve(name);
+            Logging.info("Continuous download: recording the views to {0}", file);
+            return new ViewRecorder(Files.newBufferedWriter(file, StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            Logging.warn(e);
+            return null;
+        }
+    }
+
+    /**
+     * Write a view
+     * @param time The time in milliseconds
+     * @param bbox The bounds of the view
+     */
+    synchronized void record(long time, Bounds bbox) {
+        try {
+            out.write(String.format(Locale.ROOT, "%d,%.7f,%.7f,%.7f,%.7f%n", time, bbox.getMinLat(), bbox.getMinLon(),
+                    bbox.getMaxLat(), bbox.getMaxLon()));
+            if (++unflushed >= FLUSH) {
+                out.flush();
+                unflushed = 0;
+            }
+        } catch (IOException e) {
+            Logging.warn(e);
+        }
+    }
+
+    /**
+     * Write what is left and close the file
+     */
+    synchronized void close() {
+        try {
+            out.close();
+        } catch (IOException e) {
+            Logging.warn(e);
+        }
+    }
+
+    /**
+     * Read a recording
+     * @param in The recording
+     * @return The views in the order they were seen
+     * @throws IOException if the recording cannot be read
+     */
+    static List<View> read(BufferedReader in) throws IOException {
+        List<View> r = new ArrayList<>();
+        String line;
+        int n = 0;
+        while ((line = in.readLine()) != null) {
+            n++;
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#"))
+                continue;
+            String[] f = line.split(",", -1);
+            try {
+                if (f.length != 5)
+                    throw new NumberFormatException(line);
+                r.add(new View(Long.parseLong(f[0]), new Bounds(Double.parseDouble(f[1]), Double.parseDouble(f[2]),
+                        Double.parseDouble(f[3]), Double.parseDouble(f[4]))));
+            } catch (NumberFormatException e) {
+                throw new IOException("Bad view on line " + n + ": " + line, e);
+            }
+        }
+        return r;
+    }
+
+    /**
+     * A view of a recording
+     */
+    static final class View {
+        /** When the view was seen, in milliseconds */
+        final long time;
+        final Bounds bounds;
+
+        View(long time, Bounds bounds) {
+            this.time = time;
+            this.bounds = bounds;
+        }
+    }
+}
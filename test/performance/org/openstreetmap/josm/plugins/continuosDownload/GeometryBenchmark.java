@@ -0,0 +1,186 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.continuosDownload;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openstreetmap.josm.data.Preferences;
+import org.openstreetmap.josm.spi.preferences.Config;
+
+/**
+ * JMH benchmarks of the geometry and the planning of the downloads: {@link Box#subtract_all}, {@link Box#merge},
+ * {@link BoxStrategy#optimalPart} and {@link BoxStrategy#getBoxes(Box, AbstractDownloadStrategy.Present, int)}.
+ * <p>
+ * The view is planned against 1 to 10000 downloaded boxes in three layouts: random boxes, a grid of tiles with some
+ * missing, and a long session of views panned in small steps. Run them with the {@code benchmarks} profile,
+ * {@code mvn -P benchmarks test-compile exec:exec}, which reports the throughput and, with the gc profiler, the
+ * allocation rate. Set {@code -Djmh.include=<regex>} to run some of them.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GeometryBenchmark {
+    /** The side of the view, 0.1 degrees */
+    private static final long VIEW = BoxSet.toFpi(0.1);
+
+    /**
+     * The downloaded boxes and what is left of the view
+     */
+    @State(Scope.Benchmark)
+    public static class Coverage {
+        @Param({"random", "grid", "session"})
+        public String layout;
+
+        @Param({"1", "10", "100", "1000", "10000"})
+        public int boxes;
+
+        Box view;
+        List<Box> existing;
+        CoverageIndex index;
+        /** The parts of the view that have not been downloaded, as {@link Box#subtract_all} gives them */
+        Collection<Box> fragments;
+        /** The fragments after {@link Box#merge}, what the partition search gets */
+        Collection<Box> merged;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            Random random = new Random(42);
+            view = new Box(0, 0, VIEW, VIEW);
+            switch (layout) {
+            case "grid":
+                existing = grid(random, boxes);
+                break;
+            case "session":
+                existing = session(random, boxes);
+                break;
+            default:
+                existing = random(random, boxes);
+            }
+            index = new CoverageIndex();
+            for (Box b : existing) {
+                index.add(b);
+            }
+            fragments = view.subtract_all(existing);
+            merged = Box.merge(fragments);
+        }
+    }
+
+    /**
+     * The coverage and the number of boxes to plan
+     */
+    @State(Scope.Benchmark)
+    public static class Planning extends Coverage {
+        @Param({"1", "4", "16"})
+        public int maxAreas;
+
+        BoxStrategy strategy;
+
+        @Override
+        @Setup(Level.Trial)
+        public void setUp() {
+            super.setUp();
+            strategy = new BoxStrategy();
+            if (Config.getPref() == null) {
+                Preferences pref = new Preferences();
+                pref.enableSaveOnPut(false);
+                Config.setPreferencesInstance(pref);
+            }
+            // Only the node budget, so the work does not depend on the speed of the machine
+            Config.getPref().putLong("plugin.continuos_download.search_time", Long.MAX_VALUE);
+        }
+    }
+
+    @Benchmark
+    public Collection<Box> subtractAll(Coverage c) {
+        return c.view.subtract_all(c.existing);
+    }
+
+    @Benchmark
+    public Collection<Box> merge(Coverage c) {
+        return Box.merge(c.fragments);
+    }
+
+    @Benchmark
+    public Collection<Box> optimalPart(Planning p) {
+        return BoxStrategy.optimalPart(p.maxAreas, p.merged, Long.MAX_VALUE, BoxStrategy.DEFAULT_SEARCH_NODES,
+                new BoxStrategy.SearchStats());
+    }
+
+    @Benchmark
+    public BoxSet getBoxes(Planning p) {
+        return p.strategy.getBoxes(p.view, new AbstractDownloadStrategy.Present(p.index, new BoxSet()), p.maxAreas);
+    }
+
+    /**
+     * Boxes of random size around the view, smaller the more there are, so about half of the view is left
+     */
+    static List<Box> random(Random random, int n) {
+        List<Box> r = new ArrayList<>(n);
+        long side = (long) (VIEW * 3.3 / Math.sqrt(n));
+        for (int i = 0; i < n; i++) {
+            long x = -VIEW + (long) (random.nextDouble() * 3 * VIEW);
+            long y = -VIEW + (long) (random.nextDouble() * 3 * VIEW);
+            long w = 1 + (long) (side * (0.25 + random.nextDouble()));
+            long h = 1 + (long) (side * (0.25 + random.nextDouble()));
+            r.add(new Box(x, y, x + w, y + h));
+        }
+        return r;
+    }
+
+    /**
+     * The tiles of a grid around the view, a fifth of them missing
+     */
+    static List<Box> grid(Random random, int n) {
+        List<Box> r = new ArrayList<>(n);
+        int cells = (int) Math.ceil(Math.sqrt(n * 1.25));
+        long tile = Math.max(1, 3 * VIEW / cells);
+        for (int i = 0; i < cells && r.size() < n; i++) {
+            for (int j = 0; j < cells && r.size() < n; j++) {
+                if (random.nextInt(5) == 0)
+                    continue;
+                long x = -VIEW + i * tile;
+                long y = -VIEW + j * tile;
+                r.add(new Box(x, y, x + tile, y + tile));
+            }
+        }
+        return r;
+    }
+
+    /**
+     * The extended views of a user that has panned in small steps for a long time, from far away to the left of the
+     * view. Only the last ones are near the view, the planning should not get slower with the others.
+     */
+    static List<Box> session(Random random, int n) {
+        List<Box> r = new ArrayList<>(n);
+        long extra = VIEW / 10;
+        long step = VIEW / 10;
+        long y = VIEW / 2;
+        for (int i = 0; i < n; i++) {
+            // The last view is centred on the left side of the view
+            long x = (i - n + 1) * step;
+            // Up and down a little, pulled back towards the middle
+            y += (long) ((random.nextDouble() - 0.5) * VIEW / 3) + (VIEW / 2 - y) / 8;
+            // Zoomed in and out, like the user does
+            long half = (long) (VIEW / 4 * (0.5 + random.nextDouble()));
+            r.add(new Box(x - half - extra, y - half - extra, x + half + extra, y + half + extra));
+        }
+        return r;
+    }
+}
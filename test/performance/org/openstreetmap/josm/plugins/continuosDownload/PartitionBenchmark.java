@@ -0,0 +1,183 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.continuosDownload;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * JMH benchmark of the allocation of the {@link BoxStrategy.Partition} search, compared with the
+ * {@code ArrayList<Box>} based partition it replaced.
+ * <p>
+ * Run it with the {@code benchmarks} profile, {@code mvn -P benchmarks test-compile exec:exec
+ * -Djmh.include=PartitionBenchmark}. The gc profiler gives the bytes allocated per search in
+ * {@code gc.alloc.rate.norm}, and the {@code nodes} counter the expanded nodes per second. The bytes per expanded
+ * node are {@code gc.alloc.rate} divided by {@code nodes}.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PartitionBenchmark {
+
+    /**
+     * The boxes to partition
+     */
+    @State(Scope.Benchmark)
+    public static class Boxes {
+        @Param({"grid", "fragments"})
+        public String layout;
+
+        @Param({"4", "8"})
+        public int maxParts;
+
+        List<Box> set;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            set = "grid".equals(layout) ? grid() : fragments(new Random(42), 40);
+        }
+    }
+
+    /**
+     * The number of expanded nodes, reported per second like the operations
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Nodes {
+        public long nodes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            nodes = 0;
+        }
+    }
+
+    @Benchmark
+    public long legacy(Boxes b, Nodes n) {
+        long expanded = legacyPart(b.maxParts, b.set);
+        n.nodes += expanded;
+        return expanded;
+    }
+
+    @Benchmark
+    public Collection<Box> pooled(Boxes b, Nodes n) {
+        BoxStrategy.SearchStats stats = new BoxStrategy.SearchStats();
+        Collection<Box> r = BoxStrategy.optimalPart(b.maxParts, b.set, Long.MAX_VALUE, Integer.MAX_VALUE, stats);
+        n.nodes += stats.getExpanded();
+        return r;
+    }
+
+    /**
+     * 25 boxes of 2x2 and a smaller box some distance away, the worst case from {@code BoxStrategyTest}
+     */
+    static List<Box> grid() {
+        List<Box> set = new ArrayList<>();
+        for (int i = 0; i < 5; i++)
+            for (int j = 0; j < 5; j++)
+                set.add(new Box(i * 3, j * 3, i * 3 + 2, j * 3 + 2));
+        set.add(new Box(-10, -10, -9, -9));
+        return set;
+    }
+
+    /**
+     * What is left of a view after subtracting a number of earlier downloads
+     */
+    static List<Box> fragments(Random random, int downloads) {
+        List<Box> existing = new ArrayList<>();
+        for (int i = 0; i < downloads; i++) {
+            long x = random.nextInt(1000);
+            long y = random.nextInt(1000);
+            existing.add(new Box(x, y, x + 1 + random.nextInt(300), y + 1 + random.nextInt(300)));
+        }
+        return new ArrayList<>(Box.merge(new Box(0, 0, 1000, 1000).subtract_all(existing)));
+    }
+
+    /**
+     * The search as it was before partitions were packed, returns the number of expanded nodes
+     */
+    static long legacyPart(int maxParts, Collection<Box> set) {
+        ArrayList<Box> list = new ArrayList<>(set);
+        list.sort(Comparator.comparingDouble(Box::size).reversed());
+        PriorityQueue<LegacyPartition> q = new PriorityQueue<>();
+        q.add(new LegacyPartition(new ArrayList<>(), 0, 0));
+        long expanded = 0;
+        while (!q.isEmpty()) {
+            LegacyPartition a = q.remove();
+            if (a.size == list.size()) {
+                return expanded;
+            }
+            expanded++;
+            Box next = list.get(a.size);
+            for (int i = 0; i < maxParts && i <= a.box.size(); i++) {
+                q.add(a.add(next, i));
+            }
+        }
+        return expanded;
+    }
+
+    private static class LegacyPartition implements Comparable<LegacyPartition> {
+        final ArrayList<Box> box;
+        final int size;
+        final double enclosingArea;
+
+        LegacyPartition(ArrayList<Box> n, int i, double area) {
+            box = n;
+            size = i;
+            enclosingArea = area;
+        }
+
+        LegacyPartition add(Box next, int i) {
+            @SuppressWarnings("unchecked")
+            ArrayList<Box> n = (ArrayList<Box>) box.clone();
+            if (n.size() <= i) {
+                n.add(next);
+            } else {
+                n.set(i, n.get(i).union(next));
+            }
+            return new LegacyPartition(n, size + 1, enclosingArea + next.size());
+        }
+
+        @Override
+        public int compareTo(LegacyPartition other) {
+            double a = area() - enclosingArea;
+            double b = other.area() - other.enclosingArea;
+            if (a > b)
+                return 1;
+            if (a < b)
+                return -1;
+            if (size > other.size)
+                return -1;
+            if (size < other.size)
+                return 1;
+            return Integer.compare(box.size(), other.box.size());
+        }
+
+        double area() {
+            double r = 0;
+            for (Box b : box) {
+                r += b.size();
+            }
+            return r;
+        }
+    }
+}
@@ -0,0 +1,354 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.continuosDownload;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.PriorityQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.openstreetmap.josm.data.Bounds;
+import org.openstreetmap.josm.data.Preferences;
+import org.openstreetmap.josm.gui.layer.OsmDataLayer;
+import org.openstreetmap.josm.spi.preferences.Config;
+
+/**
+ * Replays a session recorded by {@link ViewRecorder} against the download strategies, with a simulated server and a
+ * simulated clock, so strategies and settings can be compared on real sessions without the server.
+ * <p>
+ * The replay does what {@link DownloadPlugin} does: every view is given to
+ * {@link AbstractDownloadStrategy#viewChanged(Bounds)}, and a view the {@link ViewDebouncer} finds the user stopped at
+ * is fetched through a {@link DownloadScheduler} with the {@link AdaptiveLimit} and the {@link RateLimiter}. The server answers a request
+ * after a fixed latency and the time it takes to send the data of the area. Run it with the plugin and test classes
+ * on the class path:
+ * <pre>
+ * ReplayHarness views.csv [strategy ...] [latency=ms] [density=primitives/deg^2] [rate=primitives/s] [pref=value ...]
+ * </pre>
+ * The strategies are the registered ones if none are given. Any other {@code pref=value} sets
+ * {@code plugin.continuos_download.pref}, like {@code max_threads=4} or {@code extra_download=0.2}. For each strategy
+ * it prints the number of requests, the requested area, the part of it that was requested again, and the time from
+ * when the user stops at a view until all of the view is downloaded.
+ */
+public final class ReplayHarness {
+    private static final String PREFIX = "plugin.continuos_download.";
+
+    private ReplayHarness() {
+        // Hide the default constructor
+    }
+
+    /**
+     * Run the replay
+     * @param args The recording, the strategies and the settings
+     * @throws IOException if the recording cannot be read
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length == 0) {
+            System.err.println("ReplayHarness views.csv [strategy ...] [latency=ms] [density=primitives/deg^2]"
+                    + " [rate=primitives/s] [pref=value ...]");
+            System.exit(2);
+        }
+        if (Config.getPref() == null) {
+            Preferences pref = new Preferences();
+            pref.enableSaveOnPut(false);
+            Config.setPreferencesInstance(pref);
+        }
+        // Nothing from the disk, the replay is about the server
+        Config.getPref().putBoolean(PREFIX + "cache", false);
+
+        List<ViewRecorder.View> views;
+        try (BufferedReader in = Files.newBufferedReader(Paths.get(args[0]), StandardCharsets.UTF_8)) {
+            views = ViewRecorder.read(in);
+        }
+        Server server = new Server();
+        List<String> strategies = new ArrayList<>();
+        for (String arg : Arrays.asList(args).subList(1, args.length)) {
+            int eq = arg.indexOf('=');
+            if (eq < 0) {
+                strategies.add(arg);
+            } else if (!server.set(arg.substring(0, eq), Double.parseDouble(arg.substring(eq + 1)))) {
+                Config.getPref().put(PREFIX + arg.substring(0, eq), arg.substring(eq + 1));
+            }
+        }
+        if (strategies.isEmpty()) {
+            strategies.addAll(DownloadPlugin.getStrategies());
+            Collections.sort(strategies);
+        }
+
+        System.out.println(String.format(Locale.ENGLISH, "%d views, %s", views.size(), server));
+        System.out.println(Result.HEADER);
+        for (String name : strategies) {
+            AbstractDownloadStrategy registered = DownloadPlugin.getStrategy(name);
+            if (registered == null) {
+                System.err.println("No strategy " + name + ", there are " + DownloadPlugin.getStrategies());
+                continue;
+            }
+            AbstractDownloadStrategy strategy;
+            try {
+                // A new one, the registered one may remember the last session
+                strategy = registered.getClass().getDeclaredConstructor().newInstance();
+            } catch (ReflectiveOperationException e) {
+                strategy = registered;
+            }
+            System.out.println(new Replay(strategy, server).run(views).format(name));
+        }
+    }
+
+    /**
+     * The simulated server: a request takes the latency and the time to send the primitives of the area
+     */
+    static final class Server {
+        /** The time before the data starts to come, in milliseconds */
+        double latency = 300;
+        /** The number of primitives in a degree^2 */
+        double density = 2_000_000;
+        /** The number of primitives sent in a second */
+        double rate = 100_000;
+
+        boolean set(String key, double value) {
+            switch (key) {
+            case "latency":
+                latency = value;
+                return true;
+            case "density":
+                density = value;
+                return true;
+            case "rate":
+                rate = value;
+                return true;
+            default:
+                return false;
+            }
+        }
+
+        /**
+         * Get how long a request takes
+         * @param area The area in degrees^2
+         * @return The time in nanoseconds
+         */
+        long time(double area) {
+            return TimeUnit.MILLISECONDS.toNanos((long) (latency + area * density / rate * 1000));
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ENGLISH, "latency %.0f ms, density %.0f primitives/deg^2, rate %.0f primitives/s",
+                    latency, density, rate);
+        }
+    }
+
+    /**
+     * One replay of a session, with its own clock, coverage and scheduler
+     */
+    static final class Replay {
+        private static final double DEG2 = BoxSet.fromFpi(1) * BoxSet.fromFpi(1);
+
+        private final AbstractDownloadStrategy strategy;
+        private final Server server;
+        private final PriorityQueue<Event> events = new PriorityQueue<>();
+        private final CoverageIndex coverage = new CoverageIndex();
+        private final List<Box> running = new ArrayList<>();
+        /** The views the user stopped at that are not all downloaded yet, and when the user got there */
+        private final List<Box> waiting = new ArrayList<>();
+        private final List<Long> waitingSince = new ArrayList<>();
+        private final DownloadScheduler scheduler;
+        private final ViewDebouncer debouncer;
+        private final Result result = new Result();
+        private long now;
+        private long seq;
+        /** When the view changed the last time */
+        private long changed;
+
+        Replay(AbstractDownloadStrategy strategy, Server server) {
+            this.strategy = strategy;
+            this.server = server;
+            strategy.setClock(() -> TimeUnit.NANOSECONDS.toMillis(now));
+            DownloadScheduler.Alarm alarm = new DownloadScheduler.Alarm() {
+                @Override
+                public boolean schedule(long nanos, Runnable r) {
+                    at(now + nanos, r);
+                    return true;
+                }
+
+                @Override
+                public void cancel() {
+                    // Nothing is cancelled in a replay
+                }
+            };
+            scheduler = new DownloadScheduler(this::start, new AdaptiveLimit(2),
+                    new RateLimiter(() -> now, () -> "replay"), () -> now, alarm);
+            debouncer = new ViewDebouncer(alarm, () -> now, scheduler.getLimit(), this::stopped);
+        }
+
+        Result run(List<ViewRecorder.View> views) {
+            if (views.isEmpty())
+                return result;
+            long start = views.get(0).time;
+            for (ViewRecorder.View view : views) {
+                at(TimeUnit.MILLISECONDS.toNanos(view.time - start), () -> viewChanged(view.bounds));
+            }
+            while (!events.isEmpty()) {
+                Event e = events.remove();
+                now = e.time;
+                e.run.run();
+            }
+            result.notLoaded = waiting.size();
+            return result;
+        }
+
+        /**
+         * What {@link DownloadPlugin#zoomChanged()} does
+         */
+        private void viewChanged(Bounds bbox) {
+            scheduler.setView(BoxSet.toBox(bbox));
+            Bounds ahead = strategy.viewChanged(bbox);
+            if (ahead != null)
+                at(now, () -> fetch(ahead));
+            changed = now;
+            debouncer.viewChanged(bbox);
+        }
+
+        /**
+         * The user has stopped at a view
+         */
+        private void stopped(Bounds bbox) {
+            // The time to data is from when the user stopped, not from when the download started
+            waiting.add(BoxSet.toBox(bbox));
+            waitingSince.add(changed);
+            result.views++;
+            loaded();
+            if (DownloadSettings.get().isCancelStale())
+                scheduler.cancelOutside(BoxSet.toBox(strategy.getFetchBounds(bbox)));
+            fetch(bbox);
+        }
+
+        private void fetch(Bounds bbox) {
+            DownloadSettings settings = DownloadSettings.get();
+            if (bbox.getArea() < settings.getMaxArea())
+                strategy.fetch(bbox, OsmDataLayer.class, settings, coverage, this::running, scheduler);
+        }
+
+        private BoxSet running(Box box) {
+            BoxSet r = new BoxSet();
+            for (Box b : running) {
+                Box i = b.intersection(box);
+                if (i.valid())
+                    r.add(i);
+            }
+            return r;
+        }
+
+        /**
+         * The simulated download, called by the scheduler
+         */
+        private Future<?> start(Class<?> klass, Bounds bbox) {
+            Box box = BoxSet.toBox(bbox);
+            // The part that is downloaded or being downloaded already
+            BoxSet present = coverage.query(box);
+            present.addAll(running(box));
+            double area = box.size() * DEG2;
+            result.requests++;
+            result.area += area;
+            result.redundant += area - BoxSet.of(box).subtractAll(present).area() * DEG2;
+
+            CompletableFuture<Void> future = new CompletableFuture<>();
+            running.add(box);
+            long started = now;
+            at(now + server.time(area), () -> {
+                running.remove(box);
+                coverage.add(box);
+                future.complete(null);
+                scheduler.getLimit().done(started, now, false);
+                scheduler.succeeded();
+                loaded();
+                scheduler.dispatch();
+            });
+            return future;
+        }
+
+        /**
+         * Count the views that are all downloaded now
+         */
+        private void loaded() {
+            Iterator<Box> views = waiting.iterator();
+            Iterator<Long> since = waitingSince.iterator();
+            while (views.hasNext()) {
+                Box view = views.next();
+                long t = since.next();
+                if (coverage.covers(view)) {
+                    result.timeToData.add(now - t);
+                    views.remove();
+                    since.remove();
+                }
+            }
+        }
+
+        private Event at(long time, Runnable r) {
+            Event e = new Event(time, seq++, r);
+            events.add(e);
+            return e;
+        }
+    }
+
+    private static final class Event implements Comparable<Event> {
+        final long time;
+        final long seq;
+        final Runnable run;
+
+        Event(long time, long seq, Runnable run) {
+            this.time = time;
+            this.seq = seq;
+            this.run = run;
+        }
+
+        @Override
+        public int compareTo(Event o) {
+            int c = Long.compare(time, o.time);
+            return c != 0 ? c : Long.compare(seq, o.seq);
+        }
+    }
+
+    /**
+     * What a replay cost and how fast the views were downloaded
+     */
+    static final class Result {
+        static final String HEADER = String.format(Locale.ENGLISH, "%-20s %6s %8s %10s %10s %9s %9s %9s %9s %6s",
+                "strategy", "views", "requests", "area deg2", "redundant", "mean ms", "p50 ms", "p95 ms", "max ms",
+                "never");
+        int views;
+        int requests;
+        double area;
+        double redundant;
+        int notLoaded;
+        /** The time to data of the views that were downloaded, in nanoseconds */
+        final List<Long> timeToData = new ArrayList<>();
+
+        String format(String name) {
+            List<Long> t = new ArrayList<>(timeToData);
+            Collections.sort(t);
+            double mean = t.stream().mapToLong(Long::longValue).average().orElse(0);
+            return String.format(Locale.ENGLISH, "%-20s %6d %8d %10.4f %9.1f%% %9.0f %9.0f %9.0f %9.0f %6d", name, views,
+                    requests, area, area > 0 ? redundant * 100 / area : 0, toMillis(mean), toMillis(percentile(t, 0.5)),
+                    toMillis(percentile(t, 0.95)), toMillis(percentile(t, 1)), notLoaded);
+        }
+
+        private static double percentile(List<Long> sorted, double p) {
+            if (sorted.isEmpty())
+                return 0;
+            return sorted.get(Math.max(0, (int) Math.ceil(p * sorted.size()) - 1));
+        }
+
+        private static double toMillis(double nanos) {
+            return nanos / TimeUnit.MILLISECONDS.toNanos(1);
+        }
+    }
+}
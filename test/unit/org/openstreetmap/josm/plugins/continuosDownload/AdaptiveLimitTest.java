@@ -0,0 +1,65 @@
+package org.openstreetmap.josm.plugins.continuosDownload;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.net.SocketTimeoutException;
+import java.util.Collections;
+
+import org.junit.jupiter.api.Test;
+import org.openstreetmap.josm.io.OsmApiException;
+import org.openstreetmap.josm.io.OsmTransferException;
+
+/**
+ * Test class for {@link AdaptiveLimit}
+ */
+class AdaptiveLimitTest {
+
+    @Test
+    void testIncrease() {
+        AdaptiveLimit limit = new AdaptiveLimit(1);
+        assertEquals(1, limit.get());
+        limit.done(0, 100, Collections.emptyList());
+        assertEquals(2, limit.get());
+        // Not above the number of threads, which is 2 by default
+        for (int i = 0; i < 10; i++) {
+            limit.done(0, 100, Collections.emptyList());
+        }
+        assertEquals(2, limit.get());
+    }
+
+    @Test
+    void testSlow() {
+        AdaptiveLimit limit = new AdaptiveLimit(2);
+        limit.done(0, 100, false);
+        assertEquals(2, limit.get());
+        limit.done(1000, 1500, false);
+        assertEquals(1, limit.get());
+    }
+
+    @Test
+    void testOverload() {
+        AdaptiveLimit limit = new AdaptiveLimit(2);
+        limit.done(0, 100, Collections.singletonList(new OsmApiException(429, "Too many requests", null)));
+        assertEquals(1, limit.get());
+        // It comes back when the server answers again
+        limit.done(200, 300, false);
+        assertEquals(2, limit.get());
+        // The downloads that ran at the same time only halve the limit once
+        limit.done(400, 500, true);
+        limit.done(450, 550, true);
+        limit.done(300, 600, true);
+        assertEquals(1, limit.get());
+        limit.done(700, 800, false);
+        assertEquals(2, limit.get());
+    }
+
+    @Test
+    void testIsOverload() {
+        assertTrue(AdaptiveLimit.isOverload(new OsmApiException(509, "Bandwidth limit exceeded", null)));
+        assertTrue(AdaptiveLimit.isOverload(new OsmTransferException(new SocketTimeoutException())));
+        assertFalse(AdaptiveLimit.isOverload(new OsmApiException(404, "Not found", null)));
+        assertFalse(AdaptiveLimit.isOverload("An error message"));
+    }
+}
@@ -0,0 +1,127 @@
+package org.openstreetmap.josm.plugins.continuosDownload;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Test class for {@link BoxSet}
+ */
+class BoxSetTest {
+
+    @Test
+    void testAdd() {
+        BoxSet set = new BoxSet(1);
+        for (int i = 0; i < 100; i++) {
+            set.add(i, 0, i + 1, 1);
+        }
+        assertEquals(100, set.size());
+        assertEquals(new Box(42, 0, 43, 1), set.get(42));
+        assertEquals(100, set.area());
+    }
+
+    @Test
+    void testSubtractAll() {
+        Random random = new Random(1);
+        for (int i = 0; i < 100; i++) {
+            BoxSet others = new BoxSet();
+            for (int j = 0; j < 10; j++) {
+                others.add(randomBox(random));
+            }
+            Box x = new Box(0, 0, 100, 100);
+            BoxSet rest = BoxSet.of(x).subtractAll(others);
+
+            for (int a = 0; a < rest.size(); a++) {
+                Box b = rest.get(a);
+                assertTrue(b.valid());
+                assertTrue(x.intersection(b).equals(b));
+                assertFalse(others.intersectsAny(b.x.min, b.y.min, b.x.max, b.y.max));
+                for (int c = a + 1; c < rest.size(); c++) {
+                    assertFalse(b.intersects(rest.get(c)));
+                }
+            }
+            assertEquals(uncovered(others), rest.area());
+        }
+    }
+
+    @Test
+    void testSubtractAllFragments() {
+        // A cross leaves the four corners, nothing more
+        BoxSet cross = new BoxSet();
+        cross.add(0, 4, 10, 6);
+        cross.add(4, 0, 6, 10);
+        BoxSet rest = BoxSet.of(new Box(0, 0, 10, 10)).subtractAll(cross);
+        assertEquals(4, rest.size());
+        assertEquals(64, rest.area());
+
+        // Overlapping boxes give disjoint boxes
+        BoxSet set = new BoxSet();
+        set.add(0, 0, 10, 10);
+        set.add(5, 5, 15, 15);
+        rest = set.subtractAll(new BoxSet());
+        assertEquals(175, rest.area());
+        assertEquals(3, rest.size());
+    }
+
+    @Test
+    void testMerge() {
+        BoxSet set = new BoxSet();
+        set.add(0, 0, 1, 1);
+        set.add(1, 0, 2, 1);
+        set.add(0, 1, 2, 2);
+        set.add(5, 5, 6, 6);
+        BoxSet merged = set.merge();
+        assertEquals(2, merged.size());
+        assertEquals(5, merged.area());
+    }
+
+    @Test
+    void testSortBySize() {
+        Random random = new Random(2);
+        BoxSet set = new BoxSet();
+        for (int i = 0; i < 1000; i++) {
+            set.add(randomBox(random));
+        }
+        long area = set.area();
+        set.sortBySize();
+        assertEquals(1000, set.size());
+        assertEquals(area, set.area());
+        for (int i = 1; i < set.size(); i++) {
+            assertTrue(set.size(i - 1) >= set.size(i));
+        }
+    }
+
+    @Test
+    void testTouching() {
+        BoxSet set = new BoxSet();
+        set.add(0, 0, 1, 1);
+        set.add(1, 1, 2, 2);
+        set.add(3, 3, 4, 4);
+        assertEquals(2, set.touching(new Box(1, 1, 2, 2)).size());
+        assertEquals(2, set.intersectionArea(new Box(0, 0, 2, 2)));
+    }
+
+    /**
+     * The area of (0, 0, 100, 100) not covered by the boxes, with a unit grid
+     */
+    private static long uncovered(BoxSet set) {
+        long r = 0;
+        for (int x = 0; x < 100; x++) {
+            for (int y = 0; y < 100; y++) {
+                if (!set.intersectsAny(x, y, x + 1, y + 1))
+                    r++;
+            }
+        }
+        return r;
+    }
+
+    private static Box randomBox(Random random) {
+        long x = random.nextInt(100);
+        long y = random.nextInt(100);
+        return new Box(x, y, x + 1 + random.nextInt(40), y + 1 + random.nextInt(40));
+    }
+}
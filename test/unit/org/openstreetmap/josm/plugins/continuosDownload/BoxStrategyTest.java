@@ -4,10 +4,13 @@ package org.openstreetmap.josm.plugins.continuosDownload;
 import static org.junit.jupiter.api.Assertions.assertDoesNotThrow;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 
 import org.junit.jupiter.api.Test;
 import org.openstreetmap.josm.data.Bounds;
@@ -44,6 +47,28 @@ class BoxStrategyTest {
         }
     }
 
+    @Test
+    void testSurrounding() {
+        Collection<Bounds> existing = new ArrayList<>();
+        existing.add(new Bounds(0, 0, 1, 1));
+        existing.add(new Bounds(0, 1, 1, 2));
+
+        BoxStrategy strat = new BoxStrategy();
+
+        // A ring around the two existing boxes, this can be fetched as 4 boxes without any extra area
+        Collection<Bounds> r = strat.getBoxes(new Bounds(-1, -1, 2, 3), existing, 4);
+
+        assertEquals(4, r.size());
+        double area = 0;
+        for (Bounds b : r) {
+            area += b.getArea();
+            for (Bounds e : existing) {
+                assertFalse(BoxStrategy.fromBounds(e).intersects(BoxStrategy.fromBounds(b)));
+            }
+        }
+        assertEquals(10, area, 0.000000001);
+    }
+
     @Test
     void testStress() {
         /*
@@ -62,6 +87,38 @@ class BoxStrategyTest {
         assertTrue(System.currentTimeMillis() < t0 + 4000);
     }
 
+    @Test
+    void testBudget() {
+        ArrayList<Box> set = new ArrayList<>();
+        for (int i = 0; i < 5; i++)
+            for (int j = 0; j < 5; j++)
+                set.add(new Box(i * 3, j * 3, i * 3 + 2, j * 3 + 2));
+        set.add(new Box(-10, -10, -9, -9));
+
+        BoxStrategy.SearchStats stats = new BoxStrategy.SearchStats();
+        Collection<Box> r = BoxStrategy.optimalPart(4, set, 1000, 10, stats);
+
+        // The search is cut short, but the result must still cover every box
+        assertTrue(stats.isExhausted());
+        assertEquals(10, stats.getExpanded());
+        assertTrue(r.size() <= 4);
+        for (Box b : set) {
+            assertTrue(r.stream().anyMatch(p -> p.union(b).equals(p)));
+        }
+    }
+
+    @Test
+    void testSearchStats() {
+        BoxStrategy strat = new BoxStrategy();
+        assertNull(strat.getLastSearchStats());
+        strat.getBoxes(new Bounds(0, -1, 1, 2), Collections.singleton(new Bounds(0, 0, 1, 1)), 3);
+        BoxStrategy.SearchStats stats = strat.getLastSearchStats();
+        assertNotNull(stats);
+        assertFalse(stats.isExhausted());
+        assertTrue(stats.getExpanded() > 0);
+        assertTrue(stats.getQueued() >= stats.getExpanded());
+    }
+
     /**
      * Non-regression test for #22351: NPE: Cannot invoke "java.util.Collection.isEmpty()" because "existing" is null
      */
@@ -6,6 +6,7 @@ import static org.junit.jupiter.api.Assertions.assertTrue;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 
 import org.junit.jupiter.api.Test;
 
@@ -90,6 +91,72 @@ class BoxTest {
         }
     }
 
+    @Test
+    void testMerge() {
+        Collection<Box> adjacent = new ArrayList<>();
+        adjacent.add(new Box(0, 0, 1, 1));
+        adjacent.add(new Box(1, 0, 2, 1));
+        adjacent.add(new Box(0, 1, 2, 2));
+        assertEquals(Collections.singletonList(new Box(0, 0, 2, 2)), Box.merge(adjacent));
+
+        Collection<Box> contained = new ArrayList<>();
+        contained.add(new Box(1, 1, 2, 2));
+        contained.add(new Box(0, 0, 3, 3));
+        assertEquals(Collections.singletonList(new Box(0, 0, 3, 3)), Box.merge(contained));
+
+        Collection<Box> diagonal = new ArrayList<>();
+        diagonal.add(new Box(0, 0, 1, 1));
+        diagonal.add(new Box(1, 1, 2, 2));
+        assertEquals(2, Box.merge(diagonal).size());
+
+        assertTrue(Box.merge(new ArrayList<>()).isEmpty());
+    }
+
+    @Test
+    void testMergeSubtraction() {
+        for (int i = 0; i < 10; i++) {
+            Box x = random_box();
+            Collection<Box> array = new ArrayList<>(10);
+            for (int j = 0; j < 10; j++) {
+                array.add(random_box());
+            }
+            Collection<Box> subtraction = x.subtract_all(array);
+            Collection<Box> merged = Box.merge(subtraction);
+            assertTrue(merged.size() <= subtraction.size());
+            // Merging disjoint boxes must not add any area
+            assertEquals(area(subtraction), area(merged));
+            for (Box b : merged) {
+                for (Box a : array) {
+                    assertFalse(a.intersects(b));
+                }
+                for (Box a : merged) {
+                    assertFalse(a != b && a.intersects(b));
+                }
+            }
+        }
+    }
+
+    @Test
+    void testMergeLarge() {
+        // The old recursive merge went one level deeper for every box that could not be merged
+        Collection<Box> strip = new ArrayList<>();
+        Collection<Box> grid = new ArrayList<>();
+        for (int i = 0; i < 10000; i++) {
+            strip.add(new Box(i, 0, i + 1, 1));
+            grid.add(new Box((i % 100) * 3, (i / 100) * 3, (i % 100) * 3 + 2, (i / 100) * 3 + 2));
+        }
+        assertEquals(Collections.singletonList(new Box(0, 0, 10000, 1)), Box.merge(strip));
+        assertEquals(10000, Box.merge(grid).size());
+    }
+
+    private static long area(Collection<Box> boxes) {
+        long r = 0;
+        for (Box b : boxes) {
+            r += b.size();
+        }
+        return r;
+    }
+
     private Box random_box() {
         long minx = (long) (Math.random() * 2000 - 1000);
         long miny = (long) (Math.random() * 2000 - 1000);
@@ -0,0 +1,70 @@
+package org.openstreetmap.josm.plugins.continuosDownload;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Test class for {@link CoverageIndex}
+ */
+class CoverageIndexTest {
+
+    @Test
+    void testCovers() {
+        CoverageIndex index = new CoverageIndex();
+        assertTrue(index.isEmpty());
+        index.add(new Box(0, 0, 10, 10));
+        index.add(new Box(10, 0, 20, 10));
+        assertTrue(index.covers(new Box(5, 2, 15, 8)));
+        assertFalse(index.covers(new Box(5, 2, 15, 12)));
+        assertEquals(100, index.uncovered(new Box(0, 0, 20, 15)).area());
+    }
+
+    @Test
+    void testCoveredNotAdded() {
+        CoverageIndex index = new CoverageIndex();
+        index.add(new Box(0, 0, 100, 100));
+        for (int i = 0; i < 10; i++) {
+            index.add(new Box(i, i, i + 10, i + 10));
+        }
+        assertEquals(1, index.size());
+    }
+
+    @Test
+    void testCrossing() {
+        CoverageIndex index = new CoverageIndex();
+        // Boxes across the middle of the world and of smaller cells
+        index.add(new Box(-5, -5, 5, 5));
+        index.add(new Box((1L << 20) - 5, 0, (1L << 20) + 5, 10));
+        index.add(new Box(-5, 100, 5, 110));
+        assertEquals(3, index.size());
+        assertTrue(index.covers(new Box(-3, -3, 3, 3)));
+        assertTrue(index.covers(new Box((1L << 20) - 1, 1, (1L << 20) + 1, 9)));
+        assertEquals(100, index.query(new Box(-100, 100, 100, 200)).area());
+        assertEquals(100, index.uncovered(new Box(-5, -5, 5, 15)).area());
+    }
+
+    @Test
+    void testQuery() {
+        Random random = new Random(3);
+        CoverageIndex index = new CoverageIndex();
+        BoxSet all = new BoxSet();
+        for (int i = 0; i < 1000; i++) {
+            long x = (random.nextInt(2000) - 1000) * 1000000L;
+            long y = (random.nextInt(1000) - 500) * 1000000L;
+            Box b = new Box(x, y, x + 1 + random.nextInt(10000000), y + 1 + random.nextInt(10000000));
+            all.add(b);
+            index.add(b);
+        }
+        for (int i = 0; i < 100; i++) {
+            long x = (random.nextInt(2000) - 1000) * 1000000L;
+            long y = (random.nextInt(1000) - 500) * 1000000L;
+            Box view = new Box(x, y, x + 50000000, y + 50000000);
+            assertEquals(BoxSet.of(view).subtractAll(all).area(), index.uncovered(view).area());
+        }
+    }
+}
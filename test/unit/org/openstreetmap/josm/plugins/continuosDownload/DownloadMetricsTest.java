@@ -0,0 +1,79 @@
+package org.openstreetmap.josm.plugins.continuosDownload;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.net.SocketTimeoutException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+import org.openstreetmap.josm.gui.layer.GpxLayer;
+import org.openstreetmap.josm.gui.layer.OsmDataLayer;
+import org.openstreetmap.josm.io.OsmApiException;
+
+/**
+ * Test class for {@link DownloadMetrics}
+ */
+class DownloadMetricsTest {
+
+    @Test
+    void testRequested() {
+        DownloadMetrics metrics = new DownloadMetrics();
+        for (int i = 1; i <= 20; i++) {
+            metrics.requested(OsmDataLayer.class, TimeUnit.MILLISECONDS.toNanos(i * 100L), Collections.emptyList());
+        }
+        metrics.requested(GpxLayer.class, TimeUnit.MILLISECONDS.toNanos(10),
+                Arrays.asList(new OsmApiException(429, "", ""), new SocketTimeoutException()));
+        metrics.cached(OsmDataLayer.class);
+
+        Map<String, Number> r = metrics.snapshot();
+        assertEquals(20L, r.get("OsmDataLayer.requests"));
+        assertEquals(0L, r.get("OsmDataLayer.failed"));
+        assertEquals(1L, r.get("OsmDataLayer.cached"));
+        assertEquals(1050.0, r.get("OsmDataLayer.latency_ms.mean"));
+        // The upper bound of the bucket
+        assertEquals(1000.0, r.get("OsmDataLayer.latency_ms.p50"));
+        assertEquals(2000.0, r.get("OsmDataLayer.latency_ms.max"));
+        assertEquals(2L, r.get("OsmDataLayer.latency_ms.le_250"));
+        assertEquals(1L, r.get("GpxLayer.failed"));
+        assertEquals(1L, r.get("errors.http_429"));
+        assertEquals(1L, r.get("errors.SocketTimeoutException"));
+    }
+
+    @Test
+    void testPlanned() {
+        DownloadMetrics metrics = new DownloadMetrics();
+        long d = BoxSet.toFpi(1);
+        BoxSet present = BoxSet.of(new Box(0, 0, d / 2, d));
+        BoxSet toFetch = BoxSet.of(new Box(d / 4, 0, d, d));
+        metrics.planned(OsmDataLayer.class, 1000, new Box(0, 0, d, d), present, toFetch);
+
+        Map<String, Number> r = metrics.snapshot();
+        assertEquals(1L, r.get("fetches"));
+        assertEquals(0.75, r.get("area_planned_deg2").doubleValue(), 1e-9);
+        assertEquals(0.5, r.get("area_present_deg2").doubleValue(), 1e-9);
+        assertEquals(0.5, r.get("area_gained_deg2").doubleValue(), 1e-9);
+        assertEquals(1 / 3.0, r.get("overlap_ratio").doubleValue(), 1e-9);
+        assertEquals(1L, r.get("planning_ms.le_0.1"));
+    }
+
+    @Test
+    void testExport() {
+        DownloadMetrics metrics = new DownloadMetrics();
+        metrics.queued(4);
+        metrics.queued(2);
+        String csv = metrics.toCsv();
+        assertTrue(csv.startsWith("metric,value\n"), csv);
+        assertTrue(csv.contains("\nqueue_max,4\n"), csv);
+        assertTrue(csv.contains("\nqueue_mean,3.00000\n"), csv);
+        String json = metrics.toJson();
+        assertTrue(json.startsWith("{\n  \"bytes\": 0,\n"), json);
+        assertTrue(json.endsWith("  \"queue_max\": 4\n}\n"), json);
+
+        metrics.reset();
+        assertEquals(0, metrics.snapshot().get("queue_max"));
+    }
+}
@@ -0,0 +1,159 @@
+package org.openstreetmap.josm.plugins.continuosDownload;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.jupiter.api.Test;
+import org.openstreetmap.josm.gui.layer.OsmDataLayer;
+
+/**
+ * Test class for {@link DownloadScheduler}
+ */
+class DownloadSchedulerTest {
+    private long rateTime;
+    private long time;
+    private final List<Box> started = new ArrayList<>();
+    private final List<CompletableFuture<Void>> futures = new ArrayList<>();
+    private final DownloadScheduler scheduler = new DownloadScheduler((klass, bbox) -> {
+        started.add(BoxSet.toBox(bbox));
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        futures.add(future);
+        return future;
+    }, new AdaptiveLimit(2), new RateLimiter(() -> rateTime += TimeUnit.MINUTES.toNanos(1),
+            () -> "test"), () -> time);
+
+    private static BoxSet boxes(Box... boxes) {
+        BoxSet r = new BoxSet();
+        for (Box b : boxes) {
+            r.add(b);
+        }
+        return r;
+    }
+
+    @Test
+    void testViewFirst() {
+        scheduler.setView(new Box(0, 0, 100, 100));
+        Box far = new Box(1000, 1000, 1100, 1100);
+        Box near = new Box(100, 0, 200, 100);
+        Box center = new Box(20, 20, 80, 80);
+        Box visible = new Box(50, -50, 150, 50);
+        scheduler.submit(OsmDataLayer.class, boxes(far, near, center, visible));
+
+        // Two threads, the rest waits
+        assertEquals(2, started.size());
+        assertEquals(center, started.get(0));
+        assertEquals(visible, started.get(1));
+
+        futures.get(0).complete(null);
+        scheduler.dispatch();
+        assertEquals(near, started.get(2));
+        futures.get(1).complete(null);
+        scheduler.dispatch();
+        assertEquals(far, started.get(3));
+    }
+
+    @Test
+    void testCoalesce() {
+        scheduler.setView(new Box(0, 0, 100, 100));
+        // Fill the threads
+        scheduler.submit(OsmDataLayer.class, boxes(new Box(0, 0, 10, 10), new Box(10, 0, 20, 10)));
+
+        // A box inside a waiting box is dropped, and a box replaces the waiting boxes inside it
+        scheduler.submit(OsmDataLayer.class, boxes(new Box(200, 200, 300, 300), new Box(220, 220, 230, 230)));
+        assertEquals(100 * 100, scheduler.queued(OsmDataLayer.class, new Box(0, 0, 1000, 1000)).area());
+        scheduler.submit(OsmDataLayer.class, boxes(new Box(200, 200, 400, 400)));
+        assertEquals(200 * 200, scheduler.queued(OsmDataLayer.class, new Box(0, 0, 1000, 1000)).area());
+        assertEquals(2, started.size());
+    }
+
+    @Test
+    void testBounded() {
+        scheduler.setView(new Box(0, 0, 100, 100));
+        scheduler.submit(OsmDataLayer.class, boxes(new Box(0, 0, 10, 10), new Box(10, 0, 20, 10)));
+        for (int i = 0; i < 3 * DownloadScheduler.DEFAULT_MAX_QUEUE; i++) {
+            scheduler.submit(OsmDataLayer.class, boxes(new Box(i * 100, 500, i * 100 + 50, 550)));
+        }
+        BoxSet queued = scheduler.queued(OsmDataLayer.class, new Box(-10000, -10000, 10000, 10000));
+        assertTrue(queued.size() <= DownloadScheduler.DEFAULT_MAX_QUEUE);
+        // Nothing has been lost, the boxes have been joined
+        assertTrue(BoxSet.of(new Box(0, 500, 3 * DownloadScheduler.DEFAULT_MAX_QUEUE * 100 - 50, 550))
+                .subtractAll(queued).area() <= 3 * DownloadScheduler.DEFAULT_MAX_QUEUE * 50 * 50);
+    }
+
+    @Test
+    void testCancelOutside() {
+        scheduler.setView(new Box(0, 0, 100, 100));
+        scheduler.submit(OsmDataLayer.class, boxes(new Box(0, 0, 10, 10), new Box(10, 0, 20, 10),
+                new Box(20, 0, 30, 10), new Box(1000, 1000, 1100, 1100)));
+        assertEquals(1, scheduler.cancelOutside(new Box(0, 0, 100, 100)));
+        assertEquals(100, scheduler.queued(OsmDataLayer.class, new Box(-10000, -10000, 10000, 10000)).area());
+    }
+
+    @Test
+    void testRetry() {
+        scheduler.setView(new Box(0, 0, 10000, 10000));
+        // Fill the threads
+        scheduler.submit(OsmDataLayer.class, boxes(new Box(0, 0, 10, 10), new Box(10, 0, 20, 10)));
+        futures.forEach(f -> f.complete(null));
+
+        Box large = new Box(0, 0, 100000, 40000);
+        assertTrue(scheduler.retry(OsmDataLayer.class, large));
+        // The parts wait a while, but they are pending already
+        assertEquals(2, started.size());
+        assertEquals(large.size(), scheduler.queued(OsmDataLayer.class, large).area());
+
+        time += DownloadScheduler.RETRY_DELAY;
+        scheduler.dispatch();
+        assertEquals(4, started.size());
+        assertEquals(new Box(0, 0, 50000, 20000), started.get(2));
+
+        // A box is split along one side if the other is too short, and not at all if both are
+        Box thin = new Box(0, 100000, 100000, 100000 + DownloadScheduler.MIN_SPLIT_SIZE);
+        assertTrue(scheduler.retry(OsmDataLayer.class, thin));
+        assertEquals(2, scheduler.queued(OsmDataLayer.class, thin).size());
+        assertFalse(scheduler.retry(OsmDataLayer.class,
+                new Box(0, 0, DownloadScheduler.MIN_SPLIT_SIZE, DownloadScheduler.MIN_SPLIT_SIZE)));
+    }
+
+    @Test
+    void testExecutorAlarm() throws InterruptedException {
+        DownloadScheduler.ExecutorAlarm a = new DownloadScheduler.ExecutorAlarm();
+        DownloadScheduler.ExecutorAlarm b = new DownloadScheduler.ExecutorAlarm();
+        AtomicBoolean cancelled = new AtomicBoolean();
+        CountDownLatch ran = new CountDownLatch(1);
+        a.schedule(TimeUnit.MILLISECONDS.toNanos(50), () -> cancelled.set(true));
+        b.schedule(TimeUnit.MILLISECONDS.toNanos(100), ran::countDown);
+        // Only the alarms of the one that is cancelled are forgotten, they share the thread
+        a.cancel();
+        assertTrue(ran.await(10, TimeUnit.SECONDS));
+        assertFalse(cancelled.get());
+
+        // An alarm with a thread of its own does not wait for the shared one
+        CountDownLatch blocked = new CountDownLatch(1);
+        CountDownLatch own = new CountDownLatch(1);
+        a.schedule(0, () -> {
+            try {
+                blocked.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        new DownloadScheduler.ExecutorAlarm("test").schedule(0, own::countDown);
+        assertTrue(own.await(10, TimeUnit.SECONDS));
+        blocked.countDown();
+
+        // A new thread is made after the plugin has been destroyed
+        DownloadScheduler.ExecutorAlarm.shutdown();
+        CountDownLatch again = new CountDownLatch(1);
+        b.schedule(0, again::countDown);
+        assertTrue(again.await(10, TimeUnit.SECONDS));
+    }
+}
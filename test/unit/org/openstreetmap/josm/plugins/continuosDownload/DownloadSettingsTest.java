@@ -0,0 +1,92 @@
+package org.openstreetmap.josm.plugins.continuosDownload;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.openstreetmap.josm.spi.preferences.Config;
+
+/**
+ * Test class for {@link DownloadSettings}
+ */
+class DownloadSettingsTest {
+
+    @AfterEach
+    void tearDown() {
+        Config.getPref().put("plugin.continuos_download.max_areas", null);
+        Config.getPref().put("download.osm.gps", null);
+        Config.getPref().put("plugin.continuos_download.requests_per_second.test", null);
+        Config.getPref().put("plugin.continuos_download.cache_ttl", null);
+    }
+
+    @Test
+    void testSnapshot() {
+        DownloadSettings settings = DownloadSettings.get();
+        // Nothing is read again while nothing changes
+        assertSame(settings, DownloadSettings.get());
+        assertEquals(4, settings.getMaxAreas());
+        // Another preference does not matter
+        Config.getPref().put("some.other.key", "1");
+        assertSame(settings, DownloadSettings.get());
+    }
+
+    @Test
+    void testChange() {
+        DownloadSettings before = DownloadSettings.get();
+        Config.getPref().putInt("plugin.continuos_download.max_areas", 7);
+        DownloadSettings after = DownloadSettings.get();
+        assertNotSame(before, after);
+        assertEquals(7, after.getMaxAreas());
+        // A snapshot is never changed
+        assertEquals(4, before.getMaxAreas());
+
+        // The preferences of JOSM the plugin uses
+        assertFalse(after.isDownloadGps());
+        Config.getPref().putBoolean("download.osm.gps", true);
+        assertTrue(DownloadSettings.get().isDownloadGps());
+    }
+
+    @Test
+    void testServerRates() {
+        assertEquals(RateLimiter.DEFAULT_REQUESTS_PER_SECOND, DownloadSettings.get().getRequestsPerSecond("test"));
+        Config.getPref().putDouble("plugin.continuos_download.requests_per_second.test", 5);
+        DownloadSettings settings = DownloadSettings.get();
+        assertEquals(5, settings.getRequestsPerSecond("test"));
+        // The other servers and the area keep the defaults
+        assertEquals(RateLimiter.DEFAULT_REQUESTS_PER_SECOND, settings.getRequestsPerSecond("other"));
+        assertEquals(RateLimiter.DEFAULT_AREA_PER_MINUTE, settings.getAreaPerMinute("test"));
+    }
+
+    @Test
+    void testCache() {
+        DownloadSettings settings = DownloadSettings.get();
+        assertFalse(settings.isCache());
+        assertEquals(ResponseCache.DEFAULT_TTL, settings.getCacheTtl());
+        assertEquals(ResponseCache.DEFAULT_SIZE, settings.getCacheSize());
+        Config.getPref().putLong("plugin.continuos_download.cache_ttl", 60);
+        assertEquals(60, DownloadSettings.get().getCacheTtl());
+    }
+
+    @Test
+    void testStop() {
+        DownloadSettings before = DownloadSettings.get();
+        DownloadSettings.stop();
+        // Read again, with the listener added again
+        DownloadSettings after = DownloadSettings.get();
+        assertNotSame(before, after);
+        Config.getPref().putInt("plugin.continuos_download.max_areas", 7);
+        assertEquals(7, DownloadSettings.get().getMaxAreas());
+    }
+
+    @Test
+    void testIsSetting() {
+        assertTrue(DownloadSettings.isSetting("plugin.continuos_download.wait_time"));
+        assertTrue(DownloadSettings.isSetting("download.osm.notes"));
+        assertFalse(DownloadSettings.isSetting("download.osm.other"));
+        assertFalse(DownloadSettings.isSetting(null));
+    }
+}
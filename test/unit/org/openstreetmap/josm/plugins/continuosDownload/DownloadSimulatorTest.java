@@ -0,0 +1,203 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.continuosDownload;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.jar.Attributes;
+
+import org.awaitility.Awaitility;
+import org.awaitility.Durations;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+import org.openstreetmap.josm.actions.downloadtasks.DownloadGpsTask;
+import org.openstreetmap.josm.actions.downloadtasks.DownloadNotesTask;
+import org.openstreetmap.josm.actions.downloadtasks.DownloadParams;
+import org.openstreetmap.josm.data.Bounds;
+import org.openstreetmap.josm.gui.layer.OsmDataLayer;
+import org.openstreetmap.josm.gui.progress.NullProgressMonitor;
+import org.openstreetmap.josm.io.OsmApiException;
+import org.openstreetmap.josm.plugins.PluginException;
+import org.openstreetmap.josm.plugins.PluginInformation;
+import org.openstreetmap.josm.spi.preferences.Config;
+import org.openstreetmap.josm.testutils.annotations.BasicPreferences;
+import org.openstreetmap.josm.testutils.annotations.Main;
+import org.openstreetmap.josm.testutils.annotations.Projection;
+import org.openstreetmap.josm.tools.Logging;
+import org.openstreetmap.josm.tools.ReflectionUtils;
+
+/**
+ * Runs the downloads against the {@link OsmApiSimulator}: the throughput and the latency of {@link DownloadOsmTask2} on
+ * the worker pool, the splitting of boxes with too many nodes and the handling of the errors of the server.
+ */
+@BasicPreferences
+@Main
+@Projection
+class DownloadSimulatorTest {
+    private OsmApiSimulator server;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        server = new OsmApiSimulator();
+        Config.getPref().put("osm-server.url", server.getUrl());
+        // Every request goes to the server
+        Config.getPref().putBoolean("plugin.continuos_download.cache", false);
+        Config.getPref().putBoolean("plugin.continuos_download.quiet_download", true);
+        DownloadScheduler.get().clear();
+        DownloadMetrics.get().reset();
+    }
+
+    @AfterEach
+    void tearDown() {
+        DownloadScheduler.get().clear();
+        server.close();
+    }
+
+    /**
+     * Many boxes at the same time, slowed down like a real server
+     */
+    @Timeout(60)
+    @Test
+    void testThroughput() throws Exception {
+        server.latency = 50;
+        server.bandwidth = 500_000;
+        int n = 40;
+        List<DownloadOsmTask2> tasks = new ArrayList<>();
+        List<Future<?>> futures = new ArrayList<>();
+        long start = System.nanoTime();
+        for (int i = 0; i < n; i++) {
+            double lon = (i % 8) * 0.02;
+            double lat = (i / 8) * 0.02;
+            DownloadOsmTask2 task = new DownloadOsmTask2();
+            tasks.add(task);
+            futures.add(task.download(new DownloadParams(), new Bounds(lat, lon, lat + 0.02, lon + 0.02),
+                    NullProgressMonitor.INSTANCE));
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        long elapsed = System.nanoTime() - start;
+        for (DownloadOsmTask2 task : tasks) {
+            assertTrue(task.getErrorObjects().isEmpty(), task.getErrorObjects().toString());
+        }
+        assertEquals(n, server.getCount("map"));
+
+        List<Long> times = server.getTimes();
+        Logging.info(String.format(Locale.ENGLISH, "%d requests in %d ms, %.1f/s, p50 %d ms, p95 %d ms, p99 %d ms", n,
+                TimeUnit.NANOSECONDS.toMillis(elapsed), n * 1e9 / elapsed, percentile(times, 0.5),
+                percentile(times, 0.95), percentile(times, 0.99)));
+        // The pool runs the downloads at the same time, but not more of them than it has threads
+        int threads = ((ThreadPoolExecutor) DownloadPlugin.getWorker()).getMaximumPoolSize();
+        int inFlight = server.getMaxInFlight();
+        assertTrue(inFlight > 1 || threads == 1, "The downloads did not run in parallel");
+        assertTrue(inFlight <= threads, inFlight + " downloads at the same time, the pool has " + threads + " threads");
+    }
+
+    /**
+     * A box with too many nodes is split, and the parts are downloaded instead
+     */
+    @Timeout(30)
+    @Test
+    void testTooManyNodes() {
+        // 400 nodes in the box, 100 in a quarter
+        server.density = 1_000_000;
+        server.nodeLimit = 200;
+        AbstractDownloadStrategy.start(OsmDataLayer.class, new Bounds(0, 0, 0.02, 0.02));
+        Awaitility.await().pollInterval(Durations.ONE_HUNDRED_MILLISECONDS).atMost(Durations.TEN_SECONDS)
+                .until(() -> server.getCount("map.200") >= 4);
+        assertEquals(1, server.getCount("map.400"));
+        // The error is not shown
+        Map<String, Number> metrics = DownloadMetrics.get().snapshot();
+        assertEquals(1L, metrics.get("splits"));
+        assertFalse(metrics.containsKey("errors.http_400"));
+    }
+
+    /**
+     * A box that has too many nodes but is too small to split turns the plugin off
+     */
+    @Timeout(30)
+    @Test
+    void testTooManyNodesSmall() throws PluginException, ReflectiveOperationException {
+        server.density = 100_000_000;
+        server.nodeLimit = 0;
+        DownloadPlugin plugin = new DownloadPlugin(new PluginInformation(new Attributes(), "ContinuousDownload", null));
+        try {
+            Field active = DownloadPlugin.class.getDeclaredField("active");
+            ReflectionUtils.setObjectsAccessible(active);
+            active.setBoolean(plugin, true);
+            double side = BoxSet.fromFpi(DownloadScheduler.MIN_SPLIT_SIZE);
+            AbstractDownloadStrategy.start(OsmDataLayer.class, new Bounds(0, 0, side, side));
+            Awaitility.await().pollInterval(Durations.ONE_HUNDRED_MILLISECONDS).atMost(Durations.TEN_SECONDS)
+                    .until(() -> !active.getBoolean(plugin));
+            assertEquals(1, server.getCount("map.400"));
+        } finally {
+            // The listeners and the threads of the plugin are not left to the other tests
+            plugin.destroy();
+        }
+        // The pool is stopped with the plugin, and made again when it is needed
+        assertFalse(DownloadPlugin.getWorker().isShutdown());
+    }
+
+    /**
+     * The server refuses the downloads because of the bandwidth, fewer are run at the same time
+     */
+    @Timeout(30)
+    @Test
+    void testBandwidthLimitExceeded() throws Exception {
+        server.rejectEvery = 1;
+        int before = DownloadScheduler.get().getLimit().get();
+        DownloadOsmTask2 task = new DownloadOsmTask2();
+        task.download(new DownloadParams(), new Bounds(0, 0, 0.01, 0.01), NullProgressMonitor.INSTANCE).get();
+        assertEquals(1, server.getCount("map.509"));
+        assertEquals(1, task.getErrorObjects().size());
+        Object error = task.getErrorObjects().get(0);
+        assertTrue(error instanceof OsmApiException, error.toString());
+        assertEquals(509, ((OsmApiException) error).getResponseCode());
+        assertTrue(DownloadScheduler.get().getLimit().get() <= Math.max(1, before / 2));
+    }
+
+    /**
+     * The GPS trackpoints are read page by page
+     */
+    @Timeout(30)
+    @Test
+    void testTrackpoints() throws Exception {
+        // 10000 points, two full pages and an empty one
+        server.density = 1_000_000;
+        DownloadGpsTask task = new DownloadGpsTask();
+        task.download(new DownloadParams(), new Bounds(0, 0, 0.1, 0.1), NullProgressMonitor.INSTANCE).get();
+        assertTrue(task.getErrorObjects().isEmpty(), task.getErrorObjects().toString());
+        assertEquals(3, server.getCount("trackpoints"));
+    }
+
+    /**
+     * The notes of an area
+     */
+    @Timeout(30)
+    @Test
+    void testNotes() throws Exception {
+        DownloadNotesTask task = new DownloadNotesTask();
+        task.download(new DownloadParams(), new Bounds(0, 0, 0.1, 0.1), NullProgressMonitor.INSTANCE).get();
+        assertTrue(task.getErrorObjects().isEmpty(), task.getErrorObjects().toString());
+        assertEquals(1, server.getCount("notes"));
+        assertEquals(0, server.getCount("notes.400"));
+    }
+
+    private static long percentile(List<Long> sorted, double p) {
+        if (sorted.isEmpty())
+            return 0;
+        return TimeUnit.NANOSECONDS.toMillis(sorted.get(Math.max(0, (int) Math.ceil(p * sorted.size()) - 1)));
+    }
+}
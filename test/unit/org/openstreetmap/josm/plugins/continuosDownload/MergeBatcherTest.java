@@ -0,0 +1,247 @@
+package org.openstreetmap.josm.plugins.continuosDownload;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import org.junit.jupiter.api.Test;
+import org.openstreetmap.josm.data.Bounds;
+import org.openstreetmap.josm.data.coor.LatLon;
+import org.openstreetmap.josm.data.osm.DataSet;
+import org.openstreetmap.josm.data.osm.Node;
+import org.openstreetmap.josm.data.osm.OsmPrimitive;
+import org.openstreetmap.josm.data.osm.Relation;
+import org.openstreetmap.josm.data.osm.Way;
+import org.openstreetmap.josm.data.osm.event.DataChangedEvent;
+import org.openstreetmap.josm.data.osm.event.PrimitivesRemovedEvent;
+import org.openstreetmap.josm.gui.layer.OsmDataLayer;
+import org.openstreetmap.josm.testutils.annotations.BasicPreferences;
+
+/**
+ * Test class for {@link MergeBatcher}
+ */
+@BasicPreferences
+class MergeBatcherTest {
+    private final List<Long> alarms = new ArrayList<>();
+    private final List<Runnable> runs = new ArrayList<>();
+    private final List<OsmDataLayer> layers = new ArrayList<>();
+    private final List<List<MergeBatcher.Part>> merges = new ArrayList<>();
+    private RuntimeException failure;
+    private boolean stopped;
+
+    private final MergeBatcher batcher = new MergeBatcher(new DownloadScheduler.Alarm() {
+        @Override
+        public boolean schedule(long nanos, Runnable r) {
+            alarms.add(nanos);
+            runs.add(r);
+            return !stopped;
+        }
+
+        @Override
+        public void cancel() {
+            runs.clear();
+        }
+    }, (layer, parts) -> {
+        layers.add(layer);
+        merges.add(new ArrayList<>(parts));
+        if (failure != null)
+            throw failure;
+    });
+
+    private static Bounds box(double lon) {
+        return new Bounds(0, lon, 0.01, lon + 0.01);
+    }
+
+    private void runAlarms() {
+        List<Runnable> r = new ArrayList<>(runs);
+        runs.clear();
+        r.forEach(Runnable::run);
+    }
+
+    @Test
+    void testBatch() {
+        OsmDataLayer a = new OsmDataLayer(new DataSet(), "a", null);
+        OsmDataLayer b = new OsmDataLayer(new DataSet(), "b", null);
+        DataSet first = new DataSet();
+        CompletableFuture<Void> f1 = batcher.add(a, first, box(0));
+        CompletableFuture<Void> f2 = batcher.add(b, new DataSet(), box(1));
+        CompletableFuture<Void> f3 = batcher.add(a, new DataSet(), box(2));
+        // One wait for all of them
+        assertEquals(1, alarms.size());
+        assertEquals(MergeBatcher.WINDOW, (long) alarms.get(0));
+        assertTrue(merges.isEmpty());
+        assertFalse(f1.isDone());
+
+        runAlarms();
+        // One merge for each layer
+        assertEquals(2, merges.size());
+        assertSame(a, layers.get(0));
+        assertEquals(2, merges.get(0).size());
+        assertSame(first, merges.get(0).get(0).data);
+        assertEquals(box(2), merges.get(0).get(1).bounds);
+        assertSame(b, layers.get(1));
+        assertEquals(1, merges.get(1).size());
+        assertTrue(f1.isDone() && f2.isDone() && f3.isDone());
+    }
+
+    @Test
+    void testNextBatch() {
+        OsmDataLayer a = new OsmDataLayer(new DataSet(), "a", null);
+        batcher.add(a, new DataSet(), box(0));
+        runAlarms();
+        // A box that comes after a merge waits for the next one
+        CompletableFuture<Void> f = batcher.add(a, new DataSet(), box(1));
+        assertEquals(2, alarms.size());
+        assertFalse(f.isDone());
+        runAlarms();
+        assertEquals(2, merges.size());
+        assertTrue(f.isDone());
+        // Nothing to merge
+        batcher.flush();
+        assertEquals(2, merges.size());
+    }
+
+    @Test
+    void testFailedMerge() {
+        failure = new IllegalStateException("test");
+        OsmDataLayer a = new OsmDataLayer(new DataSet(), "a", null);
+        OsmDataLayer b = new OsmDataLayer(new DataSet(), "b", null);
+        CompletableFuture<Void> f1 = batcher.add(a, new DataSet(), box(0));
+        CompletableFuture<Void> f2 = batcher.add(b, new DataSet(), box(1));
+        runAlarms();
+        // The boxes are not pending forever, and the other layer still gets its data
+        assertEquals(2, merges.size());
+        assertTrue(f1.isDone() && f2.isDone());
+    }
+
+    @Test
+    void testStop() {
+        OsmDataLayer a = new OsmDataLayer(new DataSet(), "a", null);
+        CompletableFuture<Void> f = batcher.add(a, new DataSet(), box(0));
+        batcher.stop();
+        // The box is not pending forever, and the dropped data is not merged
+        assertTrue(f.isCancelled());
+        assertTrue(runs.isEmpty());
+        batcher.flush();
+        assertTrue(merges.isEmpty());
+
+        // Nothing runs the flush anymore
+        stopped = true;
+        assertTrue(batcher.add(a, new DataSet(), box(1)).isCancelled());
+        stopped = false;
+        CompletableFuture<Void> next = batcher.add(a, new DataSet(), box(2));
+        assertFalse(next.isDone());
+        runAlarms();
+        assertEquals(1, merges.size());
+        assertTrue(next.isDone() && !next.isCancelled());
+    }
+
+    private static Node node(long id, int version, double lon) {
+        Node n = new Node(id, version);
+        n.setCoor(new LatLon(0.005, lon));
+        return n;
+    }
+
+    private static Way way(long id, int version, Node... nodes) {
+        Way w = new Way(id, version);
+        w.setNodes(Arrays.asList(nodes));
+        return w;
+    }
+
+    @Test
+    void testKnown() {
+        DataSet layer = new DataSet();
+        Node n1 = node(1, 1, 0.005);
+        Node n2 = node(2, 3, 0.006);
+        layer.addPrimitive(n1);
+        layer.addPrimitive(n2);
+        layer.addPrimitive(node(3, 1, 0.007));
+        layer.addPrimitive(way(10, 1, n1, n2));
+        DataSet downloaded = new DataSet();
+        Node d1 = node(1, 1, 0.005);
+        Node d2 = node(2, 3, 0.006);
+        Way w = way(10, 1, d1, d2);
+        downloaded.addPrimitive(d1);
+        downloaded.addPrimitive(d2);
+        downloaded.addPrimitive(w);
+        // The layer has it all, the ways before the nodes
+        assertEquals(List.of(w, d1, d2), MergeBatcher.known(layer, downloaded));
+
+        DataSet newer = new DataSet();
+        newer.addPrimitive(node(3, 2, 0.007));
+        newer.addPrimitive(node(4, 1, 0.008));
+        assertTrue(MergeBatcher.known(layer, newer).isEmpty());
+
+        // The nodes of a way that is merged are merged too
+        DataSet changedWay = new DataSet();
+        Node c1 = node(1, 1, 0.005);
+        Node c2 = node(2, 3, 0.006);
+        changedWay.addPrimitive(c1);
+        changedWay.addPrimitive(c2);
+        changedWay.addPrimitive(way(10, 2, c1, c2));
+        assertTrue(MergeBatcher.known(layer, changedWay).isEmpty());
+
+        // And so are the members of a relation
+        DataSet relation = new DataSet();
+        Node r1 = node(1, 1, 0.005);
+        Relation r = new Relation(20, 1);
+        r.addMember(r1);
+        relation.addPrimitive(r1);
+        relation.addPrimitive(r);
+        assertTrue(MergeBatcher.known(layer, relation).isEmpty());
+    }
+
+    @Test
+    void testRemovals() {
+        DataSet layer = new DataSet();
+        Node n1 = node(1, 1, 0.005);
+        layer.addPrimitive(n1);
+        MergeBatcher.Removals removals = new MergeBatcher.Removals();
+        List<OsmPrimitive> known = List.of(node(1, 1, 0.005));
+        assertFalse(removals.any(known));
+        removals.processDatasetEvent(new PrimitivesRemovedEvent(layer, List.of(node(2, 1, 0.006)), true));
+        assertFalse(removals.any(known));
+        // A primitive that was left out of the merge left the layer
+        removals.processDatasetEvent(new PrimitivesRemovedEvent(layer, List.of(n1), true));
+        assertTrue(removals.any(known));
+
+        MergeBatcher.Removals changed = new MergeBatcher.Removals();
+        changed.processDatasetEvent(new DataChangedEvent(layer));
+        assertTrue(changed.any(known));
+    }
+
+    @Test
+    void testGone() {
+        DataSet layer = new DataSet();
+        Node kept = node(1, 1, 0.005);
+        Node deleted = node(2, 1, 0.006);
+        layer.addPrimitive(kept);
+        layer.addPrimitive(deleted);
+        // Not on the server yet
+        layer.addPrimitive(new Node(new LatLon(0.005, 0.007)));
+        Node outside = node(3, 1, 0.5);
+        layer.addPrimitive(outside);
+        // A way and a relation with a member in the area that were not sent
+        Way way = way(10, 1, kept, outside);
+        layer.addPrimitive(way);
+        Relation relation = new Relation(20, 1);
+        relation.addMember(way);
+        layer.addPrimitive(relation);
+        Relation far = new Relation(21, 1);
+        far.addMember(outside);
+        layer.addPrimitive(far);
+        Relation sent = new Relation(22, 1);
+        sent.addMember(kept);
+        layer.addPrimitive(sent);
+        DataSet downloaded = new DataSet();
+        downloaded.addPrimitive(node(1, 1, 0.005));
+        downloaded.addPrimitive(new Relation(22, 1));
+        assertEquals(List.of(deleted, way, relation), new ArrayList<>(MergeBatcher.gone(layer, downloaded, box(0))));
+    }
+}
@@ -0,0 +1,409 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.continuosDownload;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * A stand-in for the OSM API that runs in the test, for the map call, the GPS trackpoints and the notes.
+ * <p>
+ * The data is made up: there is a node in each cell of a grid of {@link #density} nodes per degree^2, with a closed way
+ * around each block of 2x2 nodes, a note in every 100th cell and a trackpoint in every cell. The same cell always
+ * gives the same ids, so the areas of different requests fit together. The answers can be slowed down by
+ * {@link #latency} and {@link #bandwidth}, the map call is refused like the real server when it has more than
+ * {@link #nodeLimit} nodes or is larger than {@link #maxArea}, and every {@link #rejectEvery}th request is refused with
+ * {@link #rejectCode}, 509 for bandwidth limit exceeded by default.
+ * <p>
+ * Point {@code osm-server.url} to {@link #getUrl()} to use it.
+ */
+final class OsmApiSimulator implements AutoCloseable {
+    /** The trackpoints in a page, like the server */
+    static final int TRACKPOINTS_PER_PAGE = 5000;
+
+    /** The nodes in a degree^2 */
+    volatile double density = 10_000;
+    /** The time before the answer, in milliseconds */
+    volatile long latency;
+    /** The bytes per second of an answer, 0 for no limit */
+    volatile long bandwidth;
+    /** The most nodes the map call gives */
+    volatile int nodeLimit = 50_000;
+    /** The largest area of the map call in degrees^2 */
+    volatile double maxArea = 0.25;
+    /** Refuse every this many requests, 0 to refuse none */
+    volatile int rejectEvery;
+    /** The status of a refused request */
+    volatile int rejectCode = 509;
+
+    private final HttpServer server;
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final AtomicInteger requests = new AtomicInteger();
+    /** The requests that are being answered, without the capabilities */
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger maxInFlight = new AtomicInteger();
+    private final Map<String, AtomicInteger> counts = new HashMap<>();
+    /** The time each request took to answer, in nanoseconds */
+    private final List<Long> times = Collections.synchronizedList(new ArrayList<>());
+
+    /**
+     * Start the simulator on a free port
+     * @throws IOException if the server cannot be started
+     */
+    OsmApiSimulator() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.setExecutor(executor);
+        server.createContext("/api/capabilities", e -> answer(e, "capabilities", this::capabilities));
+        server.createContext("/api/0.6/capabilities", e -> answer(e, "capabilities", this::capabilities));
+        server.createContext("/api/0.6/map", e -> answer(e, "map", this::map));
+        server.createContext("/api/0.6/trackpoints", e -> answer(e, "trackpoints", this::trackpoints));
+        server.createContext("/api/0.6/notes", e -> answer(e, "notes", this::notes));
+        server.start();
+    }
+
+    /**
+     * Get the URL to use for {@code osm-server.url}
+     * @return The URL of the API
+     */
+    String getUrl() {
+        return "http://" + server.getAddress().getHostString() + ':' + server.getAddress().getPort() + "/api";
+    }
+
+    /**
+     * Get the number of requests to an endpoint
+     * @param endpoint {@code map}, {@code trackpoints}, {@code notes} or {@code capabilities}, with {@code .} and
+     * the status for the requests with that answer, like {@code map.400}
+     * @return The number of requests
+     */
+    int getCount(String endpoint) {
+        synchronized (counts) {
+            AtomicInteger n = counts.get(endpoint);
+            return n != null ? n.get() : 0;
+        }
+    }
+
+    /**
+     * Get the most requests that were answered at the same time, without the capabilities
+     * @return The number of requests
+     */
+    int getMaxInFlight() {
+        return maxInFlight.get();
+    }
+
+    /**
+     * Get the times the requests took to answer
+     * @return The times in nanoseconds, sorted
+     */
+    List<Long> getTimes() {
+        List<Long> r;
+        synchronized (times) {
+            r = new ArrayList<>(times);
+        }
+        Collections.sort(r);
+        return r;
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    @FunctionalInterface
+    private interface Handler {
+        /**
+         * Make the answer
+         * @param query The parameters of the request
+         * @param out The body of the answer
+         * @return The status, with the error message in the {@code Error} header if it is not 200
+         */
+        Status handle(Map<String, String> query, StringBuilder out);
+    }
+
+    private static final class Status {
+        static final Status OK = new Status(200, null);
+        final int code;
+        final String error;
+
+        Status(int code, String error) {
+            this.code = code;
+            this.error = error;
+        }
+    }
+
+    private void answer(HttpExchange exchange, String endpoint, Handler handler) throws IOException {
+        long start = System.nanoTime();
+        boolean counted = !"capabilities".equals(endpoint);
+        if (counted)
+            maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+        try {
+            count(endpoint);
+            int n = requests.incrementAndGet();
+            if (latency > 0)
+                Thread.sleep(latency);
+            StringBuilder body = new StringBuilder();
+            Status status;
+            int every = rejectEvery;
+            if (every > 0 && n % every == 0 && !"capabilities".equals(endpoint)) {
+                status = new Status(rejectCode, rejectCode == 509 ? "Bandwidth limit exceeded" : "Too many requests");
+            } else {
+                status = handler.handle(query(exchange.getRequestURI()), body);
+            }
+            if (status.code != 200) {
+                count(endpoint + '.' + status.code);
+                exchange.getResponseHeaders().add("Error", status.error);
+                body.setLength(0);
+                body.append(status.error);
+            }
+            byte[] bytes = body.toString().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().add("Content-Type",
+                    status.code == 200 ? "text/xml; charset=utf-8" : "text/plain; charset=utf-8");
+            exchange.sendResponseHeaders(status.code, bytes.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                write(out, bytes);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            times.add(System.nanoTime() - start);
+            exchange.close();
+            if (counted)
+                inFlight.decrementAndGet();
+        }
+    }
+
+    private void count(String key) {
+        synchronized (counts) {
+            counts.computeIfAbsent(key, k -> new AtomicInteger()).incrementAndGet();
+        }
+    }
+
+    /**
+     * Write the answer, not faster than the bandwidth
+     */
+    private void write(OutputStream out, byte[] bytes) throws IOException, InterruptedException {
+        long rate = bandwidth;
+        if (rate <= 0) {
+            out.write(bytes);
+            return;
+        }
+        // Chunks of about 50 ms
+        int chunk = (int) Math.max(1, rate / 20);
+        long start = System.nanoTime();
+        for (int off = 0; off < bytes.length; off += chunk) {
+            int len = Math.min(chunk, bytes.length - off);
+            out.write(bytes, off, len);
+            out.flush();
+            long due = start + TimeUnit.SECONDS.toNanos(off + len) / rate;
+            long wait = due - System.nanoTime();
+            if (wait > 0)
+                TimeUnit.NANOSECONDS.sleep(wait);
+        }
+    }
+
+    private static Map<String, String> query(URI uri) {
+        Map<String, String> r = new HashMap<>();
+        String q = uri.getRawQuery();
+        if (q == null)
+            return r;
+        for (String p : q.split("&", -1)) {
+            int eq = p.indexOf('=');
+            if (eq > 0)
+                r.put(p.substring(0, eq), p.substring(eq + 1).replace("%2C", ",").replace("%2c", ","));
+        }
+        return r;
+    }
+
+    private Status capabilities(Map<String, String> query, StringBuilder out) {
+        out.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<osm version=\"0.6\" generator=\"OsmApiSimulator\">\n"
+                + "  <api>\n    <version minimum=\"0.6\" maximum=\"0.6\"/>\n"
+                + "    <area maximum=\"").append(maxArea).append("\"/>\n"
+                + "    <note_area maximum=\"25\"/>\n    <tracepoints per_page=\"").append(TRACKPOINTS_PER_PAGE)
+                .append("\"/>\n    <waynodes maximum=\"2000\"/>\n    <changesets maximum_elements=\"10000\"/>\n"
+                + "    <timeout seconds=\"300\"/>\n    <status database=\"online\" api=\"online\" gpx=\"online\"/>\n"
+                + "  </api>\n  <policy>\n    <imagery/>\n  </policy>\n</osm>\n");
+        return Status.OK;
+    }
+
+    /**
+     * The cells of the grid in a bounding box
+     */
+    private final class Grid {
+        final double step = 1 / Math.sqrt(density);
+        final long minx;
+        final long miny;
+        final long maxx;
+        final long maxy;
+
+        Grid(double[] bbox) {
+            minx = (long) Math.ceil(bbox[0] / step - 0.5);
+            miny = (long) Math.ceil(bbox[1] / step - 0.5);
+            maxx = (long) Math.floor(bbox[2] / step - 0.5);
+            maxy = (long) Math.floor(bbox[3] / step - 0.5);
+        }
+
+        long count() {
+            return Math.max(0, maxx - minx + 1) * Math.max(0, maxy - miny + 1);
+        }
+
+        double lon(long i) {
+            return (i + 0.5) * step;
+        }
+
+        double lat(long j) {
+            return (j + 0.5) * step;
+        }
+    }
+
+    /**
+     * The id of the thing in a cell, the same for every request
+     */
+    private static long id(long i, long j) {
+        // Cells from -2^20 to 2^20 in each direction, enough for densities up to about 10^7 per degree^2
+        return ((i + (1L << 20)) << 21 | (j + (1L << 20))) + 1;
+    }
+
+    private static double[] bbox(Map<String, String> query) {
+        String bbox = query.get("bbox");
+        if (bbox == null)
+            return null;
+        String[] f = bbox.split(",", -1);
+        if (f.length != 4)
+            return null;
+        try {
+            return new double[] {Double.parseDouble(f[0]), Double.parseDouble(f[1]), Double.parseDouble(f[2]),
+                    Double.parseDouble(f[3])};
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private Status map(Map<String, String> query, StringBuilder out) {
+        double[] bbox = bbox(query);
+        if (bbox == null || bbox[0] > bbox[2] || bbox[1] > bbox[3])
+            return new Status(400, "The parameter bbox is required, and must be of the form min_lon,min_lat,max_lon,max_lat.");
+        if ((bbox[2] - bbox[0]) * (bbox[3] - bbox[1]) > maxArea)
+            return new Status(400, "The maximum bbox size is " + maxArea
+                    + ", and your request was too large. Either request a smaller area, or use planet.osm");
+        // The ways around the blocks that touch the box, with all of their nodes, like the real map call
+        Grid g = new Grid(bbox);
+        long bminx = Math.floorDiv(g.minx, 2);
+        long bminy = Math.floorDiv(g.miny, 2);
+        long bmaxx = Math.floorDiv(g.maxx, 2);
+        long bmaxy = Math.floorDiv(g.maxy, 2);
+        long nodes = g.count() == 0 ? 0 : (bmaxx - bminx + 1) * (bmaxy - bminy + 1) * 4;
+        if (nodes > nodeLimit)
+            return new Status(400, "You requested too many nodes (limit is " + nodeLimit
+                    + "). Either request a smaller area, or use planet.osm");
+        out.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<osm version=\"0.6\" generator=\"OsmApiSimulator\">\n");
+        out.append(String.format(Locale.ROOT, "  <bounds minlat=\"%.7f\" minlon=\"%.7f\" maxlat=\"%.7f\" maxlon=\"%.7f\"/>%n",
+                bbox[1], bbox[0], bbox[3], bbox[2]));
+        if (nodes == 0)
+            return close(out);
+        for (long bi = bminx; bi <= bmaxx; bi++) {
+            for (long bj = bminy; bj <= bmaxy; bj++) {
+                for (int k = 0; k < 4; k++) {
+                    long i = bi * 2 + (k & 1);
+                    long j = bj * 2 + (k >> 1);
+                    out.append(String.format(Locale.ROOT, "  <node id=\"%d\" version=\"1\" timestamp=\"2020-01-01T00:00:00Z\""
+                            + " changeset=\"1\" uid=\"1\" user=\"sim\" lat=\"%.7f\" lon=\"%.7f\"/>%n", id(i, j), g.lat(j),
+                            g.lon(i)));
+                }
+            }
+        }
+        for (long bi = bminx; bi <= bmaxx; bi++) {
+            for (long bj = bminy; bj <= bmaxy; bj++) {
+                long i = bi * 2;
+                long j = bj * 2;
+                out.append("  <way id=\"").append(id(bi, bj)).append("\" version=\"1\" timestamp=\"2020-01-01T00:00:00Z\""
+                        + " changeset=\"1\" uid=\"1\" user=\"sim\">\n");
+                for (long nd : new long[] {id(i, j), id(i + 1, j), id(i + 1, j + 1), id(i, j + 1), id(i, j)}) {
+                    out.append("    <nd ref=\"").append(nd).append("\"/>\n");
+                }
+                out.append("    <tag k=\"building\" v=\"yes\"/>\n  </way>\n");
+            }
+        }
+        return close(out);
+    }
+
+    private static Status close(StringBuilder out) {
+        out.append("</osm>\n");
+        return Status.OK;
+    }
+
+    private Status trackpoints(Map<String, String> query, StringBuilder out) {
+        double[] bbox = bbox(query);
+        if (bbox == null)
+            return new Status(400, "The parameter bbox is required");
+        int page;
+        try {
+            page = Integer.parseInt(query.getOrDefault("page", "0"));
+        } catch (NumberFormatException e) {
+            return new Status(400, "The parameter page must be a number");
+        }
+        Grid g = new Grid(bbox);
+        long first = (long) page * TRACKPOINTS_PER_PAGE;
+        long last = Math.min(g.count(), first + TRACKPOINTS_PER_PAGE);
+        out.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+                + "<gpx version=\"1.0\" creator=\"OsmApiSimulator\" xmlns=\"http://www.topografix.com/GPX/1/0\">\n");
+        if (first < last) {
+            out.append("  <trk>\n    <trkseg>\n");
+            long width = g.maxx - g.minx + 1;
+            for (long n = first; n < last; n++) {
+                out.append(String.format(Locale.ROOT, "      <trkpt lat=\"%.7f\" lon=\"%.7f\"/>%n",
+                        g.lat(g.miny + n / width), g.lon(g.minx + n % width)));
+            }
+            out.append("    </trkseg>\n  </trk>\n");
+        }
+        out.append("</gpx>\n");
+        return Status.OK;
+    }
+
+    private Status notes(Map<String, String> query, StringBuilder out) {
+        double[] bbox = bbox(query);
+        if (bbox == null)
+            return new Status(400, "The parameter bbox is required");
+        int limit;
+        try {
+            limit = Integer.parseInt(query.getOrDefault("limit", "100"));
+        } catch (NumberFormatException e) {
+            return new Status(400, "The parameter limit must be a number");
+        }
+        Grid g = new Grid(bbox);
+        out.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<osm version=\"0.6\" generator=\"OsmApiSimulator\">\n");
+        int n = 0;
+        for (long i = g.minx; i <= g.maxx && n < limit; i++) {
+            for (long j = g.miny; j <= g.maxy && n < limit; j++) {
+                if (Math.floorMod(i * 31 + j, 100) != 0)
+                    continue;
+                n++;
+                out.append(String.format(Locale.ROOT, "<note lon=\"%.7f\" lat=\"%.7f\">%n", g.lon(i), g.lat(j)))
+                        .append("  <id>").append(id(i, j)).append("</id>\n")
+                        .append("  <date_created>2020-01-01 00:00:00 UTC</date_created>\n")
+                        .append("  <status>open</status>\n  <comments>\n    <comment>\n")
+                        .append("      <date>2020-01-01 00:00:00 UTC</date>\n      <uid>1</uid>\n      <user>sim</user>\n")
+                        .append("      <action>opened</action>\n      <text>Note ").append(n).append("</text>\n")
+                        .append("      <html>&lt;p&gt;Note ").append(n).append("&lt;/p&gt;</html>\n")
+                        .append("    </comment>\n  </comments>\n</note>\n");
+            }
+        }
+        out.append("</osm>\n");
+        return Status.OK;
+    }
+}
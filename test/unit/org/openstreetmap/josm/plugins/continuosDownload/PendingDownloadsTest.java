@@ -0,0 +1,55 @@
+package org.openstreetmap.josm.plugins.continuosDownload;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.CompletableFuture;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.openstreetmap.josm.gui.layer.GpxLayer;
+import org.openstreetmap.josm.gui.layer.OsmDataLayer;
+
+/**
+ * Test class for {@link PendingDownloads}
+ */
+class PendingDownloadsTest {
+
+    @AfterEach
+    void tearDown() {
+        PendingDownloads.clear();
+    }
+
+    @Test
+    void testPending() {
+        Box a = new Box(0, 0, 10, 10);
+        Box b = new Box(0, 0, 10, 10);
+        PendingDownloads.add(OsmDataLayer.class, a, new DownloadOsmTask2(), new CompletableFuture<>());
+        PendingDownloads.add(OsmDataLayer.class, b, new DownloadOsmTask2(), new CompletableFuture<>());
+
+        // Only the part near the box, and only for the same type of layer
+        assertEquals(2 * 25, PendingDownloads.get(OsmDataLayer.class, new Box(5, 5, 20, 20)).area());
+        assertTrue(PendingDownloads.get(GpxLayer.class, new Box(5, 5, 20, 20)).isEmpty());
+
+        // The same box twice is only removed once
+        PendingDownloads.remove(OsmDataLayer.class, a);
+        assertEquals(25, PendingDownloads.get(OsmDataLayer.class, new Box(5, 5, 20, 20)).area());
+        PendingDownloads.remove(OsmDataLayer.class, b);
+        assertTrue(PendingDownloads.get(OsmDataLayer.class, new Box(5, 5, 20, 20)).isEmpty());
+    }
+
+    @Test
+    void testCancelOutside() {
+        CompletableFuture<Void> near = new CompletableFuture<>();
+        CompletableFuture<Void> far = new CompletableFuture<>();
+        PendingDownloads.add(OsmDataLayer.class, new Box(0, 0, 10, 10), new DownloadOsmTask2(), near);
+        PendingDownloads.add(OsmDataLayer.class, new Box(100, 100, 110, 110), new DownloadOsmTask2(), far);
+
+        assertEquals(1, PendingDownloads.cancelOutside(new Box(5, 5, 20, 20)));
+        assertFalse(near.isCancelled());
+        assertTrue(far.isCancelled());
+        // The cancelled area is not pending any more, so it is fetched again when it is needed
+        assertEquals(100, PendingDownloads.get(OsmDataLayer.class, new Box(0, 0, 200, 200)).area());
+    }
+}
@@ -0,0 +1,50 @@
+package org.openstreetmap.josm.plugins.continuosDownload;
+
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+import org.openstreetmap.josm.data.Bounds;
+
+/**
+ * Test class for {@link PredictiveStrategy}
+ */
+class PredictiveStrategyTest {
+
+    @Test
+    void testPanEast() {
+        PredictiveStrategy strat = new PredictiveStrategy();
+        long now = 1000000;
+        Bounds ahead = null;
+        for (int i = 0; i < 10; i++) {
+            Bounds view = new Bounds(0, i * 0.01, 0.1, 0.1 + i * 0.01);
+            Bounds r = strat.viewChanged(view, now + i * 50L);
+            if (r != null)
+                ahead = r;
+        }
+        assertNotNull(ahead);
+        // The view moves 0.2 degrees a second, and ends at 0.09 to 0.19
+        assertTrue(ahead.getMin().lon() > 0.09);
+        assertTrue(Math.abs(ahead.getMin().lat()) < 0.000001);
+    }
+
+    @Test
+    void testStill() {
+        PredictiveStrategy strat = new PredictiveStrategy();
+        Bounds view = new Bounds(0, 0, 0.1, 0.1);
+        for (int i = 0; i < 10; i++) {
+            assertNull(strat.viewChanged(view, 1000000 + i * 50L));
+        }
+    }
+
+    @Test
+    void testZoom() {
+        PredictiveStrategy strat = new PredictiveStrategy();
+        for (int i = 0; i < 10; i++) {
+            // Zooming out around the same center moves nothing
+            double d = 0.1 * (1 + i);
+            assertNull(strat.viewChanged(new Bounds(-d, -d, d, d), 1000000 + i * 50L));
+        }
+    }
+}
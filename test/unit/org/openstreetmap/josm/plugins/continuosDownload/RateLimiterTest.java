@@ -0,0 +1,62 @@
+package org.openstreetmap.josm.plugins.continuosDownload;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.openstreetmap.josm.spi.preferences.Config;
+
+/**
+ * Test class for {@link RateLimiter}
+ */
+class RateLimiterTest {
+    private long time;
+    private final RateLimiter limiter = new RateLimiter(() -> time, () -> "test");
+
+    @AfterEach
+    void tearDown() {
+        Config.getPref().put("plugin.continuos_download.area_per_minute", null);
+    }
+
+    @Test
+    void testRequests() {
+        // A burst of two requests, then one every half second
+        assertEquals(0, limiter.acquire("test", 0));
+        assertEquals(0, limiter.acquire("test", 0));
+        long wait = limiter.acquire("test", 0);
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(500), wait);
+        time += wait;
+        assertEquals(0, limiter.acquire("test", 0));
+        assertTrue(limiter.acquire("test", 0) > 0);
+    }
+
+    @Test
+    void testArea() {
+        // The area is not limited by default
+        assertEquals(0, limiter.acquire("test", 10));
+        time += TimeUnit.SECONDS.toNanos(1);
+        assertEquals(0, limiter.acquire("test", 10));
+
+        time += TimeUnit.MINUTES.toNanos(1);
+        Config.getPref().putDouble("plugin.continuos_download.area_per_minute", 1);
+        RateLimiter limiter = new RateLimiter(() -> time, () -> "test");
+        assertEquals(0, limiter.acquire("test", 0.75));
+        time += TimeUnit.SECONDS.toNanos(10);
+        // A quarter of a minute to get the missing area back
+        assertEquals(TimeUnit.SECONDS.toNanos(5), limiter.acquire("test", 0.5), 1000);
+        // A box larger than a minute of area waits for a full bucket
+        time += TimeUnit.MINUTES.toNanos(1);
+        assertEquals(0, limiter.acquire("test", 4));
+    }
+
+    @Test
+    void testEndpoints() {
+        Config.getPref().putDouble("plugin.continuos_download.area_per_minute", 1);
+        assertEquals(0, limiter.acquire("a", 1));
+        assertTrue(limiter.acquire("a", 1) > 0);
+        assertEquals(0, limiter.acquire("b", 1));
+    }
+}
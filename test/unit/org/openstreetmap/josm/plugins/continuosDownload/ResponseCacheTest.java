@@ -0,0 +1,152 @@
+package org.openstreetmap.josm.plugins.continuosDownload;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Test class for {@link ResponseCache}
+ */
+class ResponseCacheTest {
+    private static final String SERVER = "https://api.openstreetmap.org/api";
+    @TempDir
+    Path dir;
+    private long time = 1000000;
+
+    private static byte[] read(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] b = new byte[3];
+        int n;
+        while ((n = in.read(b)) >= 0) {
+            out.write(b, 0, n);
+        }
+        return out.toByteArray();
+    }
+
+    private static void store(ResponseCache cache, Box box, String response) throws IOException {
+        try (ResponseCache.Storing in = cache.store(box, new ByteArrayInputStream(response.getBytes(StandardCharsets.UTF_8)))) {
+            // Like a parser that stops at the end of the document
+            in.read(new byte[4]);
+            in.commit();
+        }
+    }
+
+    @Test
+    void testStore() throws IOException {
+        ResponseCache cache = new ResponseCache(dir, SERVER, () -> time);
+        store(cache, new Box(0, 0, 10, 10), "<osm>a</osm>");
+        store(cache, new Box(10, 0, 20, 10), "<osm>b</osm>");
+
+        List<Path> files = cache.lookup(new Box(5, 0, 15, 10));
+        assertNotNull(files);
+        assertEquals(2, files.size());
+        try (InputStream in = ResponseCache.open(cache.lookup(new Box(0, 0, 10, 10)).get(0))) {
+            assertArrayEquals("<osm>a</osm>".getBytes(StandardCharsets.UTF_8), read(in));
+        }
+        // Not all of it is in the cache
+        assertNull(cache.lookup(new Box(5, 0, 25, 10)));
+
+        // The files are found again
+        assertNotNull(new ResponseCache(dir, SERVER, () -> time).lookup(new Box(5, 0, 15, 10)));
+    }
+
+    @Test
+    void testCovers() throws IOException {
+        ResponseCache cache = new ResponseCache(dir, SERVER, () -> time);
+        store(cache, new Box(0, 0, 10, 10), "<osm>a</osm>");
+        store(cache, new Box(10, 0, 20, 10), "<osm>b</osm>");
+        assertTrue(cache.covers(new Box(5, 0, 15, 10)));
+        assertFalse(cache.covers(new Box(5, 0, 25, 10)));
+        // The disk is not read to answer
+        assertFalse(new ResponseCache(dir, SERVER, () -> time).covers(new Box(0, 0, 10, 10)));
+        time += TimeUnit.SECONDS.toMillis(ResponseCache.DEFAULT_TTL) + 1;
+        assertFalse(cache.covers(new Box(0, 0, 10, 10)));
+    }
+
+    @Test
+    void testNotCommitted() throws IOException {
+        ResponseCache cache = new ResponseCache(dir, SERVER, () -> time);
+        try (ResponseCache.Storing in = cache.store(new Box(0, 0, 10, 10), new ByteArrayInputStream(new byte[10]))) {
+            in.read();
+            in.discard();
+        }
+        assertNull(cache.lookup(new Box(0, 0, 10, 10)));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    void testTtl() throws IOException {
+        ResponseCache cache = new ResponseCache(dir, SERVER, () -> time);
+        store(cache, new Box(0, 0, 10, 10), "<osm/>");
+        time += TimeUnit.SECONDS.toMillis(ResponseCache.DEFAULT_TTL) + 1;
+        assertNull(cache.lookup(new Box(0, 0, 10, 10)));
+    }
+
+    @Test
+    void testEvict() throws IOException {
+        ResponseCache cache = new ResponseCache(dir, SERVER, () -> time);
+        store(cache, new Box(0, 0, 10, 10), "0123456789");
+        store(cache, new Box(10, 0, 20, 10), "0123456789");
+        store(cache, new Box(20, 0, 30, 10), "0123456789");
+        // The first is used, so the second is the least recently used
+        assertNotNull(cache.lookup(new Box(0, 0, 10, 10)));
+        cache.evict(20);
+        assertEquals(20, cache.size());
+        assertNotNull(cache.lookup(new Box(0, 0, 10, 10)));
+        assertNull(cache.lookup(new Box(10, 0, 20, 10)));
+        assertNotNull(cache.lookup(new Box(20, 0, 30, 10)));
+    }
+
+    @Test
+    void testSave() throws IOException {
+        ResponseCache cache = new ResponseCache(dir, SERVER, () -> time);
+        store(cache, new Box(0, 0, 10, 10), "0123456789");
+        store(cache, new Box(10, 0, 20, 10), "0123456789");
+        assertNotNull(cache.lookup(new Box(0, 0, 10, 10)));
+        cache.save();
+
+        // The times are the ones of the downloads, not of the files
+        time += TimeUnit.SECONDS.toMillis(ResponseCache.DEFAULT_TTL) / 2;
+        ResponseCache next = new ResponseCache(dir, SERVER, () -> time);
+        assertEquals(20, next.size());
+        assertFalse(Files.exists(dir.resolve("index.bin")));
+        // The order they were used in is kept
+        next.evict(10);
+        assertNotNull(next.lookup(new Box(0, 0, 10, 10)));
+        assertNull(next.lookup(new Box(10, 0, 20, 10)));
+        time += TimeUnit.SECONDS.toMillis(ResponseCache.DEFAULT_TTL) / 2 + 1;
+        assertNull(next.lookup(new Box(0, 0, 10, 10)));
+    }
+
+    @Test
+    void testServer() throws IOException {
+        ResponseCache cache = new ResponseCache(dir, SERVER, () -> time);
+        store(cache, new Box(0, 0, 10, 10), "0123456789");
+        cache.save();
+        // The responses of another server are not read
+        ResponseCache dev = new ResponseCache(dir, "https://master.apis.dev.openstreetmap.org/api", () -> time);
+        assertNull(dev.lookup(new Box(0, 0, 10, 10)));
+        assertEquals(0, dev.size());
+        assertEquals(0, new ResponseCache(dir, SERVER, () -> time).size());
+        // Each server has a directory of its own
+        assertNotEquals(ResponseCache.key(SERVER), ResponseCache.key("https://master.apis.dev.openstreetmap.org/api"));
+        assertEquals(16, ResponseCache.key(SERVER).length());
+    }
+}
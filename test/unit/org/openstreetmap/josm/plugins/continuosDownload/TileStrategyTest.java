@@ -0,0 +1,72 @@
+package org.openstreetmap.josm.plugins.continuosDownload;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+import org.openstreetmap.josm.plugins.continuosDownload.AbstractDownloadStrategy.Present;
+
+/**
+ * Test class for {@link TileStrategy}
+ */
+class TileStrategyTest {
+    private static final long TILE = BoxSet.toFpi(TileStrategy.DEFAULT_TILE_SIZE);
+
+    private static Present present(CoverageIndex coverage) {
+        return new Present(coverage, new BoxSet());
+    }
+
+    @Test
+    void testAligned() {
+        CoverageIndex coverage = new CoverageIndex();
+        coverage.add(new Box(0, 0, 5 * TILE, 5 * TILE));
+        Box view = new Box(TILE / 2, TILE / 2, 7 * TILE + TILE / 3, 3 * TILE);
+
+        BoxSet r = new TileStrategy().getBoxes(view, present(coverage), 4);
+        for (int i = 0; i < r.size(); i++) {
+            assertEquals(0, r.minX(i) % TILE);
+            assertEquals(0, r.minY(i) % TILE);
+            assertEquals(0, r.maxX(i) % TILE);
+            assertEquals(0, r.maxY(i) % TILE);
+        }
+        // The columns 5 to 7 of the rows 0 to 2
+        assertEquals(1, r.size());
+        assertEquals(new Box(5 * TILE, 0, 8 * TILE, 3 * TILE), r.get(0));
+    }
+
+    @Test
+    void testCovered() {
+        CoverageIndex coverage = new CoverageIndex();
+        coverage.add(new Box(-10 * TILE, -10 * TILE, 10 * TILE, 10 * TILE));
+        TileStrategy strat = new TileStrategy();
+        assertTrue(strat.getBoxes(new Box(-TILE, -TILE, TILE, TILE), present(coverage), 4).isEmpty());
+        // The tiles are known now
+        assertTrue(strat.getBoxes(new Box(-TILE, -TILE, TILE, TILE), present(coverage), 4).isEmpty());
+        // Until the coverage is cleared
+        coverage.clear();
+        assertEquals(4 * TILE * TILE, strat.getBoxes(new Box(-TILE, -TILE, TILE, TILE), present(coverage), 4).area());
+    }
+
+    @Test
+    void testMissingTiles() {
+        // Every other column has been downloaded
+        CoverageIndex coverage = new CoverageIndex();
+        for (int x = 0; x < 10; x += 2) {
+            coverage.add(new Box(x * TILE, 0, (x + 1) * TILE, 10 * TILE));
+        }
+        Box view = new Box(0, 0, 10 * TILE, 10 * TILE);
+
+        BoxSet r = new TileStrategy().getBoxes(view, present(coverage), 8);
+        assertEquals(5, r.size());
+        assertEquals(50 * TILE * TILE, r.area());
+        assertTrue(BoxSet.of(view).subtractAll(coverage.query(view)).subtractAll(r).isEmpty());
+
+        // Nothing is missing while the rest is being downloaded
+        assertTrue(new TileStrategy().getBoxes(view, new Present(coverage, r), 8).isEmpty());
+
+        // Fewer boxes, that still cover all of the missing tiles
+        r = new TileStrategy().getBoxes(view, present(coverage), 2);
+        assertEquals(2, r.size());
+        assertTrue(BoxSet.of(view).subtractAll(coverage.query(view)).subtractAll(r).isEmpty());
+    }
+}
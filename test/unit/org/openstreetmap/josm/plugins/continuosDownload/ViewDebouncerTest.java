@@ -0,0 +1,129 @@
+package org.openstreetmap.josm.plugins.continuosDownload;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+import org.openstreetmap.josm.data.Bounds;
+
+/**
+ * Test class for {@link ViewDebouncer}
+ */
+class ViewDebouncerTest {
+    private static final long MS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private long now;
+    private long seq;
+    private final PriorityQueue<long[]> alarms = new PriorityQueue<>((a, b) ->
+            a[0] != b[0] ? Long.compare(a[0], b[0]) : Long.compare(a[1], b[1]));
+    private final List<Runnable> runs = new ArrayList<>();
+    private final List<Bounds> fetched = new ArrayList<>();
+    private final List<Long> fetchedAt = new ArrayList<>();
+    private final AdaptiveLimit limit = new AdaptiveLimit(2);
+
+    private final ViewDebouncer debouncer = new ViewDebouncer(new DownloadScheduler.Alarm() {
+        @Override
+        public boolean schedule(long nanos, Runnable r) {
+            alarms.add(new long[] {now + nanos, seq++, runs.size()});
+            runs.add(r);
+            return true;
+        }
+
+        @Override
+        public void cancel() {
+            alarms.clear();
+        }
+    }, () -> now, limit, bbox -> {
+        fetched.add(bbox);
+        fetchedAt.add(now);
+    });
+
+    /**
+     * Run the alarms until the given time
+     */
+    private void advance(long until) {
+        while (!alarms.isEmpty() && alarms.peek()[0] <= until) {
+            long[] a = alarms.remove();
+            now = a[0];
+            runs.get((int) a[2]).run();
+        }
+        now = until;
+    }
+
+    private static Bounds view(double lon) {
+        return new Bounds(0, lon, 0.01, lon + 0.01);
+    }
+
+    @Test
+    void testSingleChange() {
+        debouncer.viewChanged(view(0));
+        advance(499 * MS);
+        assertTrue(fetched.isEmpty());
+        // Nothing is known about a single change, wait the whole wait_time
+        advance(500 * MS);
+        assertEquals(1, fetched.size());
+        assertEquals(500 * MS, (long) fetchedAt.get(0));
+    }
+
+    @Test
+    void testCoalesce() {
+        for (int i = 0; i < 20; i++) {
+            debouncer.viewChanged(view(i * 0.0001));
+            advance(now + 20 * MS);
+        }
+        advance(now + 1000 * MS);
+        // Only the view the user stopped at
+        assertEquals(1, fetched.size());
+        assertEquals(view(19 * 0.0001), fetched.get(0));
+        // Three times the time between the changes after the last one, not the whole wait_time
+        assertEquals(19 * 20 * MS + 100 * MS, (long) fetchedAt.get(0));
+        // Not an alarm for each change
+        assertTrue(runs.size() < 10, Integer.toString(runs.size()));
+    }
+
+    @Test
+    void testFast() {
+        // Half a view every 40 ms is fast, wait twice as long
+        for (int i = 0; i < 5; i++) {
+            debouncer.viewChanged(view(i * 0.005));
+            advance(now + 40 * MS);
+        }
+        advance(now + 1000 * MS);
+        assertEquals(1, fetched.size());
+        assertEquals(4 * 40 * MS + 240 * MS, (long) fetchedAt.get(0));
+    }
+
+    @Test
+    void testSlowServer() {
+        // The server takes a second, a download that is not needed costs more
+        limit.done(0, 1000 * MS, false);
+        for (int i = 0; i < 5; i++) {
+            debouncer.viewChanged(view(i * 0.0001));
+            advance(now + 20 * MS);
+        }
+        advance(now + 1000 * MS);
+        assertEquals(4 * 20 * MS + 60 * MS + 250 * MS, (long) fetchedAt.get(0));
+    }
+
+    @Test
+    void testNoTriggerLost() {
+        debouncer.viewChanged(view(0));
+        advance(500 * MS);
+        assertEquals(1, fetched.size());
+        // A new pan after the first has been fetched
+        advance(2000 * MS);
+        debouncer.viewChanged(view(1));
+        advance(3000 * MS);
+        assertEquals(2, fetched.size());
+        assertEquals(view(1), fetched.get(1));
+        assertEquals(2500 * MS, (long) fetchedAt.get(1));
+        // The same view is not fetched twice
+        advance(10_000 * MS);
+        assertEquals(2, fetched.size());
+    }
+}
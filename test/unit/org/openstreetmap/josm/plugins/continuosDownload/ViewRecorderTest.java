@@ -0,0 +1,40 @@
+package org.openstreetmap.josm.plugins.continuosDownload;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.openstreetmap.josm.data.Bounds;
+
+/**
+ * Test class for {@link ViewRecorder}
+ */
+class ViewRecorderTest {
+
+    @Test
+    void testRecord() throws IOException {
+        StringWriter out = new StringWriter();
+        ViewRecorder recorder = new ViewRecorder(out);
+        recorder.record(1000, new Bounds(59.9, 10.7, 59.95, 10.8));
+        recorder.record(1250, new Bounds(-33.9, 151.2, -33.85, 151.25));
+        recorder.close();
+
+        List<ViewRecorder.View> views = ViewRecorder.read(new BufferedReader(new StringReader(out.toString())));
+        assertEquals(2, views.size());
+        assertEquals(1000, views.get(0).time);
+        assertEquals(new Bounds(59.9, 10.7, 59.95, 10.8), views.get(0).bounds);
+        assertEquals(1250, views.get(1).time);
+        assertEquals(new Bounds(-33.9, 151.2, -33.85, 151.25), views.get(1).bounds);
+    }
+
+    @Test
+    void testBadLine() {
+        assertThrows(IOException.class, () -> ViewRecorder.read(new BufferedReader(new StringReader("1000,1,2,3\n"))));
+    }
+}